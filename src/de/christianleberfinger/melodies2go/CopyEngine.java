@@ -0,0 +1,238 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.FileSystemException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs copy jobs concurrently. Source reads and destination writes have
+ * separate limits, as source (e.g. a NAS) and destination (e.g. an SD card)
+ * usually tolerate different amounts of parallel I/O. Each destination has
+ * its own write limit. The limits are applied to the single reads and writes
+ * of the jobs (see {@link IoLimits}), so that enough jobs run at once to use
+ * both of them.
+ *
+ * Jobs run on virtual threads if the runtime supports them, otherwise on a
+ * bounded pool of platform threads.
+ */
+public class CopyEngine
+{
+	public interface CopyJob
+	{
+		/**
+		 * Prepare the job, e.g. reserve space on the destination. Jobs are
+		 * begun one after another in their order, so earlier jobs come first
+		 * when space or budget run out; only copying runs concurrently.
+		 *
+		 * @return false, if the job must not be copied
+		 * @throws IOException
+		 */
+		default boolean begin() throws IOException
+		{
+			return true;
+		}
+
+		/**
+		 * @param limits
+		 *            limits that every read and write of the job has to
+		 *            respect
+		 * @throws IOException
+		 */
+		void copy(IoLimits limits) throws IOException;
+
+		/**
+		 * @return the source file that is read by this job
+		 */
+		File getSource();
+	}
+
+	private final IoLimits limits;
+	private final Semaphore runningJobs;
+	private final int poolSize;
+
+	public CopyEngine(SyncOptions options)
+	{
+		this(options.getSourceReadConcurrency(),
+				options.getDestinationWriteConcurrency());
+	}
+
+	public CopyEngine(int sourceReadConcurrency,
+			int destinationWriteConcurrency)
+	{
+		limits = new IoLimits(sourceReadConcurrency, destinationWriteConcurrency);
+		// while some jobs wait for a write, others can read
+		poolSize = sourceReadConcurrency + destinationWriteConcurrency;
+		runningJobs = new Semaphore(poolSize, true);
+	}
+
+	/**
+	 * Run all jobs and wait for them to finish. Jobs failing with a
+	 * {@link FileSystemException} are reported and skipped. Any other
+	 * {@link IOException} cancels the remaining jobs and is rethrown.
+	 *
+	 * @param jobs
+	 * @throws IOException
+	 */
+	public void execute(List<? extends CopyJob> jobs) throws IOException
+	{
+		if (jobs.isEmpty())
+		{
+			return;
+		}
+
+		ExecutorService executor = createExecutor();
+		try
+		{
+			List<Future<?>> futures = new ArrayList<>(jobs.size());
+			AtomicBoolean failed = new AtomicBoolean();
+			for (CopyJob job : jobs)
+			{
+				// bounds the open files, even on virtual threads
+				acquire(runningJobs);
+				if (failed.get())
+				{
+					// the failure is rethrown below
+					runningJobs.release();
+					break;
+				}
+				if (!beginOrReport(job))
+				{
+					runningJobs.release();
+					continue;
+				}
+				futures.add(executor.submit(() -> {
+					run(job, failed);
+					return null;
+				}));
+			}
+
+			for (Future<?> future : futures)
+			{
+				await(future);
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	private void run(CopyJob job, AtomicBoolean failed) throws IOException
+	{
+		try
+		{
+			copyOrReport(job, limits);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			// no further jobs are begun
+			failed.set(true);
+			throw e;
+		}
+		finally
+		{
+			runningJobs.release();
+		}
+	}
+
+	private static void acquire(Semaphore semaphore) throws IOException
+	{
+		try
+		{
+			semaphore.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while copying", e);
+		}
+	}
+
+	/**
+	 * @return false, if the job must not be copied, e.g. as it failed to
+	 *         begin with a {@link FileSystemException}
+	 */
+	static boolean beginOrReport(CopyJob job) throws IOException
+	{
+		try
+		{
+			return job.begin();
+		}
+		catch (FileSystemException fse)
+		{
+			System.err.println("Filesystem Error copying " + job);
+			return false;
+		}
+	}
+
+	static void copyOrReport(CopyJob job, IoLimits limits) throws IOException
+	{
+		try
+		{
+			job.copy(limits);
+		}
+		catch (FileSystemException fse)
+		{
+			// sometimes, music files just can't be copied, even with 'cp' on terminal.
+			// just ignore those files and print an error, as this should be a rare case.
+			System.err.println("Filesystem Error copying " + job);
+		}
+	}
+
+	static void await(Future<?> future) throws IOException
+	{
+		try
+		{
+			future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while copying", e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+			{
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private ExecutorService createExecutor()
+	{
+		try
+		{
+			// Java 21+: the semaphores bound the jobs, so a thread per job is fine
+			Method virtualThreads = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) virtualThreads.invoke(null);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			AtomicInteger counter = new AtomicInteger();
+			return Executors.newFixedThreadPool(poolSize, runnable -> {
+				Thread thread = new Thread(runnable,
+						"melodies2go-copy-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import de.christianleberfinger.melodies2go.CopyEngine.CopyJob;
+
+/**
+ * Order in which missing files are copied.
+ */
+public enum CopyOrder
+{
+	/**
+	 * Order of the selection, i.e. the most valuable tracks first. Best if the
+	 * sync may be stopped by a budget.
+	 */
+	PRIORITY,
+
+	/**
+	 * Ordered by source directory, inode and source path, so that a spinning
+	 * disk or a NAS share reads the library as sequentially as possible.
+	 */
+	SOURCE;
+
+	/**
+	 * @param jobs
+	 *            copy jobs in priority order
+	 * @param batchBySourceDirectory
+	 *            if true, consecutive jobs reading from the same source
+	 *            directory are combined into one job, so that they are read
+	 *            one after another instead of concurrently
+	 * @return the jobs to execute
+	 */
+	public List<CopyJob> arrange(List<? extends CopyJob> jobs,
+			boolean batchBySourceDirectory)
+	{
+		List<CopyJob> ordered = new ArrayList<>(jobs);
+		if (this == SOURCE)
+		{
+			List<SourceKey> keys = new ArrayList<>(jobs.size());
+			for (CopyJob job : jobs)
+			{
+				keys.add(new SourceKey(job));
+			}
+			keys.sort(SourceKey.ORDER);
+
+			ordered.clear();
+			for (SourceKey key : keys)
+			{
+				ordered.add(key.job);
+			}
+		}
+
+		return batchBySourceDirectory ? batch(ordered) : ordered;
+	}
+
+	private static List<CopyJob> batch(List<CopyJob> jobs)
+	{
+		List<CopyJob> batches = new ArrayList<>();
+		List<CopyJob> batch = new ArrayList<>();
+		File batchDirectory = null;
+		for (CopyJob job : jobs)
+		{
+			File directory = job.getSource().getParentFile();
+			if (!batch.isEmpty() && !directory.equals(batchDirectory))
+			{
+				batches.add(new BatchCopyJob(batch));
+				batch = new ArrayList<>();
+			}
+			batch.add(job);
+			batchDirectory = directory;
+		}
+		if (!batch.isEmpty())
+		{
+			batches.add(new BatchCopyJob(batch));
+		}
+		return batches;
+	}
+
+	private static class SourceKey
+	{
+		static final Comparator<SourceKey> ORDER = Comparator
+				.comparing((SourceKey key) -> key.directory)
+				.thenComparingLong(key -> key.inode)
+				.thenComparing(key -> key.job.getSource());
+
+		final CopyJob job;
+		final String directory;
+		final long inode;
+
+		SourceKey(CopyJob job)
+		{
+			this.job = job;
+			this.directory = job.getSource().getParent();
+			this.inode = readInode(job.getSource());
+		}
+
+		/**
+		 * Files are usually laid out on disk in the order of their inodes.
+		 * 
+		 * @return the inode, or 0 if it's not available
+		 */
+		private static long readInode(File file)
+		{
+			try
+			{
+				Object inode = Files.getAttribute(file.toPath(), "unix:ino");
+				return inode instanceof Number ? ((Number) inode).longValue() : 0;
+			}
+			catch (IOException | UnsupportedOperationException
+					| IllegalArgumentException e)
+			{
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Copies the files of one source directory one after another. All files
+	 * are begun with the batch, in their order.
+	 */
+	private static class BatchCopyJob implements CopyJob
+	{
+		private final List<CopyJob> jobs;
+		private final List<CopyJob> begun = new ArrayList<>();
+
+		BatchCopyJob(List<CopyJob> jobs)
+		{
+			this.jobs = jobs;
+		}
+
+		@Override
+		public boolean begin() throws IOException
+		{
+			begun.clear();
+			for (CopyJob job : jobs)
+			{
+				if (CopyEngine.beginOrReport(job))
+				{
+					begun.add(job);
+				}
+			}
+			return !begun.isEmpty();
+		}
+
+		@Override
+		public void copy(IoLimits limits) throws IOException
+		{
+			for (CopyJob job : begun)
+			{
+				CopyEngine.copyOrReport(job, limits);
+			}
+		}
+
+		@Override
+		public File getSource()
+		{
+			return jobs.get(0).getSource();
+		}
+
+		@Override
+		public String toString()
+		{
+			return getSource().getParent() + " (" + jobs.size() + " files)";
+		}
+	}
+}
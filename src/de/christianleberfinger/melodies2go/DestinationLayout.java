@@ -0,0 +1,388 @@
+package de.christianleberfinger.melodies2go;
+
+import java.text.Normalizer;
+import java.text.Normalizer.Form;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.christianleberfinger.melodies2go.parser.ITrack;
+
+/**
+ * Decides the folders of a track file on the destination, e.g.
+ * 'A/Artist/Album'. Artist folders are grouped by their initial, by a two
+ * letter prefix, by genre or by decade.
+ *
+ * FAT directory lookups are linear scans and head units browse large folders
+ * slowly. If a group holds more than the configured number of artists, it's
+ * split by the next letters of the artists' names, e.g. 'S/Sa/Artist/Album',
+ * and further down until every folder is small enough. If there are too many
+ * such prefixes, consecutive ones share a folder, e.g. 'S/Sa-Sc/Sa/Artist'.
+ * The prefixes only depend on the artists that share them, so a new artist
+ * moves few others. Subclasses can provide other groupings.
+ */
+public class DestinationLayout
+{
+	public enum Grouping
+	{
+		INITIAL, TWO_LETTERS, GENRE, DECADE
+	}
+
+	private static final String UNKNOWN = "Unknown";
+
+	private final Grouping grouping;
+	private final int maxFolderEntries;
+
+	/**
+	 * Range folders by group and range key of the artist, for groups that
+	 * have to be split.
+	 */
+	private final Map<String, List<String>> artistRanges = new HashMap<>();
+
+	/**
+	 * Group folders of each artist, if they only depend on the artist.
+	 */
+	private final Map<String, List<String>> artistGroups = new ConcurrentHashMap<>();
+
+	public DestinationLayout()
+	{
+		this(Grouping.INITIAL, 0);
+	}
+
+	/**
+	 * @param grouping
+	 * @param maxFolderEntries
+	 *            maximum number of artist folders in a group folder, 0 for no
+	 *            limit
+	 */
+	public DestinationLayout(Grouping grouping, int maxFolderEntries)
+	{
+		this.grouping = grouping;
+		this.maxFolderEntries = maxFolderEntries;
+	}
+
+	public static DestinationLayout of(SyncOptions options)
+	{
+		return new DestinationLayout(options.getLayoutGrouping(),
+				options.getMaxFolderEntries());
+	}
+
+	/**
+	 * Look at all tracks of the selection before their folders are requested.
+	 * Splits groups that have too many artists.
+	 */
+	public void prepare(Collection<ITrack> tracks)
+	{
+		artistRanges.clear();
+		if (maxFolderEntries <= 0)
+		{
+			return;
+		}
+
+		Map<String, TreeSet<String>> artistsByGroup = new HashMap<>();
+		for (ITrack track : tracks)
+		{
+			String artist = track.getArtistPreferred();
+			if (hasText(artist))
+			{
+				artistsByGroup.computeIfAbsent(groupKey(track, artist),
+						group -> new TreeSet<>(String.CASE_INSENSITIVE_ORDER))
+						.add(artist);
+			}
+		}
+
+		for (Map.Entry<String, TreeSet<String>> entry : artistsByGroup.entrySet())
+		{
+			if (entry.getValue().size() > maxFolderEntries)
+			{
+				List<String> keys = new ArrayList<>();
+				for (String artist : entry.getValue())
+				{
+					keys.add(rangeKey(artist));
+				}
+				Collections.sort(keys);
+				split(entry.getKey(), keys, 0, Collections.emptyList());
+			}
+		}
+	}
+
+	/**
+	 * @param keys
+	 *            sorted range keys that share their first characters
+	 * @param depth
+	 *            number of shared characters
+	 * @param folders
+	 *            range folders of the keys so far
+	 */
+	private void split(String group, List<String> keys, int depth,
+			List<String> folders)
+	{
+		if (keys.size() <= maxFolderEntries)
+		{
+			for (String key : keys)
+			{
+				artistRanges.put(group + "/" + key, folders);
+			}
+			return;
+		}
+
+		// keys that end here come first, then one unit per next character
+		List<List<String>> units = new ArrayList<>();
+		int start = 0;
+		for (int i = 1; i <= keys.size(); i++)
+		{
+			if (i == keys.size() || nextChar(keys.get(i), depth) != nextChar(
+					keys.get(start), depth))
+			{
+				units.add(keys.subList(start, i));
+				start = i;
+			}
+		}
+
+		if (units.size() == 1 && nextChar(keys.get(0), depth) >= 0)
+		{
+			// no folder for a prefix that all keys share
+			split(group, keys, depth + 1, folders);
+		}
+		else
+		{
+			place(group, units, depth, folders);
+		}
+	}
+
+	/**
+	 * Place each unit in its own folder, or group consecutive units into
+	 * range folders if there are too many of them.
+	 */
+	private void place(String group, List<List<String>> units, int depth,
+			List<String> folders)
+	{
+		int maxEntries = Math.max(2, maxFolderEntries);
+		if (units.size() > maxEntries)
+		{
+			int rangeSize = (units.size() + maxEntries - 1) / maxEntries;
+			for (int i = 0; i < units.size(); i += rangeSize)
+			{
+				List<List<String>> range = units.subList(i,
+						Math.min(i + rangeSize, units.size()));
+				place(group, range, depth, range.size() == 1 ? folders
+						: append(folders, label(range.get(0), depth) + "-"
+								+ label(range.get(range.size() - 1), depth)));
+			}
+			return;
+		}
+
+		for (List<String> unit : units)
+		{
+			if (unit.size() == 1 || nextChar(unit.get(0), depth) < 0)
+			{
+				// a single artist, or artists that can't be told apart
+				for (String key : unit)
+				{
+					artistRanges.put(group + "/" + key, folders);
+				}
+			}
+			else
+			{
+				split(group, unit, depth + 1,
+						append(folders, label(unit, depth)));
+			}
+		}
+	}
+
+	private static List<String> append(List<String> folders, String folder)
+	{
+		List<String> appended = new ArrayList<>(folders);
+		appended.add(folder);
+		return Collections.unmodifiableList(appended);
+	}
+
+	/**
+	 * @return the character after the shared ones, or -1 if the key ends
+	 */
+	private static int nextChar(String key, int depth)
+	{
+		return depth < key.length() ? key.charAt(depth) : -1;
+	}
+
+	/**
+	 * @return the name of a unit, e.g. 'Sa' for the keys starting with 'sa'
+	 */
+	private static String label(List<String> unit, int depth)
+	{
+		String key = unit.get(0);
+		String prefix = key.substring(0, Math.min(depth + 1, key.length()));
+		return prefix.isEmpty() ? UNKNOWN
+				: prefix.substring(0, 1).toUpperCase(Locale.ROOT)
+						+ prefix.substring(1);
+	}
+
+	/**
+	 * @return the letters and digits of the artist's name, without accents
+	 *         and in lower case, so that all spellings of a name share their
+	 *         range and range folders are valid, distinct names on any file
+	 *         system
+	 */
+	static String rangeKey(String artist)
+	{
+		String decomposed = Normalizer.normalize(artist, Form.NFD);
+		StringBuilder key = new StringBuilder(decomposed.length());
+		for (int i = 0; i < decomposed.length(); i++)
+		{
+			char c = decomposed.charAt(i);
+			if (Character.isLetterOrDigit(c))
+			{
+				key.append(c);
+			}
+		}
+		return key.toString().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * @return the folders of the given track, below the destination root. The
+	 *         list may be changed by the caller.
+	 */
+	public List<String> getFolders(ITrack track)
+	{
+		List<String> folders = new ArrayList<>(4);
+
+		final String artist = track.getArtistPreferred();
+		final String album = track.getAlbum();
+
+		if (hasText(artist))
+		{
+			List<String> group = groupFolders(track, artist);
+			folders.addAll(group);
+
+			if (!artistRanges.isEmpty())
+			{
+				List<String> ranges = artistRanges.get(
+						String.join("/", group) + "/" + rangeKey(artist));
+				if (ranges != null)
+				{
+					folders.addAll(ranges);
+				}
+			}
+			folders.add(artist);
+
+			if (Objects.nonNull(album))
+			{
+				folders.add(album);
+			}
+		}
+		return folders;
+	}
+
+	private String groupKey(ITrack track, String artist)
+	{
+		return String.join("/", groupFolders(track, artist));
+	}
+
+	private List<String> groupFolders(ITrack track, String artist)
+	{
+		if (isGroupedByArtist())
+		{
+			return artistGroups.computeIfAbsent(artist,
+					key -> getGroupFolders(track, key));
+		}
+		return getGroupFolders(track, artist);
+	}
+
+	/**
+	 * @return true, if the group folders only depend on the artist, so they
+	 *         are computed once per artist
+	 */
+	protected boolean isGroupedByArtist()
+	{
+		return grouping == Grouping.INITIAL || grouping == Grouping.TWO_LETTERS;
+	}
+
+	/**
+	 * @param track
+	 * @param artist
+	 *            the non-empty artist of the track
+	 * @return the folders that contain the artist's folder
+	 */
+	protected List<String> getGroupFolders(ITrack track, String artist)
+	{
+		switch (grouping)
+		{
+		case INITIAL:
+			return Collections.singletonList(getInitialCharacterFolder(artist));
+		case TWO_LETTERS:
+			return Arrays.asList(getInitialCharacterFolder(artist),
+					getTwoLetterFolder(artist));
+		case GENRE:
+			return Collections.singletonList(
+					hasText(track.getGenre()) ? track.getGenre() : UNKNOWN);
+		case DECADE:
+			return Collections.singletonList(getDecadeFolder(track.getYear()));
+		default:
+			throw new IllegalStateException("Unknown grouping " + grouping);
+		}
+	}
+
+	static String getInitialCharacterFolder(final String artist)
+	{
+		if (Character.isDigit(artist.charAt(0)))
+		{
+			return "0-9";
+		}
+
+		String firstLetter = artist.substring(0, 1);
+
+		// Normalize special characters like "o with diaeresis" to a simple "o".
+		// Note: This will most likely lead to suboptimal results with Asian
+		// languages
+		firstLetter = Normalizer.normalize(firstLetter, Form.NFD).substring(0, 1);
+
+		return firstLetter.toUpperCase();
+	}
+
+	private static String prefix(String artist, int length)
+	{
+		return artist.substring(0, Math.min(length, artist.length()));
+	}
+
+	private static String getTwoLetterFolder(String artist)
+	{
+		String prefix = Normalizer.normalize(prefix(artist, 2), Form.NFD)
+				.replaceAll("\\p{M}", "");
+		if (prefix.isEmpty())
+		{
+			return UNKNOWN;
+		}
+		return prefix.substring(0, 1).toUpperCase()
+				+ prefix.substring(1).toLowerCase();
+	}
+
+	private static String getDecadeFolder(String year)
+	{
+		if (year != null && year.length() >= 4)
+		{
+			try
+			{
+				int decade = Integer.parseInt(year.substring(0, 4)) / 10 * 10;
+				return decade + "s";
+			}
+			catch (NumberFormatException e)
+			{
+				// fall through
+			}
+		}
+		return UNKNOWN;
+	}
+
+	private static boolean hasText(String value)
+	{
+		return value != null && value.length() > 0;
+	}
+}
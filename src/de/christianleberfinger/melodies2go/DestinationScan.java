@@ -0,0 +1,570 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Snapshot of the files and folders that currently exist on the destination,
+ * including the size and last modified time of every file. Hidden files and
+ * folders are ignored, but they are counted as entries of their folder. A
+ * scan doesn't depend on the track selection, so it can be taken while the
+ * library is still being parsed.
+ *
+ * One scan answers all questions of a sync (existence, staleness,
+ * dispensability and emptiness of folders), so the destination is only
+ * walked once. If the destination has a {@link SyncManifest}, the scan is
+ * built from the manifest instead of walking the destination tree.
+ *
+ * Files and folders are known by their canonical name, in which every name
+ * element is in Unicode normalization form C (see
+ * {@link FileNameSanitizer#normalize(String)}), so they match the planned
+ * destination files no matter how the device reports names.
+ * {@link #getActualFile(File)} returns the name to access them with.
+ */
+public class DestinationScan
+{
+	private final File destDir;
+	private final Map<File, FileState> files;
+	private final Map<File, Integer> folderEntryCounts;
+
+	/**
+	 * Names of files and folders on the destination, for the few whose
+	 * canonical name differs.
+	 */
+	private final Map<File, File> actualFiles;
+	private volatile Boolean caseSensitive;
+	private final boolean fromManifest;
+	private final boolean resumed;
+
+	private DestinationScan(File destDir, Map<File, FileState> files,
+			Map<File, Integer> folderEntryCounts, Map<File, File> actualFiles,
+			boolean fromManifest, boolean resumed)
+	{
+		this(destDir, files, folderEntryCounts, actualFiles, null,
+				fromManifest, resumed);
+	}
+
+	private DestinationScan(File destDir, Map<File, FileState> files,
+			Map<File, Integer> folderEntryCounts, Map<File, File> actualFiles,
+			Boolean caseSensitive, boolean fromManifest, boolean resumed)
+	{
+		this.caseSensitive = caseSensitive;
+		this.destDir = destDir;
+		this.files = Collections.unmodifiableMap(files);
+		this.folderEntryCounts = Collections.unmodifiableMap(folderEntryCounts);
+		this.actualFiles = actualFiles;
+		this.fromManifest = fromManifest;
+		this.resumed = resumed;
+	}
+
+	/**
+	 * Scan the destination, preferably via its manifest.
+	 */
+	public static DestinationScan scan(File destDir)
+	{
+		return scan(destDir, SyncOptions.defaults());
+	}
+
+	public static DestinationScan scan(File destDir, SyncOptions options)
+	{
+		if (options.isUseManifest())
+		{
+			DestinationScan scan = fromManifest(destDir);
+			if (scan != null)
+			{
+				return scan;
+			}
+		}
+
+		return walk(destDir);
+	}
+
+	/**
+	 * Scan the destination by walking the whole destination tree once.
+	 */
+	public static DestinationScan walk(File destDir)
+	{
+		Path root = destDir.toPath();
+		Map<File, FileState> files = new TreeMap<>();
+		Map<File, Integer> folderEntryCounts = new HashMap<>();
+		Map<File, File> actualFiles = new HashMap<>();
+
+		// canonical names of the folders that are currently visited, so every
+		// folder name is only normalized once
+		Map<Path, File> canonicalFolders = new HashMap<>();
+		canonicalFolders.put(root, destDir);
+
+		try
+		{
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir,
+						BasicFileAttributes attrs)
+				{
+					if (dir.equals(root))
+					{
+						folderEntryCounts.put(destDir, 0);
+						return FileVisitResult.CONTINUE;
+					}
+
+					countEntry(dir);
+					if (isHidden(dir))
+					{
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+
+					File folder = canonical(dir);
+					canonicalFolders.put(dir, folder);
+					folderEntryCounts.put(folder, 0);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir,
+						IOException exc)
+				{
+					canonicalFolders.remove(dir);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file,
+						BasicFileAttributes attrs)
+				{
+					countEntry(file);
+					if (!isHidden(file))
+					{
+						files.put(canonical(file), FileState.of(attrs));
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file,
+						IOException exc)
+				{
+					System.err.println("Can't read " + file + ": " + exc);
+					countEntry(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				private void countEntry(Path entry)
+				{
+					folderEntryCounts.merge(
+							canonicalFolders.get(entry.getParent()), 1,
+							Integer::sum);
+				}
+
+				private File canonical(Path path)
+				{
+					File parent = canonicalFolders.get(path.getParent());
+					String name = path.getFileName().toString();
+					String normalized = FileNameSanitizer.normalize(name);
+
+					// normalize returns the name itself if it's canonical
+					File file = new File(parent, normalized);
+					if (normalized != name || actualFiles.containsKey(parent))
+					{
+						actualFiles.put(file, path.toFile());
+					}
+					return file;
+				}
+			});
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+
+		return new DestinationScan(destDir, files, folderEntryCounts,
+				actualFiles, false, false);
+	}
+
+	/**
+	 * @return true, if names on the destination that only differ in case are
+	 *         different files. Probes an existing entry of the destination
+	 *         directory, or the destination directory itself if its parent is
+	 *         on the same file system. Nothing is written, so a plan doesn't
+	 *         change the destination. False if that isn't possible, e.g. for
+	 *         an empty card, as folding names that only differ in case is
+	 *         safe on either kind of file system.
+	 */
+	static boolean isCaseSensitive(File destDir)
+	{
+		String[] names = destDir.list();
+		if (names != null)
+		{
+			for (String name : names)
+			{
+				String swapped = swapCase(name);
+				if (!swapped.equals(name))
+				{
+					return isDifferent(new File(destDir, name),
+							new File(destDir, swapped));
+				}
+			}
+		}
+
+		File dir = destDir.getAbsoluteFile();
+		File parent = dir.getParentFile();
+		String swapped = swapCase(dir.getName());
+		if (parent == null || swapped.equals(dir.getName()))
+		{
+			return false;
+		}
+		try
+		{
+			// the name is looked up on the parent's file system
+			if (!Files.getFileStore(parent.toPath())
+					.equals(Files.getFileStore(dir.toPath())))
+			{
+				return false;
+			}
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+		return isDifferent(dir, new File(parent, swapped));
+	}
+
+	private static String swapCase(String name)
+	{
+		char[] chars = name.toCharArray();
+		for (int i = 0; i < chars.length; i++)
+		{
+			char c = chars[i];
+			chars[i] = Character.isUpperCase(c) ? Character.toLowerCase(c)
+					: Character.toUpperCase(c);
+		}
+		return new String(chars);
+	}
+
+	private static boolean isDifferent(File file, File other)
+	{
+		try
+		{
+			return !other.exists()
+					|| !Files.isSameFile(file.toPath(), other.toPath());
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	private static boolean isHidden(Path path)
+	{
+		return path.getFileName().toString().startsWith(".");
+	}
+
+	/**
+	 * @return a scan built from the manifest or null, if there's no manifest
+	 *         or it doesn't match the top level of the destination
+	 */
+	private static DestinationScan fromManifest(File destDir)
+	{
+		Map<File, FileState> manifest = SyncManifest.read(destDir);
+		if (manifest == null)
+		{
+			return null;
+		}
+
+		// manifests of older versions may contain names in other forms
+		Map<File, File> actualFiles = new HashMap<>();
+		Map<File, FileState> files = new TreeMap<>();
+		for (Map.Entry<File, FileState> entry : manifest.entrySet())
+		{
+			files.put(canonical(destDir, entry.getKey(), actualFiles),
+					entry.getValue());
+		}
+
+		// continue an interrupted sync
+		boolean resumed;
+		try
+		{
+			resumed = SyncJournal.replay(destDir, files);
+		}
+		catch (IOException e)
+		{
+			System.err.println("Ignoring manifest, unreadable journal: " + e);
+			return null;
+		}
+
+		Map<File, Integer> folderEntryCounts = new HashMap<>();
+		folderEntryCounts.put(destDir, 0);
+		Set<File> topLevel = countFolderEntries(destDir, files.keySet(),
+				folderEntryCounts);
+
+		// Cheap consistency check: the top level of the destination must
+		// match the manifest. Plain files at the top level (e.g. playlists)
+		// that aren't listed are added as well.
+		File[] children = destDir.listFiles();
+		if (children == null)
+		{
+			return null;
+		}
+
+		int foundTopLevel = 0;
+		for (File actualChild : children)
+		{
+			folderEntryCounts.merge(destDir, 1, Integer::sum);
+			if (actualChild.getName().startsWith("."))
+			{
+				continue;
+			}
+
+			File child = canonical(destDir, actualChild, actualFiles);
+			if (topLevel.contains(child))
+			{
+				foundTopLevel++;
+			}
+			else if (actualChild.isDirectory())
+			{
+				System.out.println("Manifest doesn't match " + destDir);
+				return null;
+			}
+			else
+			{
+				try
+				{
+					files.put(child, FileState.read(actualChild));
+				}
+				catch (IOException e)
+				{
+					return null;
+				}
+			}
+		}
+
+		if (foundTopLevel != topLevel.size())
+		{
+			System.out.println("Manifest doesn't match " + destDir);
+			return null;
+		}
+
+		return new DestinationScan(destDir, files, folderEntryCounts,
+				actualFiles, true, resumed);
+	}
+
+	/**
+	 * Count the entries of the folders of the given files, except for the
+	 * destination directory.
+	 * 
+	 * @return the top level entries of the files
+	 */
+	private static Set<File> countFolderEntries(File destDir,
+			Collection<File> files, Map<File, Integer> folderEntryCounts)
+	{
+		Set<File> topLevel = new HashSet<>();
+		for (File file : files)
+		{
+			File entry = file;
+			File parent = entry.getParentFile();
+			while (parent != null && !parent.equals(destDir))
+			{
+				// count each folder only once in its parent
+				boolean isNewFolder = !folderEntryCounts.containsKey(parent);
+				folderEntryCounts.merge(parent, 1, Integer::sum);
+				if (!isNewFolder)
+				{
+					break;
+				}
+				entry = parent;
+				parent = parent.getParentFile();
+			}
+			if (parent != null && parent.equals(destDir))
+			{
+				topLevel.add(entry);
+			}
+		}
+		return topLevel;
+	}
+
+	/**
+	 * The state of the destination after a sync, derived from this scan
+	 * without reading the destination again. Like a scan from the manifest,
+	 * it doesn't know about files that other tools changed in the meantime.
+	 * 
+	 * @param files
+	 *            the files on the destination after the sync
+	 * @param writtenFiles
+	 *            files that the sync copied or moved; they have their
+	 *            canonical name on the destination
+	 */
+	DestinationScan afterSync(Map<File, FileState> files,
+			Collection<File> writtenFiles)
+	{
+		Map<File, File> remainingActualFiles = new HashMap<>(actualFiles);
+		remainingActualFiles.keySet().removeAll(writtenFiles);
+
+		Map<File, Integer> folderEntryCounts = new HashMap<>();
+		folderEntryCounts.put(destDir, 0);
+		Set<File> topLevel = countFolderEntries(destDir, files.keySet(),
+				folderEntryCounts);
+		folderEntryCounts.put(destDir, topLevel.size());
+
+		return new DestinationScan(destDir, new TreeMap<>(files),
+				folderEntryCounts, remainingActualFiles, isCaseSensitive(), true,
+				false);
+	}
+
+	/**
+	 * @return the canonical name of a file below the destination directory.
+	 *         If it differs, the actual names of the file and its folders are
+	 *         recorded.
+	 */
+	private static File canonical(File destDir, File file,
+			Map<File, File> actualFiles)
+	{
+		String prefix = destDir.getPath();
+		String relativePath = file.getPath().substring(prefix.length());
+		String normalized = FileNameSanitizer.normalize(relativePath);
+		if (normalized == relativePath)
+		{
+			return file;
+		}
+
+		File canonical = new File(prefix + normalized);
+		File actual = file;
+		for (File c = canonical; !c.equals(actual); c = c.getParentFile())
+		{
+			actualFiles.put(c, actual);
+			actual = actual.getParentFile();
+		}
+		return canonical;
+	}
+
+	public File getDestDir()
+	{
+		return destDir;
+	}
+
+	/**
+	 * @return all non-hidden files below the destination directory
+	 */
+	public Collection<File> getFiles()
+	{
+		return files.keySet();
+	}
+
+	/**
+	 * @return the states of all non-hidden files below the destination
+	 *         directory
+	 */
+	public Map<File, FileState> getFileStates()
+	{
+		return files;
+	}
+
+	public boolean contains(File file)
+	{
+		return files.containsKey(file);
+	}
+
+	/**
+	 * @return the state of the given file, or null if it doesn't exist
+	 */
+	public FileState getFileState(File file)
+	{
+		return files.get(file);
+	}
+
+	/**
+	 * @return all non-hidden folders below the destination directory,
+	 *         including the destination directory itself
+	 */
+	public Collection<File> getFolders()
+	{
+		return folderEntryCounts.keySet();
+	}
+
+	/**
+	 * Check that the given folders still exist, as far as this scan knows
+	 * them. A scan from the manifest only compares the top level of the
+	 * destination, so this finds folders that were deleted further down.
+	 * 
+	 * @param folders
+	 * @return false, if one of the folders is known but missing
+	 */
+	public boolean hasFolders(Collection<File> folders)
+	{
+		for (File folder : folders)
+		{
+			if (folderEntryCounts.containsKey(folder)
+					&& !getActualFile(folder).isDirectory())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return number of entries (including hidden ones) in the given folder.
+	 *         Hidden entries are unknown for scans built from the manifest.
+	 */
+	public int getEntryCount(File folder)
+	{
+		return folderEntryCounts.getOrDefault(folder, 0);
+	}
+
+	/**
+	 * @return the name of the given file or folder on the destination, which
+	 *         may differ from its canonical name in its Unicode normalization
+	 */
+	public File getActualFile(File file)
+	{
+		return actualFiles.getOrDefault(file, file);
+	}
+
+	/**
+	 * @return true, if names on the destination that only differ in case are
+	 *         different files. Taken from the manifest, so that every sync
+	 *         plans the same names, or probed on the first call.
+	 */
+	public boolean isCaseSensitive()
+	{
+		Boolean caseSensitive = this.caseSensitive;
+		if (caseSensitive == null)
+		{
+			caseSensitive = SyncManifest.readCaseSensitive(destDir);
+		}
+		if (caseSensitive == null)
+		{
+			caseSensitive = isCaseSensitive(destDir);
+			this.caseSensitive = caseSensitive;
+		}
+		return caseSensitive;
+	}
+
+	/**
+	 * @return true, if this scan was built from the destination's manifest
+	 */
+	public boolean isFromManifest()
+	{
+		return fromManifest;
+	}
+
+	/**
+	 * @return true, if the manifest was updated by the journal of an
+	 *         interrupted sync
+	 */
+	public boolean isResumed()
+	{
+		return resumed;
+	}
+}
@@ -0,0 +1,164 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Folders of the planned destination files, stored as a trie. Each folder
+ * name is sanitized by the {@link FileNameSanitizer} and turned into a
+ * {@link File} once, no matter how many tracks share the folder. Folders are
+ * created at most once during a sync.
+ *
+ * On case-insensitive destinations, folder names that only differ in case
+ * (e.g. 'AC/DC' and 'Ac/Dc') are the same folder. The spelling of an existing
+ * folder wins, otherwise the spelling of the first track.
+ */
+public class DestinationTree
+{
+	private static class Node
+	{
+		final File folder;
+		final Map<String, Node> children = new ConcurrentHashMap<>();
+
+		/**
+		 * Children by their sanitized, case-folded name.
+		 */
+		final Map<String, Node> foldedChildren = new ConcurrentHashMap<>();
+
+		Node(File folder)
+		{
+			this.folder = folder;
+		}
+	}
+
+	private final Node root;
+	private volatile boolean caseSensitive = true;
+
+	/**
+	 * Folders that are known to exist.
+	 */
+	private final Set<File> createdFolders = ConcurrentHashMap.newKeySet();
+
+	public DestinationTree(File destDir)
+	{
+		this.root = new Node(destDir.getAbsoluteFile());
+		createdFolders.add(root.folder);
+	}
+
+	/**
+	 * @param folders
+	 *            unsanitized folder names below the destination root
+	 * @param fileName
+	 *            unsanitized file name
+	 * @return the destination file
+	 */
+	public File resolve(List<String> folders, String fileName)
+	{
+		Node node = root;
+		for (String folder : folders)
+		{
+			Node parent = node;
+			node = parent.children.computeIfAbsent(folder,
+					name -> createChild(parent, FileNameSanitizer.sanitize(name)));
+		}
+
+		// leave room for the suffix of the temporary file
+		return new File(node.folder, FileNameSanitizer.sanitize(fileName,
+				FileNameSanitizer.MAX_NAME_LENGTH - TempFile.MAX_SUFFIX_LENGTH));
+	}
+
+	private Node createChild(Node parent, String sanitizedName)
+	{
+		if (caseSensitive)
+		{
+			return new Node(new File(parent.folder, sanitizedName));
+		}
+		return parent.foldedChildren.computeIfAbsent(fold(sanitizedName),
+				key -> new Node(new File(parent.folder, sanitizedName)));
+	}
+
+	static String fold(String name)
+	{
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Set the case sensitivity of the destination. Forgets the folders
+	 * resolved so far.
+	 */
+	public void setCaseSensitive(boolean caseSensitive)
+	{
+		this.caseSensitive = caseSensitive;
+		root.children.clear();
+		root.foldedChildren.clear();
+	}
+
+	/**
+	 * Remember folders that exist on the destination, e.g. from a scan. On
+	 * case-insensitive destinations, their spelling is used for new files.
+	 * 
+	 * @param folders
+	 * @param verified
+	 *            true, if the folders were just seen on the destination, so
+	 *            they don't have to be created. Folders of a manifest may
+	 *            have been deleted since.
+	 */
+	public void addExistingFolders(Collection<File> folders, boolean verified)
+	{
+		if (verified)
+		{
+			createdFolders.addAll(folders);
+		}
+		if (!caseSensitive)
+		{
+			for (File folder : folders)
+			{
+				addExistingFolder(folder.getAbsoluteFile());
+			}
+		}
+	}
+
+	private Node addExistingFolder(File folder)
+	{
+		if (folder.equals(root.folder))
+		{
+			return root;
+		}
+
+		File parentFolder = folder.getParentFile();
+		Node parent = parentFolder == null ? null : addExistingFolder(parentFolder);
+		if (parent == null)
+		{
+			// not below the destination root
+			return null;
+		}
+		return parent.foldedChildren.computeIfAbsent(fold(folder.getName()),
+				key -> new Node(folder));
+	}
+
+	/**
+	 * Create the given folder and its parents, unless that was done before.
+	 */
+	public void createFolder(File folder) throws IOException
+	{
+		if (createdFolders.contains(folder))
+		{
+			return;
+		}
+
+		FileUtils.forceMkdir(folder);
+		for (File created = folder; created != null
+				&& createdFolders.add(created); created = created.getParentFile())
+		{
+			// also remember the parents that forceMkdir created
+		}
+	}
+}
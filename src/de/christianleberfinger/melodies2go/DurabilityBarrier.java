@@ -0,0 +1,285 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Decides when copied files are forced to the destination device. A copied
+ * file only replaces its destination file after its data is durable, and it
+ * is only recorded in the journal after the replacement is durable, too. So
+ * unplugging a card can't leave a file that a sync considers complete but
+ * that has lost its data. The journal is forced with each batch.
+ *
+ * Use the DurabilityBenchmark in the tests to measure the throughput of each
+ * policy on a specific card.
+ */
+public class DurabilityBarrier
+{
+	public enum Policy
+	{
+		/**
+		 * Copied files aren't forced; the operating system writes the data
+		 * back whenever it likes. Fastest, but files that were reported as
+		 * copied may be lost if the card is unplugged soon after a sync.
+		 */
+		NONE,
+
+		/**
+		 * Copied files are forced in batches of a configurable size, and all
+		 * directories touched by a batch are forced once. A final barrier
+		 * forces everything before the sync reports success. The device
+		 * writes large batches, so the cost is mostly the waiting at each
+		 * batch and at the final barrier.
+		 */
+		BATCHED,
+
+		/**
+		 * Every copied file and its directory are forced before the file
+		 * replaces its destination file. Slowest, especially on FAT32 cards
+		 * where every force also rewrites the FAT, and the more so the
+		 * smaller the files are.
+		 */
+		EVERY_FILE
+	}
+
+	/**
+	 * Completes a copy, e.g. by renaming its temporary file.
+	 */
+	public interface Completion
+	{
+		void complete() throws IOException;
+	}
+
+	private final Policy policy;
+	private final long batchSize;
+
+	private final List<File> pendingFiles = new ArrayList<>();
+	private final List<Completion> pendingCompletions = new ArrayList<>();
+	private final List<Completion> pendingRecords = new ArrayList<>();
+	private long pendingBytes;
+	private SyncJournal journal;
+
+	public DurabilityBarrier(Policy policy, long batchSize)
+	{
+		this.policy = policy;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param journal
+	 *            journal to force after the completed files were recorded
+	 */
+	public synchronized void setJournal(SyncJournal journal)
+	{
+		this.journal = journal;
+	}
+
+	/**
+	 * Run the completion of a written file as soon as the file is durable
+	 * according to the policy, and record it as soon as the completion is
+	 * durable.
+	 *
+	 * @param file
+	 *            the written file
+	 * @param size
+	 *            number of bytes written
+	 * @param completion
+	 *            e.g. renames the file
+	 * @param record
+	 *            e.g. records the file in the journal
+	 * @throws IOException
+	 */
+	public void completeWhenDurable(File file, long size, Completion completion,
+			Completion record) throws IOException
+	{
+		switch (policy)
+		{
+		case NONE:
+			completion.complete();
+			record.complete();
+			break;
+		case EVERY_FILE:
+			force(file);
+			completion.complete();
+			forceDirectory(file.getParentFile());
+			record.complete();
+			forceJournal();
+			break;
+		case BATCHED:
+			synchronized (this)
+			{
+				pendingFiles.add(file);
+				pendingCompletions.add(completion);
+				pendingRecords.add(record);
+				pendingBytes += size;
+				if (pendingBytes >= batchSize)
+				{
+					flush();
+				}
+			}
+			break;
+		default:
+			throw new IllegalStateException("Unknown policy " + policy);
+		}
+	}
+
+	/**
+	 * Final barrier: complete all pending files.
+	 */
+	public synchronized void finish() throws IOException
+	{
+		flush();
+	}
+
+	private synchronized void forceJournal() throws IOException
+	{
+		if (journal != null)
+		{
+			journal.force();
+		}
+	}
+
+	/**
+	 * Complete the pending batch. A file that can't be forced or completed
+	 * is reported and only that file is lost; other failures are rethrown
+	 * after the rest of the batch was completed.
+	 */
+	private void flush() throws IOException
+	{
+		// take the batch out first, so a failure can't leave it pending
+		List<File> files = new ArrayList<>(pendingFiles);
+		List<Completion> completions = new ArrayList<>(pendingCompletions);
+		List<Completion> records = new ArrayList<>(pendingRecords);
+		pendingFiles.clear();
+		pendingCompletions.clear();
+		pendingRecords.clear();
+		pendingBytes = 0;
+
+		IOException failure = null;
+		boolean[] forced = new boolean[files.size()];
+		for (int i = 0; i < files.size(); i++)
+		{
+			try
+			{
+				force(files.get(i));
+				forced[i] = true;
+			}
+			catch (IOException e)
+			{
+				failure = report(files.get(i), e, failure);
+			}
+		}
+
+		Set<File> directories = new LinkedHashSet<>();
+		boolean[] completed = new boolean[files.size()];
+		for (int i = 0; i < files.size(); i++)
+		{
+			if (!forced[i])
+			{
+				continue;
+			}
+			try
+			{
+				completions.get(i).complete();
+				completed[i] = true;
+				directories.add(files.get(i).getParentFile());
+			}
+			catch (IOException e)
+			{
+				failure = report(files.get(i), e, failure);
+			}
+		}
+		for (File directory : directories)
+		{
+			forceDirectory(directory);
+		}
+
+		for (int i = 0; i < files.size(); i++)
+		{
+			if (!completed[i])
+			{
+				continue;
+			}
+			try
+			{
+				records.get(i).complete();
+			}
+			catch (IOException e)
+			{
+				failure = report(files.get(i), e, failure);
+			}
+		}
+		if (!directories.isEmpty())
+		{
+			try
+			{
+				forceJournal();
+			}
+			catch (IOException e)
+			{
+				if (failure == null)
+				{
+					throw e;
+				}
+				failure.addSuppressed(e);
+			}
+		}
+
+		if (failure != null)
+		{
+			throw failure;
+		}
+	}
+
+	/**
+	 * @return the failure to rethrow after the batch, if any
+	 */
+	private static IOException report(File file, IOException e,
+			IOException failure)
+	{
+		if (e instanceof FileSystemException)
+		{
+			System.err.println("Can't complete " + file + ": " + e);
+			return failure;
+		}
+		if (failure == null)
+		{
+			return e;
+		}
+		failure.addSuppressed(e);
+		return failure;
+	}
+
+	private static void force(File file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.WRITE))
+		{
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Makes renames durable. Not every platform can open directories, so
+	 * this is best effort.
+	 */
+	static void forceDirectory(File directory)
+	{
+		try (FileChannel channel = FileChannel.open(directory.toPath(),
+				StandardOpenOption.READ))
+		{
+			channel.force(true);
+		}
+		catch (IOException e)
+		{
+			// e.g. on Windows
+		}
+	}
+}
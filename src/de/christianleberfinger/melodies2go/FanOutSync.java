@@ -0,0 +1,218 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import de.christianleberfinger.melodies2go.CopyEngine.CopyJob;
+import de.christianleberfinger.melodies2go.FileSync.SyncedTrack;
+import de.christianleberfinger.melodies2go.FileSync.TrackCopyJob;
+
+/**
+ * Syncs several destinations at once, e.g. a set of identical SD cards. Each
+ * source file that is missing on more than one destination is read only once
+ * and written to all of them in parallel; see {@link FileCopier#copy(File, List)}.
+ * Link modes and preallocation apply as for a single destination.
+ *
+ * Everything else (planning, moves, deletes, journal and manifest) is done by
+ * a {@link FileSync} per destination.
+ */
+public class FanOutSync
+{
+	private final List<FileSync> fileSyncs;
+	private final SyncOptions options;
+	private final FileCopier copier;
+
+	public FanOutSync(List<FileSync> fileSyncs, SyncOptions options)
+	{
+		this.fileSyncs = fileSyncs;
+		this.options = options;
+		this.copier = new FileCopier(options);
+	}
+
+	/**
+	 * @param destinationScans
+	 *            one scan per destination, in the order of the syncs
+	 * @return the synced tracks of each destination
+	 * @throws IOException
+	 */
+	public List<List<SyncedTrack>> sync(List<DestinationScan> destinationScans)
+			throws IOException
+	{
+		List<FileSync> prepared = new ArrayList<>(fileSyncs.size());
+		try
+		{
+			// group the copies of all destinations by source, in priority order
+			Map<File, List<TrackCopyJob>> copiesBySource = new LinkedHashMap<>();
+			for (int i = 0; i < fileSyncs.size(); i++)
+			{
+				FileSync fileSync = fileSyncs.get(i);
+				System.out.println("Destination " + fileSync.getDestDir());
+				List<TrackCopyJob> copies = fileSync
+						.prepare(fileSync.plan(destinationScans.get(i)));
+				prepared.add(fileSync);
+
+				for (TrackCopyJob copy : copies)
+				{
+					copiesBySource.computeIfAbsent(copy.getSource(),
+							source -> new ArrayList<>()).add(copy);
+				}
+			}
+
+			List<CopyJob> jobs = new ArrayList<>(copiesBySource.size());
+			for (Entry<File, List<TrackCopyJob>> entry : copiesBySource.entrySet())
+			{
+				List<TrackCopyJob> copies = entry.getValue();
+				jobs.add(copies.size() == 1 ? copies.get(0)
+						: new FanOutCopyJob(entry.getKey(), copies));
+			}
+
+			System.out.println("Copying missing files");
+			new CopyEngine(options).execute(options.getCopyOrder().arrange(jobs,
+					options.isBatchBySourceDirectory()));
+		}
+		catch (IOException | RuntimeException e)
+		{
+			for (FileSync fileSync : prepared)
+			{
+				fileSync.abort();
+			}
+			throw e;
+		}
+
+		// the destinations don't depend on each other, so each one is
+		// completed and gets its manifest even if another one fails
+		List<List<SyncedTrack>> syncedTracks = new ArrayList<>(fileSyncs.size());
+		Exception failure = null;
+		for (FileSync fileSync : fileSyncs)
+		{
+			try
+			{
+				syncedTracks.add(fileSync.complete());
+			}
+			catch (IOException | RuntimeException e)
+			{
+				// complete() has closed the journal, so the next sync
+				// resumes this destination
+				System.err.println("Can't complete " + fileSync.getDestDir()
+						+ ": " + e);
+				if (failure == null)
+				{
+					failure = e;
+				}
+				else
+				{
+					failure.addSuppressed(e);
+				}
+			}
+		}
+
+		if (failure instanceof IOException)
+		{
+			throw (IOException) failure;
+		}
+		if (failure != null)
+		{
+			throw (RuntimeException) failure;
+		}
+		return syncedTracks;
+	}
+
+	/**
+	 * Copies one source to all destinations that are missing it.
+	 */
+	private class FanOutCopyJob implements CopyJob
+	{
+		private final File source;
+		private final List<TrackCopyJob> copies;
+		private final List<TrackCopyJob> started = new ArrayList<>();
+
+		FanOutCopyJob(File source, List<TrackCopyJob> copies)
+		{
+			this.source = source;
+			this.copies = copies;
+		}
+
+		@Override
+		public boolean begin() throws IOException
+		{
+			started.clear();
+			for (TrackCopyJob copy : copies)
+			{
+				if (CopyEngine.beginOrReport(copy))
+				{
+					started.add(copy);
+				}
+			}
+			return !started.isEmpty();
+		}
+
+		@Override
+		public void copy(IoLimits limits) throws IOException
+		{
+			List<TrackCopyJob> copied = new ArrayList<>(started.size());
+			List<TempFile> tempFiles = new ArrayList<>(started.size());
+			List<IoLimits.Limit> writes = new ArrayList<>(started.size());
+			try
+			{
+				for (TrackCopyJob copy : started)
+				{
+					// e.g. a staging folder next to the library
+					if (!copy.link())
+					{
+						copied.add(copy);
+						tempFiles.add(copy.getTempFile());
+						writes.add(copy.getWrites(limits));
+					}
+				}
+				if (tempFiles.isEmpty())
+				{
+					return;
+				}
+
+				System.out.println("Copying " + source + " to "
+						+ tempFiles.size() + " destinations");
+				Map<File, IOException> failures = copier.copy(source, tempFiles,
+						limits.getSourceReads(), writes);
+
+				for (int i = 0; i < copied.size(); i++)
+				{
+					TempFile tempFile = tempFiles.get(i);
+					IOException failure = failures.get(tempFile);
+					if (failure == null)
+					{
+						copied.get(i).complete(tempFile);
+					}
+					else
+					{
+						System.err.println("Error copying " + copied.get(i)
+								+ ": " + failure);
+					}
+				}
+			}
+			finally
+			{
+				for (TrackCopyJob copy : started)
+				{
+					copy.getTempFile().close();
+				}
+			}
+		}
+
+		@Override
+		public File getSource()
+		{
+			return source;
+		}
+
+		@Override
+		public String toString()
+		{
+			return source.toString();
+		}
+	}
+}
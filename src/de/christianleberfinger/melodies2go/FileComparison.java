@@ -0,0 +1,170 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Decides whether an existing destination file still matches its source.
+ */
+public class FileComparison
+{
+	public enum Mode
+	{
+		/**
+		 * Existing files are never refreshed.
+		 */
+		EXISTENCE,
+
+		/**
+		 * Files are refreshed if size or last modified time differ. Copies
+		 * keep the source's last modified time, so this detects re-encoded
+		 * or re-tagged sources as well as truncated copies.
+		 */
+		SIZE_AND_MTIME,
+
+		/**
+		 * Like {@link #SIZE_AND_MTIME}, but files of equal size are compared
+		 * by a hash of their content instead of their last modified time.
+		 * Reads both files completely.
+		 */
+		CONTENT
+	}
+
+	/**
+	 * FAT stores timestamps with a resolution of two seconds.
+	 */
+	private static final long MTIME_TOLERANCE_MILLIS = 2000;
+
+	/**
+	 * FAT stores local time, so timestamps of existing files appear shifted
+	 * by one hour after a daylight saving time change.
+	 */
+	private static final long DST_OFFSET_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+	/**
+	 * File store types of FAT and exFAT on Linux, macOS and Windows.
+	 */
+	private static final List<String> LOCAL_TIME_STORE_TYPES = Arrays.asList(
+			"vfat", "msdos", "fat", "fat16", "fat32", "exfat");
+
+	/**
+	 * Number of bytes at the beginning and the end of a file that go into its
+	 * fingerprint.
+	 */
+	private static final int FINGERPRINT_CHUNK_SIZE = 64 * 1024;
+
+	private final Mode mode;
+
+	/**
+	 * Whether the destination stores local time, so that timestamps may be
+	 * shifted by {@link #DST_OFFSET_MILLIS}.
+	 */
+	private final boolean localTime;
+
+	public FileComparison(Mode mode, File destDir)
+	{
+		this.mode = mode;
+		this.localTime = mode == Mode.SIZE_AND_MTIME && isLocalTime(destDir);
+	}
+
+	/**
+	 * @param source
+	 * @param sourceState
+	 * @param dest
+	 * @param destState
+	 *            state of the existing destination file
+	 * @return true, if the destination file doesn't need to be copied again
+	 * @throws IOException
+	 */
+	public boolean isUpToDate(File source, FileState sourceState, File dest,
+			FileState destState) throws IOException
+	{
+		switch (mode)
+		{
+		case EXISTENCE:
+			return true;
+		case SIZE_AND_MTIME:
+			return sourceState.getSize() == destState.getSize()
+					&& isSameTime(sourceState.getLastModified(),
+							destState.getLastModified(), localTime);
+		case CONTENT:
+			return sourceState.getSize() == destState.getSize()
+					&& FileVerifier.hash(source)
+							.equals(FileVerifier.hashUnmapped(dest));
+		default:
+			throw new IllegalStateException("Unknown mode " + mode);
+		}
+	}
+
+	static boolean isSameTime(long sourceMillis, long destMillis,
+			boolean localTime)
+	{
+		long difference = Math.abs(sourceMillis - destMillis);
+		return difference <= MTIME_TOLERANCE_MILLIS || localTime && Math
+				.abs(difference - DST_OFFSET_MILLIS) <= MTIME_TOLERANCE_MILLIS;
+	}
+
+	/**
+	 * @param destDir
+	 *            destination directory, which doesn't need to exist yet
+	 * @return true, if the destination is on a FAT or exFAT file system
+	 */
+	static boolean isLocalTime(File destDir)
+	{
+		File dir = destDir.getAbsoluteFile();
+		while (dir != null && !dir.exists())
+		{
+			dir = dir.getParentFile();
+		}
+		if (dir == null)
+		{
+			return false;
+		}
+		try
+		{
+			String type = Files.getFileStore(dir.toPath()).type();
+			return LOCAL_TIME_STORE_TYPES
+					.contains(type.toLowerCase(Locale.ROOT));
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Cheap content fingerprint that only reads the beginning and the end of
+	 * the file. Audio files of equal size differ in both the tags at the
+	 * start and the audio data at the end, so this is sufficient to recognize
+	 * a file that was moved on the destination.
+	 */
+	public static HashCode fingerprint(File file) throws IOException
+	{
+		try (RandomAccessFile in = new RandomAccessFile(file, "r"))
+		{
+			long size = in.length();
+			Hasher hasher = Hashing.murmur3_128().newHasher().putLong(size);
+			byte[] chunk = new byte[(int) Math.min(size, FINGERPRINT_CHUNK_SIZE)];
+
+			in.readFully(chunk);
+			hasher.putBytes(chunk);
+			if (size > chunk.length)
+			{
+				in.seek(size - chunk.length);
+				in.readFully(chunk);
+				hasher.putBytes(chunk);
+			}
+			return hasher.hash();
+		}
+	}
+}
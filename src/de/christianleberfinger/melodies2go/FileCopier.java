@@ -0,0 +1,796 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies files via {@link FileChannel}s.
+ *
+ * {@link Method#TRANSFER} uses {@link FileChannel#transferTo}, which lets the
+ * kernel copy the data without passing it through the JVM
+ * (copy_file_range/sendfile on Linux). If the file system doesn't support
+ * that, the copy continues with large direct buffers. {@link Method#BUFFERED}
+ * always uses direct buffers.
+ *
+ * {@link Method#PIPELINED} reads ahead on a separate thread into a small ring
+ * of direct buffers while the calling thread writes behind. If a slow
+ * destination (e.g. a cheap SD card) stalls, the source keeps reading until
+ * the ring is full, so the throughput approaches the rate of the slower
+ * device instead of the sum of both latencies.
+ *
+ * A copy can continue a partial copy from a previous attempt, see
+ * {@link #getResumableLength(File, File)}.
+ *
+ * {@link #copy(File, List)} reads a source once and writes it to several
+ * targets, each on its own thread. A slow target falls behind by at most the
+ * ring of buffers before it stalls the reader. Each target continues its own
+ * partial copy.
+ *
+ * The reads and writes of a copy can be limited, see {@link IoLimits}.
+ *
+ * The last modified time of the source is applied to the target.
+ */
+public class FileCopier
+{
+	public enum Method
+	{
+		TRANSFER, BUFFERED, PIPELINED
+	}
+
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+	public static final int DEFAULT_BUFFER_COUNT = 4;
+
+	/**
+	 * Size of the block at the end of a partial copy that has to match the
+	 * source before the copy is continued.
+	 */
+	private static final int RESUME_VERIFY_SIZE = 64 * 1024;
+
+	/**
+	 * Marks the end of the data in the ring of a pipelined copy. Sent the
+	 * other way round, it asks the reader to stop.
+	 */
+	private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+	private static final ExecutorService HELPERS = Executors
+			.newCachedThreadPool(runnable -> {
+				Thread thread = new Thread(runnable, "melodies2go-copy-helper");
+				thread.setDaemon(true);
+				return thread;
+			});
+
+	private final Method method;
+	private final int bufferSize;
+	private final int bufferCount;
+	private final boolean preallocate;
+
+	/**
+	 * Direct buffers are expensive to allocate, so they are reused by
+	 * subsequent copies.
+	 */
+	private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+	public FileCopier(SyncOptions options)
+	{
+		this(options.getCopyMethod(), options.getCopyBufferSize(),
+				options.getCopyBufferCount(), options.isPreallocate());
+	}
+
+	public FileCopier(Method method, int bufferSize)
+	{
+		this(method, bufferSize, DEFAULT_BUFFER_COUNT);
+	}
+
+	/**
+	 * @param method
+	 * @param bufferSize
+	 *            size of each direct buffer
+	 * @param bufferCount
+	 *            number of buffers in the ring of a pipelined copy
+	 */
+	public FileCopier(Method method, int bufferSize, int bufferCount)
+	{
+		this(method, bufferSize, bufferCount, false);
+	}
+
+	/**
+	 * @param method
+	 * @param bufferSize
+	 * @param bufferCount
+	 * @param preallocate
+	 *            if true, a new target is extended to its final size before
+	 *            the data is written, so that the file system can allocate it
+	 *            in one piece even if other files are written at the same
+	 *            time. File systems without sparse files (FAT) fill the
+	 *            extended space with zeros, and a preallocated partial copy
+	 *            can't be resumed.
+	 */
+	public FileCopier(Method method, int bufferSize, int bufferCount,
+			boolean preallocate)
+	{
+		this.method = method;
+		this.bufferSize = bufferSize;
+		this.bufferCount = Math.max(bufferCount, 2);
+		this.preallocate = preallocate;
+	}
+
+	public void copy(File source, File target) throws IOException
+	{
+		copy(source, target, 0);
+	}
+
+	/**
+	 * Copy the source to the target, keeping the first bytes of the target.
+	 * 
+	 * @param source
+	 * @param target
+	 * @param offset
+	 *            number of bytes that the target already has in common with
+	 *            the source
+	 * @throws IOException
+	 */
+	public void copy(File source, File target, long offset) throws IOException
+	{
+		copy(source, target, offset, IoLimits.UNLIMITED, IoLimits.UNLIMITED);
+	}
+
+	/**
+	 * Copy the source to the target, keeping the first bytes of the target.
+	 * 
+	 * @param source
+	 * @param target
+	 * @param offset
+	 *            number of bytes that the target already has in common with
+	 *            the source
+	 * @param reads
+	 *            limit of the reads from the source
+	 * @param writes
+	 *            limit of the writes to the target
+	 * @throws IOException
+	 */
+	public void copy(File source, File target, long offset,
+			IoLimits.Limit reads, IoLimits.Limit writes) throws IOException
+	{
+		try (FileChannel in = FileChannel.open(source.toPath(),
+				StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(target.toPath(),
+						StandardOpenOption.WRITE, StandardOpenOption.CREATE))
+		{
+			long size = in.size();
+			long position = Math.min(offset, size);
+			out.truncate(position);
+			out.position(position);
+			if (preallocate && position == 0 && size > 0)
+			{
+				// there's no fallocate in Java, writing the last byte is the
+				// portable equivalent
+				writes.run(() -> out.write(ByteBuffer.allocate(1), size - 1));
+			}
+
+			if (method == Method.PIPELINED)
+			{
+				copyPipelined(in, out, position, reads, writes);
+				position = size;
+			}
+			else if (method == Method.TRANSFER)
+			{
+				position = transfer(in, out, position, size, reads, writes);
+			}
+
+			if (position < size)
+			{
+				copyBuffered(in, out, position, reads, writes);
+			}
+		}
+
+		Files.setLastModifiedTime(target.toPath(),
+				Files.getLastModifiedTime(source.toPath()));
+	}
+
+	/**
+	 * Copy the source to several targets, reading it only once. Each target
+	 * keeps as much of its partial copy as
+	 * {@link #getResumableLength(File, File)} allows; the source is read from
+	 * the smallest of these offsets.
+	 * 
+	 * @param source
+	 * @param targets
+	 * @return the targets that couldn't be written, with the reason. A failed
+	 *         target doesn't affect the others.
+	 * @throws IOException
+	 *             if the source can't be read
+	 */
+	public Map<File, IOException> copy(File source, List<? extends File> targets)
+			throws IOException
+	{
+		return copy(source, targets, IoLimits.UNLIMITED,
+				Collections.nCopies(targets.size(), IoLimits.UNLIMITED));
+	}
+
+	/**
+	 * Copy the source to several targets, reading it only once.
+	 * 
+	 * @param source
+	 * @param targets
+	 * @param reads
+	 *            limit of the reads from the source
+	 * @param writes
+	 *            limit of the writes to each target
+	 * @return the targets that couldn't be written, with the reason
+	 * @throws IOException
+	 *             if the source can't be read
+	 * @see #copy(File, List)
+	 */
+	public Map<File, IOException> copy(File source, List<? extends File> targets,
+			IoLimits.Limit reads, List<IoLimits.Limit> writes) throws IOException
+	{
+		Map<File, IOException> failures = new LinkedHashMap<>();
+		List<TeeWriter> writers = new ArrayList<>(targets.size());
+		try (FileChannel in = FileChannel.open(source.toPath(),
+				StandardOpenOption.READ))
+		{
+			for (int i = 0; i < targets.size(); i++)
+			{
+				File target = targets.get(i);
+				try
+				{
+					writers.add(new TeeWriter(target,
+							getResumableLength(source, target), in.size(),
+							writes.get(i)));
+				}
+				catch (IOException e)
+				{
+					failures.put(target, e);
+				}
+			}
+
+			List<Future<?>> futures = new ArrayList<>(writers.size());
+			for (TeeWriter writer : writers)
+			{
+				futures.add(HELPERS.submit(writer));
+			}
+
+			BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(bufferCount);
+			for (int i = 0; i < bufferCount; i++)
+			{
+				free.add(new Chunk(acquireBuffer(), free));
+			}
+
+			try
+			{
+				long position = Long.MAX_VALUE;
+				for (TeeWriter writer : writers)
+				{
+					position = Math.min(position, writer.offset);
+				}
+				tee(in, position, free, writers, reads);
+			}
+			finally
+			{
+				for (TeeWriter writer : writers)
+				{
+					writer.chunks.add(Chunk.END_OF_STREAM);
+				}
+
+				boolean stopped = true;
+				for (Future<?> future : futures)
+				{
+					stopped &= awaitQuietly(future);
+				}
+				if (stopped)
+				{
+					// all chunks are back in the free queue
+					for (Chunk chunk : free)
+					{
+						releaseBuffer(chunk.buffer);
+					}
+				}
+			}
+		}
+
+		for (TeeWriter writer : writers)
+		{
+			if (writer.failure == null)
+			{
+				try
+				{
+					Files.setLastModifiedTime(writer.target.toPath(),
+							Files.getLastModifiedTime(source.toPath()));
+				}
+				catch (IOException e)
+				{
+					writer.failure = e;
+				}
+			}
+			if (writer.failure != null)
+			{
+				failures.put(writer.target, writer.failure);
+			}
+		}
+		return failures;
+	}
+
+	private static void tee(FileChannel in, long position,
+			BlockingQueue<Chunk> free, List<TeeWriter> writers,
+			IoLimits.Limit reads) throws IOException
+	{
+		try
+		{
+			while (true)
+			{
+				Chunk chunk = free.take();
+				ByteBuffer buffer = chunk.buffer;
+				buffer.clear();
+				chunk.position = position;
+
+				int read = readFully(in, buffer, position, reads);
+				position += buffer.position();
+				buffer.flip();
+
+				if (buffer.hasRemaining() && !writers.isEmpty())
+				{
+					chunk.pending.set(writers.size());
+					for (TeeWriter writer : writers)
+					{
+						// never blocks, there are fewer chunks than slots
+						writer.chunks.add(chunk);
+					}
+				}
+				else
+				{
+					free.add(chunk);
+				}
+
+				if (read < 0)
+				{
+					return;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while copying");
+		}
+	}
+
+	/**
+	 * Buffer that is shared by all writers of a tee copy. It goes back to the
+	 * free queue when the last writer is done with it.
+	 */
+	private static class Chunk
+	{
+		static final Chunk END_OF_STREAM = new Chunk(null, null);
+
+		final ByteBuffer buffer;
+		final BlockingQueue<Chunk> free;
+		final AtomicInteger pending = new AtomicInteger();
+
+		/**
+		 * Position of the data in the source. Set before the chunk is handed
+		 * to the writers.
+		 */
+		long position;
+
+		Chunk(ByteBuffer buffer, BlockingQueue<Chunk> free)
+		{
+			this.buffer = buffer;
+			this.free = free;
+		}
+
+		void release()
+		{
+			if (pending.decrementAndGet() == 0)
+			{
+				free.add(this);
+			}
+		}
+	}
+
+	/**
+	 * Writes the chunks of a tee copy to one target, starting at its offset.
+	 * After a write error, the remaining chunks are only released.
+	 */
+	private class TeeWriter implements Runnable
+	{
+		final File target;
+		final long offset;
+		final IoLimits.Limit writes;
+		final FileChannel out;
+		final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(
+				bufferCount + 1);
+		volatile IOException failure;
+
+		TeeWriter(File target, long offset, long size, IoLimits.Limit writes)
+				throws IOException
+		{
+			this.target = target;
+			this.offset = offset;
+			this.writes = writes;
+			this.out = FileChannel.open(target.toPath(),
+					StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+			try
+			{
+				out.truncate(offset);
+				out.position(offset);
+				if (preallocate && offset == 0 && size > 0)
+				{
+					// see copy(File, File, long, Limit, Limit)
+					writes.run(() -> out.write(ByteBuffer.allocate(1), size - 1));
+				}
+			}
+			catch (IOException e)
+			{
+				out.close();
+				throw e;
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					Chunk chunk = chunks.take();
+					if (chunk == Chunk.END_OF_STREAM)
+					{
+						break;
+					}
+
+					try
+					{
+						ByteBuffer data = chunk.buffer.duplicate();
+						// skip the part that the target already has
+						long skip = offset - chunk.position;
+						if (skip > 0)
+						{
+							data.position((int) Math.min(skip, data.limit()));
+						}
+						while (failure == null && data.hasRemaining())
+						{
+							writes.run(() -> out.write(data));
+						}
+					}
+					catch (IOException e)
+					{
+						failure = e;
+					}
+					finally
+					{
+						chunk.release();
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				failure = new InterruptedIOException("Interrupted while copying");
+			}
+			finally
+			{
+				try
+				{
+					out.close();
+				}
+				catch (IOException e)
+				{
+					if (failure == null)
+					{
+						failure = e;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check how much of a partial copy from a previous attempt can be kept.
+	 * The block at the end of the partial copy must match the source, which
+	 * detects partial copies of a different version of the source as well as
+	 * data that didn't make it to the device before it was unplugged.
+	 * Partial copies with the full size of the source are never kept, as
+	 * they may be preallocated.
+	 * 
+	 * @param source
+	 * @param partial
+	 * @return the number of bytes that can be kept, 0 if the copy has to
+	 *         start from the beginning
+	 * @throws IOException
+	 */
+	public static long getResumableLength(File source, File partial)
+			throws IOException
+	{
+		if (!partial.isFile())
+		{
+			return 0;
+		}
+
+		try (FileChannel in = FileChannel.open(source.toPath(),
+				StandardOpenOption.READ);
+				FileChannel copy = FileChannel.open(partial.toPath(),
+						StandardOpenOption.READ))
+		{
+			// a preallocated partial copy has the full size, and its zeros
+			// could match a source that ends in silence
+			long length = copy.size();
+			if (length == 0 || length >= in.size())
+			{
+				return 0;
+			}
+
+			int verifySize = (int) Math.min(length, RESUME_VERIFY_SIZE);
+			long position = length - verifySize;
+			ByteBuffer expected = readFully(in, position, verifySize);
+			ByteBuffer actual = readFully(copy, position, verifySize);
+			return expected.equals(actual) ? length : 0;
+		}
+	}
+
+	private static ByteBuffer readFully(FileChannel channel, long position,
+			int length) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+			{
+				break;
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Fill the buffer from the given position, taking a read permit per call.
+	 * 
+	 * @return the result of the last read, negative at the end of the file
+	 */
+	private static int readFully(FileChannel in, ByteBuffer buffer,
+			long position, IoLimits.Limit reads) throws IOException
+	{
+		int read = 0;
+		while (buffer.hasRemaining())
+		{
+			long from = position + buffer.position();
+			read = reads.run(() -> in.read(buffer, from));
+			if (read < 0)
+			{
+				break;
+			}
+		}
+		return read;
+	}
+
+	/**
+	 * @return the number of bytes that were transferred. May be less than the
+	 *         file size if the file system doesn't support transfers.
+	 */
+	private long transfer(FileChannel in, FileChannel out, long position,
+			long size, IoLimits.Limit reads, IoLimits.Limit writes)
+	{
+		try
+		{
+			while (position < size)
+			{
+				// the kernel reads and writes, so both permits are held, for
+				// one buffer at a time
+				long from = position;
+				long count = Math.min(size - position, bufferSize);
+				long transferred = reads.run(() -> writes
+						.run(() -> in.transferTo(from, count, out)));
+				if (transferred <= 0)
+				{
+					break;
+				}
+				position += transferred;
+			}
+		}
+		catch (IOException e)
+		{
+			// e.g. "Operation not supported": continue with buffered copy
+		}
+		return position;
+	}
+
+	private void copyBuffered(FileChannel in, FileChannel out, long position,
+			IoLimits.Limit reads, IoLimits.Limit writes) throws IOException
+	{
+		ByteBuffer buffer = acquireBuffer();
+		try
+		{
+			out.position(position);
+			long readPosition = position;
+			while (true)
+			{
+				long from = readPosition;
+				int read = reads.run(() -> in.read(buffer, from));
+				if (read < 0 && buffer.position() == 0)
+				{
+					break;
+				}
+				if (read > 0)
+				{
+					readPosition += read;
+				}
+
+				buffer.flip();
+				writes.run(() -> out.write(buffer));
+				buffer.compact();
+			}
+		}
+		finally
+		{
+			releaseBuffer(buffer);
+		}
+	}
+
+	private void copyPipelined(FileChannel in, FileChannel out, long position,
+			IoLimits.Limit reads, IoLimits.Limit writes) throws IOException
+	{
+		// one spare slot each for END_OF_STREAM, so that it never blocks
+		BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(
+				bufferCount + 1);
+		BlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<>(
+				bufferCount + 1);
+		for (int i = 0; i < bufferCount; i++)
+		{
+			free.add(acquireBuffer());
+		}
+
+		Future<Void> reader = HELPERS
+				.submit(() -> readAhead(in, position, free, filled, reads));
+		try
+		{
+			while (true)
+			{
+				ByteBuffer buffer = filled.take();
+				if (buffer == END_OF_STREAM)
+				{
+					break;
+				}
+
+				buffer.flip();
+				while (buffer.hasRemaining())
+				{
+					writes.run(() -> out.write(buffer));
+				}
+				buffer.clear();
+				free.put(buffer);
+			}
+
+			// rethrows read errors
+			reader.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while copying");
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+			{
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		}
+		finally
+		{
+			// stop the reader in case writing failed
+			free.offer(END_OF_STREAM);
+
+			if (awaitQuietly(reader))
+			{
+				// the reader has stopped, so all buffers are back in the queues
+				List<ByteBuffer> buffers = new ArrayList<>(bufferCount + 2);
+				free.drainTo(buffers);
+				filled.drainTo(buffers);
+				for (ByteBuffer buffer : buffers)
+				{
+					if (buffer != END_OF_STREAM)
+					{
+						releaseBuffer(buffer);
+					}
+				}
+			}
+		}
+	}
+
+	private static Void readAhead(FileChannel in, long position,
+			BlockingQueue<ByteBuffer> free, BlockingQueue<ByteBuffer> filled,
+			IoLimits.Limit reads) throws IOException, InterruptedException
+	{
+		try
+		{
+			while (true)
+			{
+				ByteBuffer buffer = free.take();
+				if (buffer == END_OF_STREAM)
+				{
+					return null;
+				}
+
+				int read = readFully(in, buffer, position, reads);
+				position += buffer.position();
+
+				if (buffer.position() > 0)
+				{
+					filled.put(buffer);
+				}
+				else
+				{
+					free.put(buffer);
+				}
+
+				if (read < 0)
+				{
+					return null;
+				}
+			}
+		}
+		finally
+		{
+			// always unblock the writer, even if reading failed
+			filled.put(END_OF_STREAM);
+		}
+	}
+
+	/**
+	 * @return true, if the task has finished
+	 */
+	private static boolean awaitQuietly(Future<?> future)
+	{
+		try
+		{
+			future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		catch (ExecutionException e)
+		{
+			// already handled by the caller
+		}
+		return true;
+	}
+
+	private ByteBuffer acquireBuffer()
+	{
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null)
+		{
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+		}
+		return buffer;
+	}
+
+	private void releaseBuffer(ByteBuffer buffer)
+	{
+		buffer.clear();
+		buffers.offer(buffer);
+	}
+}
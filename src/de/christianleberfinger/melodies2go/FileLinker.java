@@ -0,0 +1,136 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Creates track files without copying their data if the destination shares
+ * the file system of the source, e.g. when a selection is staged next to the
+ * library before it's imaged onto cards.
+ *
+ * {@link Mode#HARD_LINK} links the destination file to the source, so it
+ * needs neither time nor space. {@link Mode#CLONE} creates a copy-on-write
+ * clone (reflink on btrfs/XFS, clonefile on APFS) via <code>cp</code>, so
+ * later changes to the destination don't affect the library. There's no such
+ * <code>cp</code> on Windows, so files are copied there.
+ *
+ * If linking isn't possible, the caller copies the file as usual.
+ */
+public class FileLinker
+{
+	public enum Mode
+	{
+		NONE, HARD_LINK, CLONE
+	}
+
+	private static final String OS_NAME = System.getProperty("os.name")
+			.toLowerCase();
+	private static final boolean IS_MAC = OS_NAME.startsWith("mac");
+	private static final boolean CAN_CLONE = !OS_NAME.startsWith("windows");
+
+	private final Mode mode;
+	private final FileStore destinationStore;
+
+	/**
+	 * Whether the directories of source files are on the destination's file
+	 * store. Looking up the store of every single file would be expensive.
+	 */
+	private final Map<File, Boolean> sameStore = new ConcurrentHashMap<>();
+
+	public FileLinker(Mode mode, File destDir)
+	{
+		if (mode == Mode.CLONE && !CAN_CLONE)
+		{
+			System.err.println("Can't clone files on " + OS_NAME + ", copying");
+			mode = Mode.NONE;
+		}
+		this.mode = mode;
+		this.destinationStore = mode == Mode.NONE ? null : getStore(destDir);
+	}
+
+	/**
+	 * @param source
+	 * @param target
+	 *            file to create, an existing file is replaced
+	 * @return false, if the target has to be copied instead
+	 */
+	public boolean link(File source, File target)
+	{
+		if (destinationStore == null
+				|| !sameStore.computeIfAbsent(source.getParentFile(),
+						dir -> destinationStore.equals(getStore(dir))))
+		{
+			return false;
+		}
+
+		try
+		{
+			switch (mode)
+			{
+			case HARD_LINK:
+				Files.deleteIfExists(target.toPath());
+				Files.createLink(target.toPath(), source.toPath());
+				return true;
+			case CLONE:
+				return cloneFile(source, target);
+			default:
+				return false;
+			}
+		}
+		catch (IOException | UnsupportedOperationException e)
+		{
+			System.err.println("Can't link " + target + ", copying: " + e);
+			return false;
+		}
+	}
+
+	/**
+	 * Clone including the last modified time, which the comparison of
+	 * existing files relies on.
+	 */
+	private static boolean cloneFile(File source, File target)
+			throws IOException
+	{
+		ProcessBuilder cp = IS_MAC
+				? new ProcessBuilder("cp", "-c", "-p", source.getPath(),
+						target.getPath())
+				: new ProcessBuilder("cp", "-p", "--reflink=always",
+						source.getPath(), target.getPath());
+		cp.redirectErrorStream(true);
+		Process process = cp.start();
+		try
+		{
+			process.getOutputStream().close();
+			// drained, so cp can't block on a full pipe
+			try (InputStream output = process.getInputStream())
+			{
+				IOUtils.consume(output);
+			}
+			return process.waitFor() == 0;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static FileStore getStore(File file)
+	{
+		try
+		{
+			return Files.getFileStore(file.toPath());
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package de.christianleberfinger.melodies2go;
+
+import java.text.Normalizer;
+import java.text.Normalizer.Form;
+
+/**
+ * Turns track metadata into file and folder names that FAT32 and exFAT
+ * accept. Such names are valid on the other common file systems, too. Names
+ * are also brought into one Unicode normalization form, see
+ * {@link #normalize(String)}.
+ *
+ * FAT rejects control characters and <code>"*&#47;:&lt;&gt;?\|</code>,
+ * silently drops trailing dots and spaces, and limits names to 255 UTF-16
+ * units. Copies to names like these fail or end up under a different name,
+ * so they would be attempted again on every sync.
+ *
+ * Most names are clean: they are checked by a single scan and returned
+ * without any allocation.
+ */
+public final class FileNameSanitizer
+{
+	public static final int MAX_NAME_LENGTH = 255;
+
+	private static final char REPLACEMENT = '_';
+
+	/**
+	 * Extensions longer than this aren't kept when a name is shortened.
+	 */
+	private static final int MAX_EXTENSION_LENGTH = 16;
+
+	private static final boolean[] INVALID = new boolean[128];
+
+	static
+	{
+		for (char c = 0; c < ' '; c++)
+		{
+			INVALID[c] = true;
+		}
+		for (char c : "\"*/:<>?\\|".toCharArray())
+		{
+			INVALID[c] = true;
+		}
+	}
+
+	private FileNameSanitizer()
+	{
+	}
+
+	public static String sanitize(String name)
+	{
+		return sanitize(name, MAX_NAME_LENGTH);
+	}
+
+	/**
+	 * @param name
+	 * @param maxLength
+	 *            maximum number of UTF-16 units, e.g. less than
+	 *            {@link #MAX_NAME_LENGTH} to leave room for a suffix
+	 * @return the name itself if it's valid, otherwise a valid name
+	 */
+	public static String sanitize(String name, int maxLength)
+	{
+		int length = name.length();
+		if (length > 0 && length <= maxLength && !isTrimmed(name.charAt(length - 1)))
+		{
+			boolean ascii = true;
+			int i = 0;
+			for (; i < length; i++)
+			{
+				char c = name.charAt(i);
+				if (c >= INVALID.length)
+				{
+					ascii = false;
+				}
+				else if (INVALID[c])
+				{
+					break;
+				}
+			}
+			if (i == length && (ascii || Normalizer.isNormalized(name, Form.NFC)))
+			{
+				return name;
+			}
+		}
+
+		char[] chars = normalize(name).toCharArray();
+		for (int i = 0; i < chars.length; i++)
+		{
+			if (isInvalid(chars[i]))
+			{
+				chars[i] = REPLACEMENT;
+			}
+		}
+
+		String sanitized = stripTrailing(new String(chars));
+		if (sanitized.length() > maxLength)
+		{
+			sanitized = stripTrailing(shorten(sanitized, maxLength));
+		}
+		return sanitized.isEmpty() ? String.valueOf(REPLACEMENT) : sanitized;
+	}
+
+	/**
+	 * @return the name in Unicode normalization form C. Names on the
+	 *         destination are compared in this form, because macOS may
+	 *         report decomposed (NFD) names where the card and Linux report
+	 *         composed ones, or the other way round.
+	 */
+	public static String normalize(String name)
+	{
+		for (int i = 0; i < name.length(); i++)
+		{
+			if (name.charAt(i) >= INVALID.length)
+			{
+				return Normalizer.isNormalized(name, Form.NFC) ? name
+						: Normalizer.normalize(name, Form.NFC);
+			}
+		}
+		return name;
+	}
+
+	private static boolean isInvalid(char c)
+	{
+		return c < INVALID.length && INVALID[c];
+	}
+
+	private static boolean isTrimmed(char c)
+	{
+		return c == '.' || c == ' ';
+	}
+
+	private static String stripTrailing(String name)
+	{
+		int end = name.length();
+		while (end > 0 && isTrimmed(name.charAt(end - 1)))
+		{
+			end--;
+		}
+		return name.substring(0, end);
+	}
+
+	/**
+	 * Shorten a name but keep its extension and don't split surrogate pairs.
+	 */
+	private static String shorten(String name, int maxLength)
+	{
+		int dot = name.lastIndexOf('.');
+		String extension = "";
+		if (dot > 0 && name.length() - dot <= MAX_EXTENSION_LENGTH
+				&& name.length() - dot < maxLength)
+		{
+			extension = name.substring(dot);
+		}
+
+		int keep = maxLength - extension.length();
+		if (Character.isHighSurrogate(name.charAt(keep - 1)))
+		{
+			keep--;
+		}
+		return name.substring(0, keep) + extension;
+	}
+}
@@ -0,0 +1,74 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Size and last modified time of a file. For destination files, the source
+ * file that they were copied from is remembered if known.
+ */
+public class FileState
+{
+	private final long size;
+	private final long lastModified;
+	private final String sourcePath;
+
+	public FileState(long size, long lastModified)
+	{
+		this(size, lastModified, null);
+	}
+
+	public FileState(long size, long lastModified, String sourcePath)
+	{
+		this.size = size;
+		this.lastModified = lastModified;
+		this.sourcePath = sourcePath;
+	}
+
+	public static FileState of(BasicFileAttributes attributes)
+	{
+		return new FileState(attributes.size(),
+				attributes.lastModifiedTime().toMillis());
+	}
+
+	public static FileState read(File file) throws IOException
+	{
+		return of(Files.readAttributes(file.toPath(),
+				BasicFileAttributes.class));
+	}
+
+	public FileState withSourcePath(String sourcePath)
+	{
+		return new FileState(size, lastModified, sourcePath);
+	}
+
+	public long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @return last modified time in milliseconds since the epoch
+	 */
+	public long getLastModified()
+	{
+		return lastModified;
+	}
+
+	/**
+	 * @return absolute path of the source file, or null if unknown
+	 */
+	public String getSourcePath()
+	{
+		return sourcePath;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "FileState [size=" + size + ", lastModified=" + lastModified
+				+ ", sourcePath=" + sourcePath + "]";
+	}
+}
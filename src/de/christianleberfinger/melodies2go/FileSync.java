@@ -2,41 +2,129 @@ package de.christianleberfinger.melodies2go;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileSystemException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.text.Normalizer;
-import java.text.Normalizer.Form;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.filefilter.FalseFileFilter;
-import org.apache.commons.io.filefilter.IOFileFilter;
-import org.apache.commons.io.filefilter.NotFileFilter;
-import org.apache.commons.io.filefilter.PrefixFileFilter;
 
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashCode;
+
+import de.christianleberfinger.melodies2go.CopyEngine.CopyJob;
 import de.christianleberfinger.melodies2go.parser.ITrack;
 
 public class FileSync
 {
 	private final List<ITrack> tracks;
 	private final File destDir;
+	private final SyncOptions options;
+	private final FileCopier copier;
+	private final FileLinker linker;
+	private final DurabilityBarrier barrier;
+	private final FileVerifier verifier;
+	private final FileComparison comparison;
+	private final DestinationLayout layout;
+	private final DestinationTree destinationTree;
+
+	/**
+	 * Track files in the order of the selection, i.e. by priority.
+	 */
+	private Map<File, ITrack> trackFiles = new LinkedHashMap<>();
+
+	/**
+	 * States of all track files that are known to be complete on the
+	 * destination. Becomes the destination's manifest after the sync.
+	 */
+	private final Map<File, FileState> syncedFiles = new ConcurrentHashMap<>();
+
+	/**
+	 * Partial copies that are kept for resuming, see
+	 * {@link TempFile#forSource(File, FileState)}.
+	 */
+	private final Set<File> partialFiles = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Records the changes to the destination, null if nothing has changed.
+	 */
+	private SyncJournal journal;
+
+	/**
+	 * Number of entries that remain in each scanned folder after deleting
+	 * dispensable files.
+	 */
+	private final Map<File, Integer> remainingEntries = new HashMap<>();
 
-	private Map<File, ITrack> trackFiles = new TreeMap<>();
+	/**
+	 * Destination files that aren't part of the selection anymore.
+	 */
+	private final List<File> dispensableFiles = new ArrayList<>();
+
+	/**
+	 * Number of dispensable files that have already been deleted.
+	 */
+	private int deletedCount;
+
+	/**
+	 * Usable space on the destination minus the space reserved for copies.
+	 */
+	private long freeSpace;
+	private long remainingByteBudget;
+	private long deadline;
+	private boolean budgetExhausted;
+
+	private DestinationScan destinationScan;
+	private SyncPlan plan;
+	private Map<File, FileState> sourceStates;
+	private Map<File, File> moves;
+	private List<SyncedTrack> expectedTracks;
+	private List<TrackCopyJob> copies;
+	private int movedCount;
 
 	public FileSync(List<ITrack> tracks, File destDir)
+	{
+		this(tracks, destDir, SyncOptions.defaults());
+	}
+
+	public FileSync(List<ITrack> tracks, File destDir, SyncOptions options)
+	{
+		this(tracks, destDir, options, DestinationLayout.of(options));
+	}
+
+	public FileSync(List<ITrack> tracks, File destDir, SyncOptions options,
+			DestinationLayout layout)
 	{
 		this.tracks = tracks;
+		this.layout = layout;
+		this.destinationTree = new DestinationTree(destDir);
 		this.destDir = destDir;
+		this.options = options;
+		this.copier = new FileCopier(options);
+		this.linker = new FileLinker(options.getLinkMode(), destDir);
+		this.barrier = new DurabilityBarrier(options.getDurability(),
+				options.getSyncBatchSize());
+		this.comparison = new FileComparison(options.getCompareMode(),
+				destDir);
+		this.verifier = new FileVerifier(options);
+		layout.prepare(tracks);
 	}
 
 	public static class SyncedTrack
@@ -109,200 +197,1287 @@ public class FileSync
 		}
 	}
 	
-	private final static IOFileFilter NO_HIDDEN_FILES = new NotFileFilter(
-			new PrefixFileFilter("."));
-
 	public List<SyncedTrack> sync() throws IOException
 	{
-		System.out.println("Calculating changes to destination file system.");
-		List<SyncedTrack> expectedTracks = getDestinationFiles();
+		return sync(DestinationScan.scan(destDir, options));
+	}
 
-		System.out.println("Deleting dispensable files");
-		deleteDispensableFiles();
-		deleteEmptyFolders();
+	/**
+	 * Sync using a scan of the destination that was taken beforehand, e.g.
+	 * while the library was still being parsed.
+	 * 
+	 * @param destinationScan
+	 * @return
+	 * @throws IOException
+	 */
+	public List<SyncedTrack> sync(DestinationScan destinationScan) throws IOException
+	{
+		return sync(plan(destinationScan));
+	}
 
-		System.out.println("Copying missing files");
-		copyMissingFiles();
-		
-		System.out.println("Finished sync");
-		
-		return expectedTracks;
+	/**
+	 * Execute a plan of this sync.
+	 * 
+	 * @param plan
+	 *            the result of {@link #plan(DestinationScan)}
+	 * @return the tracks that are on the destination
+	 * @throws IOException
+	 */
+	public List<SyncedTrack> sync(SyncPlan plan) throws IOException
+	{
+		List<TrackCopyJob> copies = prepare(plan);
+		try
+		{
+			System.out.println("Copying missing files");
+			new CopyEngine(options).execute(options.getCopyOrder()
+					.arrange(copies, options.isBatchBySourceDirectory()));
+		}
+		catch (IOException | RuntimeException e)
+		{
+			abort();
+			throw e;
+		}
+		return complete();
+	}
+
+	/**
+	 * Compute the changes of a sync without changing the destination.
+	 */
+	public SyncPlan plan() throws IOException
+	{
+		return plan(DestinationScan.scan(destDir, options));
 	}
 
-	private List<SyncedTrack> getDestinationFiles()
+	/**
+	 * Compute the changes of a sync without changing the destination. The
+	 * attributes of the source files are read in parallel. A FileSync can
+	 * only be planned once.
+	 * 
+	 * @param destinationScan
+	 * @return the plan, see {@link #sync(SyncPlan)}
+	 * @throws IOException
+	 */
+	public synchronized SyncPlan plan(DestinationScan destinationScan)
+			throws IOException
 	{
-		List<SyncedTrack> expectedTracks = new ArrayList<>(tracks.size());
-		for (ITrack track : tracks)
+		if (plan != null)
 		{
-			if (track.getFile() != null)
-			{
-				final File destFile = getDestFile(track);
-				
-				expectedTracks.add(new SyncedTrack(track, destFile));
-				trackFiles.put(destFile, track);
-			}
+			throw new IllegalStateException("Already planned " + destDir);
 		}
-		
-		return expectedTracks;
+
+		System.out.println("Calculating changes to destination file system.");
+		expectedTracks = resolve(destinationScan);
+		if (destinationScan.isFromManifest()
+				&& !destinationScan.hasFolders(getFolders(expectedTracks)))
+		{
+			// e.g. an album folder was deleted by another tool
+			System.out.println("Manifest doesn't match " + destDir);
+			destinationScan = DestinationScan.walk(destDir);
+			expectedTracks = resolve(destinationScan);
+		}
+		this.destinationScan = destinationScan;
+		sourceStates = readSourceStates();
+
+		collectDispensableFiles(destinationScan);
+		moves = planMoves(destinationScan);
+		copies = planCopies(destinationScan, moves);
+
+		Map<File, File> plannedCopies = new LinkedHashMap<>();
+		long copyBytes = 0;
+		for (TrackCopyJob copy : copies)
+		{
+			plannedCopies.put(copy.destFile, copy.getSource());
+			copyBytes += sourceStates.get(copy.getSource()).getSize();
+		}
+		long deleteBytes = 0;
+		for (File file : dispensableFiles)
+		{
+			deleteBytes += destinationScan.getFileState(file).getSize();
+		}
+
+		plan = new SyncPlan(destDir, plannedCopies, new LinkedHashMap<>(moves),
+				new ArrayList<>(dispensableFiles),
+				planFolderRemovals(destinationScan), copyBytes, deleteBytes,
+				syncedFiles.size());
+		return plan;
 	}
 
 	/**
-	 * Calculates a corresponding file name for the given track. The format will
-	 * be like 'DESTDIR/A/Artist/Album/Song.mp3'
+	 * First phase of executing a plan: start the journal and move renamed
+	 * files.
 	 * 
-	 * @param track
-	 * @return
+	 * @param plan
+	 * @return the copies that are needed to complete the sync, see
+	 *         {@link #complete()}
+	 * @throws IOException
 	 */
-	public File getDestFile(ITrack track)
+	List<TrackCopyJob> prepare(SyncPlan plan) throws IOException
 	{
-		List<String> pathElements = new ArrayList<>();
+		if (plan != this.plan)
+		{
+			throw new IllegalArgumentException(
+					"Not a plan of this sync: " + plan.getDestDir());
+		}
+
+		// the time budget counts from the start of each sync
+		long timeBudget = options.getTimeBudgetMillis();
+		long now = System.currentTimeMillis();
+		deadline = timeBudget > Long.MAX_VALUE - now ? Long.MAX_VALUE
+				: now + timeBudget;
+
+		if (!moves.isEmpty() || !dispensableFiles.isEmpty() || !copies.isEmpty())
+		{
+			startJournal(destinationScan, moves, copies);
+		}
+
+		try
+		{
+			System.out.println("Moving renamed files");
+			movedCount = moveRenamedFiles(destinationScan, moves, copies);
+		}
+		catch (RuntimeException e)
+		{
+			abort();
+			throw e;
+		}
 
-		final String artist = track.getArtistPreferred();
-		final String album = track.getAlbum();
+		// dispensable files are deleted when their space is needed
+		freeSpace = destDir.getUsableSpace();
+		remainingByteBudget = options.getByteBudget();
+		return copies;
+	}
 
-		if (Objects.nonNull(artist) && artist.length() > 0)
+	/**
+	 * Read the states of all source files in parallel; sources are often on
+	 * network shares where every request has a high latency. Sources that
+	 * can't be read are reported and left out.
+	 */
+	private Map<File, FileState> readSourceStates() throws IOException
+	{
+		List<File> sources = new ArrayList<>(trackFiles.size());
+		for (ITrack track : trackFiles.values())
 		{
-			pathElements.add(getInitialCharacterFolder(artist));
-			pathElements.add(artist);
+			sources.add(track.getFile());
+		}
 
-			if (Objects.nonNull(album))
+		Map<File, FileState> states = new ConcurrentHashMap<>();
+		ExecutorService executor = Executors.newFixedThreadPool(
+				options.getSourceReadConcurrency(), runnable -> {
+					Thread thread = new Thread(runnable, "melodies2go-plan");
+					thread.setDaemon(true);
+					return thread;
+				});
+		try
+		{
+			List<Future<?>> futures = new ArrayList<>();
+			for (int start = 0; start < sources.size(); start += READ_BATCH_SIZE)
+			{
+				List<File> batch = sources.subList(start,
+						Math.min(start + READ_BATCH_SIZE, sources.size()));
+				futures.add(executor.submit(() -> {
+					for (File source : batch)
+					{
+						try
+						{
+							states.put(source, FileState.read(source));
+						}
+						catch (IOException e)
+						{
+							// e.g. a missing file in the library
+							System.err.println("Can't read source " + source
+									+ ": " + e);
+						}
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures)
 			{
-				pathElements.add(album);
+				CopyEngine.await(future);
 			}
 		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+		return states;
+	}
 
-		pathElements.add(track.getFile().getName());
+	/**
+	 * Number of source files read by one task while planning.
+	 */
+	private static final int READ_BATCH_SIZE = 64;
 
-		// replace invalid characters for the target file system (such as /)
-		sanitizePathElements(pathElements);
+	/**
+	 * @return the folders that will be empty after the sync, deepest first
+	 */
+	private List<File> planFolderRemovals(DestinationScan destinationScan)
+	{
+		Map<File, Integer> entries = new HashMap<>(remainingEntries);
+		for (File file : dispensableFiles)
+		{
+			entries.merge(file.getParentFile(), -1, Integer::sum);
+		}
+		for (Entry<File, File> move : moves.entrySet())
+		{
+			entries.merge(move.getValue().getParentFile(), -1, Integer::sum);
+			addEntry(entries, move.getKey());
+		}
+		for (TrackCopyJob copy : copies)
+		{
+			addEntry(entries, copy.destFile);
+		}
 
-		Path p = Paths.get(destDir.getAbsolutePath(),
-				pathElements.toArray(new String[] {}));
+		List<File> folders = new ArrayList<>(destinationScan.getFolders());
+		Collections.sort(folders, orderByPathDepth.reversed());
 
-		return p.toFile();
+		List<File> removals = new ArrayList<>();
+		for (File folder : folders)
+		{
+			if (!folder.equals(destDir) && entries.getOrDefault(folder, 0) == 0)
+			{
+				removals.add(folder);
+				entries.merge(folder.getParentFile(), -1, Integer::sum);
+			}
+		}
+		return removals;
 	}
 
-	public static void sanitizePathElements(List<String> pathElements) {
+	/**
+	 * Last phase of a sync, after the copies have been executed: delete the
+	 * remaining dispensable files and write the manifest.
+	 * 
+	 * @return the tracks that are on the destination
+	 * @throws IOException
+	 */
+	List<SyncedTrack> complete() throws IOException
+	{
+		try
+		{
+			// copies are only complete when their data is durable
+			barrier.finish();
+			verify();
 
-		pathElements.replaceAll(FileSync::sanitizeFilename);
-		
+			System.out.println("Deleting dispensable files");
+			deleteDispensableFiles(destinationScan, Long.MAX_VALUE);
+			deleteEmptyFolders(destinationScan);
+
+			int copied = 0;
+			for (TrackCopyJob copy : copies)
+			{
+				copied += copy.copied ? 1 : 0;
+			}
+			System.out.println("Moved " + movedCount + ", deleted "
+					+ deletedCount + " and copied " + copied + " files");
+			if (copied < copies.size())
+			{
+				System.out.println((copies.size() - copied)
+						+ " files are missing on " + destDir);
+			}
+
+			if (journal != null || !hasCurrentManifest())
+			{
+				// the new manifest contains all completed operations and
+				// replaces the journal
+				abort();
+				SyncManifest.write(destDir,
+						toActualNames(getKeptFiles(), getWrittenFiles()),
+						destinationScan.isCaseSensitive());
+			}
+		}
+		finally
+		{
+			abort();
+		}
+
+		System.out.println("Finished sync");
+
+		// files that weren't copied must not appear in playlists
+		List<SyncedTrack> syncedTracks = new ArrayList<>(expectedTracks);
+		syncedTracks.removeIf(
+				track -> !syncedFiles.containsKey(track.getDestFile()));
+		return syncedTracks;
 	}
-	
-	public static String sanitizeFilename(String name)
+
+	/**
+	 * Compare files with their source, see {@link FileVerifier}. Files that
+	 * differ are copied once more; if they differ again, they are deleted
+	 * and missing until the next sync.
+	 */
+	private void verify() throws IOException
 	{
-		return name.replaceAll("[/\\\\]", "_");
+		if (options.getVerifyMode() == FileVerifier.Mode.NONE)
+		{
+			return;
+		}
+
+		// the file to read mapped to the destination file
+		Map<File, File> readFiles = new LinkedHashMap<>();
+		Set<File> copiedFiles = new HashSet<>();
+		for (TrackCopyJob copy : copies)
+		{
+			if (copy.copied)
+			{
+				copiedFiles.add(copy.destFile);
+				if (options.getVerifyMode() == FileVerifier.Mode.COPIED)
+				{
+					readFiles.put(copy.destFile, copy.destFile);
+				}
+			}
+		}
+		if (options.getVerifyMode() == FileVerifier.Mode.SAMPLE)
+		{
+			List<File> destFiles = new ArrayList<>(syncedFiles.keySet());
+			Collections.shuffle(destFiles);
+			for (File destFile : destFiles.subList(0,
+					Math.min(options.getVerifySampleSize(), destFiles.size())))
+			{
+				// files of earlier syncs may have differently normalized names
+				readFiles.put(copiedFiles.contains(destFile) ? destFile
+						: destinationScan.getActualFile(destFile), destFile);
+			}
+		}
+
+		System.out.println("Verifying " + readFiles.size() + " files");
+		List<File> mismatches = verifier.verify(withSources(readFiles));
+		if (mismatches.isEmpty())
+		{
+			return;
+		}
+
+		if (journal == null)
+		{
+			startJournal(destinationScan, Collections.emptyMap(), copies);
+		}
+		Map<File, File> requeuedFiles = new LinkedHashMap<>();
+		List<TrackCopyJob> requeued = new ArrayList<>();
+		for (File readFile : mismatches)
+		{
+			File destFile = readFiles.get(readFile);
+			discard(readFile, destFile);
+			requeuedFiles.put(destFile, destFile);
+			requeued.add(requeue(destFile));
+		}
+
+		System.out.println("Copying " + requeued.size() + " files again");
+		new CopyEngine(options).execute(requeued);
+		barrier.finish();
+
+		requeuedFiles.keySet().retainAll(syncedFiles.keySet());
+		for (File destFile : verifier.verify(withSources(requeuedFiles)))
+		{
+			discard(destFile, destFile);
+			System.err.println(destFile + " is corrupted again, check " + destDir);
+		}
 	}
 
-	private String getInitialCharacterFolder(final String artist)
+	/**
+	 * @return the files to read mapped to the sources of their tracks
+	 */
+	private Map<File, File> withSources(Map<File, File> readFiles)
 	{
-		if (Character.isDigit(artist.charAt(0)))
+		Map<File, File> sources = new LinkedHashMap<>();
+		for (Entry<File, File> entry : readFiles.entrySet())
 		{
-			return "0-9";
+			sources.put(entry.getKey(),
+					trackFiles.get(entry.getValue()).getFile());
 		}
-
-		String firstLetter = artist.substring(0, 1);
-		
-		// Normalize special characters like "o with diaeresis" to a simple "o".
-		// Note: This will most likely lead to suboptimal results with Asian
-		// languages
-		firstLetter = Normalizer.normalize(firstLetter, Form.NFD).substring(0, 1);
-		
-		return firstLetter.toUpperCase();
+		return sources;
 	}
 
-	private void deleteDispensableFiles() throws IOException
+	/**
+	 * Delete a file that differs from its source.
+	 */
+	private synchronized void discard(File readFile, File destFile)
+			throws IOException
 	{
-		Collection<File> files = FileUtils.listFiles(destDir, NO_HIDDEN_FILES,
-				NO_HIDDEN_FILES);
+		Files.deleteIfExists(readFile.toPath());
+		journal.deleted(destFile);
+		remainingEntries.merge(destFile.getParentFile(), -1, Integer::sum);
+
+		// the copy again counts against the byte budget
+		FileState state = syncedFiles.remove(destFile);
+		if (state != null)
+		{
+			freeSpace += state.getSize();
+		}
+	}
 
-		for (File destFile : files)
+	/**
+	 * @return the copy job of the given file, which must be copied again
+	 */
+	private TrackCopyJob requeue(File destFile)
+	{
+		for (TrackCopyJob copy : copies)
 		{
-			if (!trackFiles.containsKey(destFile))
+			if (copy.destFile.equals(destFile))
 			{
-				FileUtils.forceDelete(destFile);
+				copy.copied = false;
+				return copy;
 			}
 		}
+		TrackCopyJob copy = new TrackCopyJob(trackFiles.get(destFile),
+				destFile, destinationScan);
+		copies.add(copy);
+		return copy;
+	}
+
+	/**
+	 * @return true, if the planned scan was read from a manifest without a
+	 *         journal. Otherwise, even an empty plan writes a manifest when
+	 *         it's executed, so the next sync can read it.
+	 */
+	boolean hasCurrentManifest()
+	{
+		return destinationScan.isFromManifest() && !destinationScan.isResumed();
+	}
+
+	/**
+	 * Close the journal, so that the next sync resumes this one.
+	 */
+	void abort() throws IOException
+	{
+		if (journal != null)
+		{
+			journal.close();
+		}
 	}
 
-	private void deleteEmptyFolders() throws IOException
+	File getDestDir()
 	{
-		Collection<File> folders = FileUtils.listFilesAndDirs(destDir,
-				FalseFileFilter.INSTANCE, NO_HIDDEN_FILES);
+		return destDir;
+	}
 
-		// order folders by path depth to also detect orphaned parents
-		List<File> folderList = new ArrayList<>(folders);
-		Collections.sort(folderList, orderByPathDepth.reversed());
-		
-		for (File folder : folderList)
+	/**
+	 * @return the state of the destination after {@link #sync(SyncPlan)},
+	 *         e.g. to plan the next sync without scanning the destination
+	 */
+	public DestinationScan getDestinationState() throws IOException
+	{
+		return destinationScan.afterSync(getKeptFiles(), getWrittenFiles());
+	}
+
+	/**
+	 * @return the synced files and the partial copies that are still kept for
+	 *         resuming, so that later syncs know both without walking the
+	 *         destination
+	 */
+	private Map<File, FileState> getKeptFiles() throws IOException
+	{
+		Map<File, FileState> files = new HashMap<>(syncedFiles);
+		for (File partial : partialFiles)
 		{
-			// do not delete the destination root directory
-			if (folder.equals(destDir))
+			File actual = destinationScan.getActualFile(partial);
+			if (actual.isFile())
 			{
-				continue;
+				files.put(partial, FileState.read(actual));
 			}
+		}
+		return files;
+	}
 
-			if (folder.isDirectory())
+	/**
+	 * @return files that this sync copied or moved; they have their
+	 *         canonical name on the destination
+	 */
+	private Set<File> getWrittenFiles()
+	{
+		Set<File> writtenFiles = new HashSet<>(moves.keySet());
+		for (TrackCopyJob copy : copies)
+		{
+			if (copy.copied)
 			{
-				if (folder.list().length == 0)
-				{
-					FileUtils.deleteDirectory(folder);
-				}
+				writtenFiles.add(copy.destFile);
 			}
 		}
+		return writtenFiles;
 	}
 
-	private static Comparator<File> orderByPathDepth = new Comparator<File>() {
-		@Override
-		public int compare(File o1, File o2)
+	/**
+	 * Manifest entries under the names of the files on the destination, so
+	 * that scans from the manifest know files whose names differ from their
+	 * canonical name, see {@link DestinationScan#getActualFile(File)}.
+	 */
+	private Map<File, FileState> toActualNames(Map<File, FileState> files,
+			Set<File> writtenFiles)
+	{
+		Map<File, FileState> entries = new TreeMap<>();
+		for (Entry<File, FileState> entry : files.entrySet())
 		{
-			int depth1 = o1.toPath().getNameCount();
-			int depth2 = o2.toPath().getNameCount();
-			
-			return Integer.compare(depth1, depth2);
+			File file = entry.getKey();
+			entries.put(writtenFiles.contains(file) ? file
+					: destinationScan.getActualFile(file), entry.getValue());
 		}
-	};
-	
-	private void copyMissingFiles() throws IOException
+		return entries;
+	}
+
+	/**
+	 * Resolve the destination files of the tracks on the given scan.
+	 */
+	private List<SyncedTrack> resolve(DestinationScan destinationScan)
 	{
-		for (Entry<File, ITrack> entry : trackFiles.entrySet())
-		{
-			ITrack track = entry.getValue();
-			File destFile = entry.getKey();
+		destinationTree.setCaseSensitive(destinationScan.isCaseSensitive());
+		// folders of a manifest may be gone, so they are created if needed
+		destinationTree.addExistingFolders(destinationScan.getFolders(),
+				!destinationScan.isFromManifest());
+		trackFiles.clear();
+		return getDestinationFiles(destinationScan);
+	}
 
-			if (!destFile.exists())
+	private static Set<File> getFolders(List<SyncedTrack> syncedTracks)
+	{
+		Set<File> folders = new HashSet<>();
+		for (SyncedTrack syncedTrack : syncedTracks)
+		{
+			File destFile = syncedTrack.getDestFile();
+			if (destFile != null)
 			{
-				try {
-					copyFile(track, destFile);
-				} catch (FileSystemException fse) {
-					// sometimes, music files just can't be copied, even with 'cp' on terminal.
-					// just ignore those files and print an error, as this should be a rare case.
-					System.err.println("Filesystem Error copying " + destFile);
-				}
+				folders.add(destFile.getParentFile());
 			}
 		}
+		return folders;
 	}
 
 	/**
-	 * Copy the given track to its destination path. Copying will be performed
-	 * via temporary file. In case of errors during copying, this temporary file
-	 * will be deleted. In case of sudden program exit, the temporary file might
-	 * stay and will be deleted by the next run of sync().
-	 * 
-	 * All needed parent directories will be created.
-	 * 
-	 * @param track
-	 * @param destFile
-	 * @throws IOException
+	 * Plan the destination files of all tracks. Tracks whose files would
+	 * collide get distinct names. On case-insensitive destinations, names
+	 * that only differ in case collide as well, and existing files keep their
+	 * spelling.
 	 */
-	private void copyFile(ITrack track, File destFile) throws IOException
+	private List<SyncedTrack> getDestinationFiles(DestinationScan destinationScan)
 	{
-		FileUtils.forceMkdir(destFile.getParentFile());
-		
-		try(TempFile tempFile = new TempFile(destFile))
-		{
-			System.out.println("Copying " + destFile);
-			FileUtils.copyFile(track.getFile(), tempFile);
+		boolean caseSensitive = destinationScan.isCaseSensitive();
+
+		List<ITrack> plannedTracks = new ArrayList<>(tracks.size());
+		List<File> destFiles = new ArrayList<>(tracks.size());
+		Map<String, Integer> firstByName = new HashMap<>();
+		Map<String, List<Integer>> collisions = new LinkedHashMap<>();
+		for (ITrack track : tracks)
+		{
+			if (track.getFile() != null)
+			{
+				final File destFile = getDestFile(track);
+				String key = nameKey(destFile, caseSensitive);
+				Integer first = firstByName.putIfAbsent(key, destFiles.size());
+				if (first != null)
+				{
+					collisions.computeIfAbsent(key,
+							k -> Lists.newArrayList(first)).add(destFiles.size());
+				}
+				plannedTracks.add(track);
+				destFiles.add(destFile);
+			}
+		}
+
+		if (!collisions.isEmpty())
+		{
+			Set<String> usedNames = new HashSet<>(firstByName.keySet());
+			for (List<Integer> colliding : collisions.values())
+			{
+				renameCollisions(colliding, plannedTracks, destFiles,
+						usedNames, caseSensitive);
+			}
+		}
+
+		Map<String, File> existingFiles = new HashMap<>();
+		if (!caseSensitive)
+		{
+			for (File file : destinationScan.getFiles())
+			{
+				existingFiles.put(nameKey(file, false), file);
+			}
+		}
+
+		List<SyncedTrack> expectedTracks = new ArrayList<>(destFiles.size());
+		for (int i = 0; i < destFiles.size(); i++)
+		{
+			File destFile = destFiles.get(i);
+			if (!caseSensitive)
+			{
+				destFile = existingFiles.getOrDefault(nameKey(destFile, false),
+						destFile);
+			}
+			expectedTracks.add(new SyncedTrack(plannedTracks.get(i), destFile));
+			trackFiles.put(destFile, plannedTracks.get(i));
+		}
+		return expectedTracks;
+	}
+
+	private static String nameKey(File destFile, boolean caseSensitive)
+	{
+		return caseSensitive ? destFile.getPath()
+				: DestinationTree.fold(destFile.getPath());
+	}
+
+	/**
+	 * Give tracks that would share a destination file distinct names, e.g.
+	 * 'Intro (2).mp3'. The names are stable: the track with the first source
+	 * path keeps its name, and tracks of the same source share their file.
+	 */
+	private static void renameCollisions(List<Integer> colliding,
+			List<ITrack> plannedTracks, List<File> destFiles,
+			Set<String> usedNames, boolean caseSensitive)
+	{
+		TreeMap<String, List<Integer>> bySource = new TreeMap<>();
+		for (int i : colliding)
+		{
+			bySource.computeIfAbsent(plannedTracks.get(i).getFile().getPath(),
+					key -> new ArrayList<>(1)).add(i);
+		}
+
+		File destFile = destFiles.get(colliding.get(0));
+		String name = destFile.getName();
+		int dot = name.lastIndexOf('.');
+		String baseName = dot > 0 ? name.substring(0, dot) : name;
+		String extension = dot > 0 ? name.substring(dot) : "";
+
+		int number = 1;
+		for (List<Integer> sameSource : bySource
+				.tailMap(bySource.firstKey(), false).values())
+		{
+			File renamed;
+			do
+			{
+				number++;
+				renamed = new File(destFile.getParentFile(),
+						FileNameSanitizer.sanitize(
+								baseName + " (" + number + ")" + extension,
+								FileNameSanitizer.MAX_NAME_LENGTH
+										- TempFile.MAX_SUFFIX_LENGTH));
+			}
+			while (!usedNames.add(nameKey(renamed, caseSensitive)));
+
+			for (int i : sameSource)
+			{
+				destFiles.set(i, renamed);
+			}
+		}
+	}
+
+	/**
+	 * Calculates a corresponding file name for the given track. The format
+	 * depends on the {@link DestinationLayout}, by default it will be like
+	 * 'DESTDIR/A/Artist/Album/Song.mp3'
+	 * 
+	 * @param track
+	 * @return
+	 */
+	public File getDestFile(ITrack track)
+	{
+		// replaces invalid characters for the target file system (such as /)
+		return destinationTree.resolve(layout.getFolders(track),
+				track.getFile().getName());
+	}
+
+	public static void sanitizePathElements(List<String> pathElements) {
+
+		pathElements.replaceAll(FileSync::sanitizeFilename);
+		
+	}
+	
+	/**
+	 * @see FileNameSanitizer
+	 */
+	public static String sanitizeFilename(String name)
+	{
+		return FileNameSanitizer.sanitize(name);
+	}
+
+	private void collectDispensableFiles(DestinationScan destinationScan)
+			throws IOException
+	{
+		for (File folder : destinationScan.getFolders())
+		{
+			remainingEntries.put(folder, destinationScan.getEntryCount(folder));
+		}
+
+		for (File destFile : destinationScan.getFiles())
+		{
+			if (trackFiles.containsKey(destFile) || isPlaylist(destFile))
+			{
+				continue;
+			}
+			if (isResumableCopy(destFile))
+			{
+				partialFiles.add(destFile);
+			}
+			else
+			{
+				dispensableFiles.add(destFile);
+			}
+		}
+	}
+
+	/**
+	 * @return true, if the file is a partial copy of the current version of a
+	 *         track's source
+	 */
+	private boolean isResumableCopy(File file) throws IOException
+	{
+		File destFile = TempFile.getOriginalFile(file);
+		ITrack track = destFile == null ? null : trackFiles.get(destFile);
+		FileState sourceState = track == null ? null
+				: sourceStates.get(track.getFile());
+		return sourceState != null
+				&& file.equals(TempFile.forSource(destFile, sourceState));
+	}
+
+	/**
+	 * Find dispensable files that can be moved to the new path of their track
+	 * instead of deleting and copying them again, e.g. after an album was
+	 * renamed. A dispensable file is taken for a missing track file if it's up
+	 * to date with the track's source and either was copied from the same
+	 * source (according to the manifest) or has the same content fingerprint.
+	 * 
+	 * @return the track files that can be moved, mapped to their current
+	 *         location
+	 */
+	private Map<File, File> planMoves(DestinationScan destinationScan)
+			throws IOException
+	{
+		Map<File, File> moves = new LinkedHashMap<>();
+		if (dispensableFiles.isEmpty())
+		{
+			return moves;
+		}
+
+		Map<String, File> dispensableBySource = new HashMap<>();
+		Map<Long, List<File>> dispensableBySize = new HashMap<>();
+		for (File file : dispensableFiles)
+		{
+			FileState state = destinationScan.getFileState(file);
+			if (state.getSourcePath() != null)
+			{
+				dispensableBySource.put(state.getSourcePath(), file);
+			}
+			dispensableBySize.computeIfAbsent(state.getSize(),
+					size -> new ArrayList<>()).add(file);
+		}
+
+		for (Entry<File, ITrack> entry : trackFiles.entrySet())
+		{
+			File destFile = entry.getKey();
+			ITrack track = entry.getValue();
+			if (destinationScan.contains(destFile))
+			{
+				continue;
+			}
+
+			FileState sourceState = sourceStates.get(track.getFile());
+			if (sourceState == null)
+			{
+				continue;
+			}
+			File movable = findMovable(track, sourceState, destinationScan,
+					dispensableBySource, dispensableBySize);
+			if (movable != null)
+			{
+				moves.put(destFile, movable);
+				dispensableFiles.remove(movable);
+				dispensableBySource.values().remove(movable);
+				dispensableBySize.get(destinationScan.getFileState(movable)
+						.getSize()).remove(movable);
+			}
+		}
+		return moves;
+	}
+
+	private File findMovable(ITrack track, FileState sourceState,
+			DestinationScan destinationScan, Map<String, File> dispensableBySource,
+			Map<Long, List<File>> dispensableBySize) throws IOException
+	{
+		File source = track.getFile();
+
+		File sameSource = dispensableBySource.get(sourcePath(track));
+		if (sameSource != null && comparison.isUpToDate(source, sourceState,
+				destinationScan.getActualFile(sameSource),
+				destinationScan.getFileState(sameSource)))
+		{
+			return sameSource;
+		}
+
+		List<File> sameSize = dispensableBySize.get(sourceState.getSize());
+		if (sameSize == null || sameSize.isEmpty())
+		{
+			return null;
+		}
+
+		HashCode sourceFingerprint = FileComparison.fingerprint(source);
+		for (File candidate : sameSize)
+		{
+			File actual = destinationScan.getActualFile(candidate);
+			if (comparison.isUpToDate(source, sourceState, actual,
+					destinationScan.getFileState(candidate))
+					&& sourceFingerprint.equals(FileComparison.fingerprint(actual)))
+			{
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return number of moved files. Files that couldn't be moved are added
+	 *         to the copies.
+	 */
+	private int moveRenamedFiles(DestinationScan destinationScan,
+			Map<File, File> moves, List<TrackCopyJob> copies)
+	{
+		int moved = 0;
+		for (Entry<File, File> move : moves.entrySet())
+		{
+			File destFile = move.getKey();
+			File movable = move.getValue();
+			ITrack track = trackFiles.get(destFile);
+
+			System.out.println("Moving " + movable + " to " + destFile);
+			try
+			{
+				destinationTree.createFolder(destFile.getParentFile());
+				Files.move(destinationScan.getActualFile(movable).toPath(),
+						destFile.toPath());
+			}
+			catch (IOException e)
+			{
+				System.err.println("Can't move " + movable + ": " + e);
+				copies.add(new TrackCopyJob(track, destFile, destinationScan));
+				continue;
+			}
+
+			FileState state = destinationScan.getFileState(movable)
+					.withSourcePath(sourcePath(track));
+			syncedFiles.put(destFile, state);
+			remainingEntries.merge(movable.getParentFile(), -1, Integer::sum);
+			addRemainingEntry(destFile);
+			moved++;
+
+			try
+			{
+				// the move has to be durable before it's recorded
+				DurabilityBarrier.forceDirectory(movable.getParentFile());
+				DurabilityBarrier.forceDirectory(destFile.getParentFile());
+				journal.moved(movable, destFile, state);
+				journal.force();
+			}
+			catch (IOException e)
+			{
+				System.err.println("Can't write journal: " + e);
+			}
+		}
+		return moved;
+	}
+
+	private void addRemainingEntry(File entry)
+	{
+		addEntry(remainingEntries, entry);
+	}
+
+	/**
+	 * Count a new entry in its folder, including folders that had to be
+	 * created for it, so that they aren't taken for empty folders.
+	 */
+	private void addEntry(Map<File, Integer> entries, File entry)
+	{
+		File parent = entry.getParentFile();
+		Integer count = entries.get(parent);
+		if (count == null && !parent.equals(destDir))
+		{
+			addEntry(entries, parent);
+		}
+		entries.merge(parent, 1, Integer::sum);
+	}
+
+	/**
+	 * Delete dispensable files until the given amount of space is free.
+	 */
+	private synchronized void deleteDispensableFiles(
+			DestinationScan destinationScan, long requiredSpace)
+			throws IOException
+	{
+		while (freeSpace < requiredSpace && deletedCount < dispensableFiles.size())
+		{
+			File destFile = dispensableFiles.get(deletedCount++);
+			Files.deleteIfExists(
+					destinationScan.getActualFile(destFile).toPath());
+			journal.deleted(destFile);
+			remainingEntries.merge(destFile.getParentFile(), -1, Integer::sum);
+			freeSpace += destinationScan.getFileState(destFile).getSize();
+		}
+	}
+
+	/**
+	 * Reserve space and budget for copying a file, deleting dispensable files
+	 * if needed.
+	 * 
+	 * @return false, if the file must not be copied
+	 */
+	private synchronized boolean reserve(File destFile, long size,
+			DestinationScan destinationScan) throws IOException
+	{
+		if (budgetExhausted)
+		{
+			return false;
+		}
+		if (System.currentTimeMillis() > deadline
+				|| size > remainingByteBudget)
+		{
+			// later files have a lower priority, so stop here
+			System.out.println("Budget exhausted, stopping at " + destFile);
+			budgetExhausted = true;
+			return false;
+		}
+
+		long requiredSpace = size + FREE_SPACE_RESERVE;
+		deleteDispensableFiles(destinationScan, requiredSpace);
+		if (freeSpace < requiredSpace)
+		{
+			System.err.println("Not enough space for " + destFile);
+			return false;
+		}
+
+		freeSpace -= size;
+		remainingByteBudget -= size;
+		return true;
+	}
+
+	/**
+	 * Return a reservation that wasn't needed, e.g. for a linked file.
+	 */
+	private synchronized void release(long size)
+	{
+		freeSpace += size;
+		remainingByteBudget += size;
+	}
+
+	/**
+	 * Count a copied file in its folder, so that the folder isn't taken for
+	 * an empty folder.
+	 */
+	private synchronized void copied(File destFile)
+	{
+		addRemainingEntry(destFile);
+	}
+
+	/**
+	 * Playlists in the destination root are rewritten after each sync anyway.
+	 */
+	private boolean isPlaylist(File destFile)
+	{
+		return destDir.equals(destFile.getParentFile())
+				&& destFile.getName().endsWith(".m3u");
+	}
+
+	/**
+	 * Record the planned changes before the destination is changed. The
+	 * journal continues the manifest, so a destination without a manifest
+	 * gets one of its current state first.
+	 */
+	private void startJournal(DestinationScan destinationScan,
+			Map<File, File> moves, List<TrackCopyJob> copies) throws IOException
+	{
+		if (!destinationScan.isFromManifest() || destinationScan.isResumed())
+		{
+			// includes the operations of a resumed journal
+			SyncManifest.write(destDir, toActualNames(
+					destinationScan.getFileStates(), Collections.emptySet()),
+					destinationScan.isCaseSensitive());
+		}
+
+		List<File> copiedFiles = new ArrayList<>(copies.size());
+		for (TrackCopyJob copy : copies)
+		{
+			copiedFiles.add(copy.destFile);
+		}
+		journal = SyncJournal.start(destDir, copiedFiles, moves,
+				dispensableFiles);
+		barrier.setJournal(journal);
+	}
+
+	private void deleteEmptyFolders(DestinationScan destinationScan) throws IOException
+	{
+		Collection<File> folders = destinationScan.getFolders();
+
+		// order folders by path depth to also detect orphaned parents
+		List<File> folderList = new ArrayList<>(folders);
+		Collections.sort(folderList, orderByPathDepth.reversed());
+		
+		for (File folder : folderList)
+		{
+			// do not delete the destination root directory
+			if (folder.equals(destDir))
+			{
+				continue;
+			}
+
+			// emptiness is known from the scan, no need to list the folder
+			if (remainingEntries.getOrDefault(folder, 0) == 0)
+			{
+				try
+				{
+					Files.deleteIfExists(
+							destinationScan.getActualFile(folder).toPath());
+				}
+				catch (DirectoryNotEmptyException e)
+				{
+					// contains hidden files that a manifest doesn't know about
+					continue;
+				}
+				remainingEntries.merge(folder.getParentFile(), -1, Integer::sum);
+			}
+		}
+	}
+
+	/**
+	 * Space that is left free on the destination, e.g. for playlists and the
+	 * manifest.
+	 */
+	private static final long FREE_SPACE_RESERVE = FileUtils.ONE_MB;
+
+	private static Comparator<File> orderByPathDepth = new Comparator<File>() {
+		@Override
+		public int compare(File o1, File o2)
+		{
+			int depth1 = o1.toPath().getNameCount();
+			int depth2 = o2.toPath().getNameCount();
+			
+			return Integer.compare(depth1, depth2);
+		}
+	};
+	
+	/**
+	 * @return copy jobs for all track files that are missing or stale
+	 */
+	private List<TrackCopyJob> planCopies(DestinationScan destinationScan,
+			Map<File, File> moves) throws IOException
+	{
+		List<TrackCopyJob> jobs = new ArrayList<>();
+		for (Entry<File, ITrack> entry : trackFiles.entrySet())
+		{
+			ITrack track = entry.getValue();
+			File destFile = entry.getKey();
+
+			if (!sourceStates.containsKey(track.getFile()))
+			{
+				// keep an existing copy of a source that can't be read
+				FileState destState = destinationScan.getFileState(destFile);
+				if (destState != null)
+				{
+					syncedFiles.put(destFile,
+							destState.withSourcePath(sourcePath(track)));
+				}
+				continue;
+			}
+
+			if (!moves.containsKey(destFile)
+					&& !isUpToDate(track, destFile, destinationScan))
+			{
+				jobs.add(new TrackCopyJob(track, destFile, destinationScan));
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * @return false, if the destination file is missing or stale (e.g. the
+	 *         source was re-tagged or a previous copy was truncated)
+	 * @throws IOException
+	 */
+	private boolean isUpToDate(ITrack track, File destFile,
+			DestinationScan destinationScan) throws IOException
+	{
+		// the scan knows all existing files with their attributes
+		FileState destState = destinationScan.getFileState(destFile);
+		if (destState == null)
+		{
+			return false;
+		}
+
+		FileState sourceState = sourceStates.get(track.getFile());
+		if (comparison.isUpToDate(track.getFile(), sourceState,
+				destinationScan.getActualFile(destFile), destState))
+		{
+			syncedFiles.put(destFile, destState.withSourcePath(sourcePath(track)));
+			return true;
+		}
+
+		System.out.println("Refreshing stale " + destFile);
+		return false;
+	}
+
+	private static String sourcePath(ITrack track)
+	{
+		return track.getFile().getAbsolutePath();
+	}
+
+	/**
+	 * Copies one track file. {@link FanOutSync} uses {@link #begin()} and
+	 * {@link #complete(TempFile)} to copy a source to several destinations at
+	 * once.
+	 */
+	class TrackCopyJob implements CopyJob
+	{
+		private final ITrack track;
+		private final File destFile;
+		private final DestinationScan destinationScan;
+		private FileState sourceState;
+		private TempFile tempFile;
+		private volatile boolean copied;
+
+		TrackCopyJob(ITrack track, File destFile,
+				DestinationScan destinationScan)
+		{
+			this.track = track;
+			this.destFile = destFile;
+			this.destinationScan = destinationScan;
+		}
+
+		@Override
+		public File getSource()
+		{
+			return track.getFile();
+		}
+
+		/**
+		 * @return the limit of the writes of this job
+		 */
+		IoLimits.Limit getWrites(IoLimits limits)
+		{
+			return limits.getDestinationWrites(destDir);
+		}
+
+		/**
+		 * Copy the track to its destination path. Copying will be performed
+		 * via temporary file. In case of errors during copying or sudden
+		 * program exit, the temporary file stays and the next run of sync()
+		 * continues the copy if the source hasn't changed in the meantime.
+		 * Otherwise, the temporary file will be deleted by the next run of
+		 * sync().
+		 */
+		@Override
+		public void copy(IoLimits limits) throws IOException
+		{
+			try (TempFile tempFile = this.tempFile)
+			{
+				if (link())
+				{
+					return;
+				}
+
+				long offset = FileCopier.getResumableLength(track.getFile(),
+						tempFile);
+				if (offset > 0)
+				{
+					System.out.println("Resuming " + destFile + " at byte "
+							+ offset);
+				}
+				else
+				{
+					System.out.println("Copying " + destFile);
+				}
+				copier.copy(track.getFile(), tempFile, offset,
+						limits.getSourceReads(), getWrites(limits));
+				complete(tempFile);
+			}
+		}
+
+		/**
+		 * Link the track instead of copying it, if the link mode and the file
+		 * systems allow it.
+		 * 
+		 * @return true, if the track is complete
+		 * @throws IOException
+		 */
+		boolean link() throws IOException
+		{
+			if (!linker.link(track.getFile(), tempFile))
+			{
+				return false;
+			}
+
+			// shares the data of the source
+			System.out.println("Linking " + destFile);
+			release(sourceState.getSize());
+			complete(tempFile);
+			return true;
+		}
+
+		/**
+		 * Reserve space and budget and create all needed parent directories.
+		 * 
+		 * @return false, if the track must not be copied
+		 * @throws IOException
+		 */
+		@Override
+		public boolean begin() throws IOException
+		{
+			tempFile = null;
+			sourceState = FileState.read(track.getFile());
+			if (!reserve(destFile, sourceState.getSize(), destinationScan))
+			{
+				return false;
+			}
+
+			destinationTree.createFolder(destFile.getParentFile());
+			tempFile = TempFile.forSource(destFile, sourceState);
+			if (partialFiles.add(tempFile))
+			{
+				// found by the next sync if this one is interrupted
+				journal.partial(tempFile);
+			}
+			return true;
+		}
+
+		/**
+		 * @return the temporary file to copy the track to, see
+		 *         {@link #begin()}
+		 */
+		TempFile getTempFile()
+		{
+			return tempFile;
+		}
+
+		/**
+		 * Replace the destination file with the completed temporary file as
+		 * soon as its data is durable.
+		 */
+		void complete(TempFile tempFile) throws IOException
+		{
+			// copies keep the size and last modified time of their source
+			FileState state = sourceState.withSourcePath(sourcePath(track));
+			barrier.completeWhenDurable(tempFile, sourceState.getSize(),
+					() -> replace(tempFile, state),
+					() -> journal.copied(destFile, state));
+		}
+
+		private void replace(TempFile tempFile, FileState state)
+				throws IOException
+		{
 			tempFile.renameToOriginal();
+			deleteOtherNormalization();
+
+			syncedFiles.put(destFile, state);
+			copied(destFile);
+			copied = true;
+		}
+
+		/**
+		 * Delete a stale file that only differed in the Unicode normalization
+		 * of its name, unless the destination treats both names as the same.
+		 */
+		private void deleteOtherNormalization() throws IOException
+		{
+			File actual = destinationScan.getActualFile(destFile);
+			if (!actual.equals(destFile) && actual.exists()
+					&& !Files.isSameFile(actual.toPath(), destFile.toPath()))
+			{
+				Files.delete(actual.toPath());
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return destFile.toString();
 		}
 	}
 }
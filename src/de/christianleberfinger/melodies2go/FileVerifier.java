@@ -0,0 +1,193 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Compares destination files with their sources after a sync. Cheap SD cards
+ * occasionally return corrupted data without reporting an error.
+ *
+ * Sources and destinations are hashed at the same time by separate threads,
+ * so verification runs at the speed of the slower device. Sources are hashed
+ * over memory-mapped regions, without copying them to the heap. Destination
+ * files are read instead, as they may be deleted or replaced right after
+ * their verification, which fails on Windows while a file is still mapped.
+ *
+ * Data that was just written may still be in the page cache, so a
+ * verification of {@link Mode#COPIED} files mostly detects errors on the way
+ * to the card. Use {@link Mode#SAMPLE} in a later run to read from the card.
+ * Use the VerifyBenchmark in the tests to measure the overhead.
+ */
+public class FileVerifier
+{
+	public enum Mode
+	{
+		/**
+		 * Nothing is verified.
+		 */
+		NONE,
+
+		/**
+		 * Files copied in this sync are verified.
+		 */
+		COPIED,
+
+		/**
+		 * A random sample of all files on the destination is verified, see
+		 * {@link SyncOptions#getVerifySampleSize()}.
+		 */
+		SAMPLE
+	}
+
+	/**
+	 * Size of the regions that are mapped one after another.
+	 */
+	private static final long REGION_SIZE = 64 * 1024 * 1024;
+
+	private final int sourceReadConcurrency;
+	private final int destinationReadConcurrency;
+
+	public FileVerifier(SyncOptions options)
+	{
+		this(options.getSourceReadConcurrency(),
+				options.getDestinationWriteConcurrency());
+	}
+
+	public FileVerifier(int sourceReadConcurrency,
+			int destinationReadConcurrency)
+	{
+		this.sourceReadConcurrency = sourceReadConcurrency;
+		this.destinationReadConcurrency = destinationReadConcurrency;
+	}
+
+	/**
+	 * @param files
+	 *            destination files mapped to their sources
+	 * @return destination files that differ from their source or can't be
+	 *         read
+	 * @throws IOException
+	 *             if interrupted
+	 */
+	public List<File> verify(Map<File, File> files) throws IOException
+	{
+		ExecutorService sourceExecutor = createExecutor(sourceReadConcurrency);
+		ExecutorService destinationExecutor = createExecutor(
+				destinationReadConcurrency);
+		try
+		{
+			List<Future<HashCode>> sourceHashes = new ArrayList<>(files.size());
+			List<Future<HashCode>> destinationHashes = new ArrayList<>(
+					files.size());
+			for (Entry<File, File> entry : files.entrySet())
+			{
+				sourceHashes.add(sourceExecutor.submit(() -> hash(entry.getValue())));
+				destinationHashes.add(destinationExecutor
+						.submit(() -> hashUnmapped(entry.getKey())));
+			}
+
+			List<File> mismatches = new ArrayList<>();
+			int i = 0;
+			for (Entry<File, File> entry : files.entrySet())
+			{
+				HashCode sourceHash = await(sourceHashes.get(i), entry.getValue());
+				HashCode destinationHash = await(destinationHashes.get(i),
+						entry.getKey());
+				i++;
+
+				if (sourceHash == null)
+				{
+					// the source can't be copied again either
+					continue;
+				}
+				if (!sourceHash.equals(destinationHash))
+				{
+					System.err.println("Verification failed: " + entry.getKey());
+					mismatches.add(entry.getKey());
+				}
+			}
+			return mismatches;
+		}
+		finally
+		{
+			sourceExecutor.shutdownNow();
+			destinationExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return the hash, or null if the file can't be read
+	 */
+	private static HashCode await(Future<HashCode> future, File file)
+			throws IOException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while verifying", e);
+		}
+		catch (ExecutionException e)
+		{
+			System.err.println("Can't verify " + file + ": " + e.getCause());
+			return null;
+		}
+	}
+
+	private static ExecutorService createExecutor(int threads)
+	{
+		return Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "melodies2go-verify");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Hash the content of a file over memory-mapped regions. Equal to a
+	 * murmur3_128 hash of the file's bytes. The regions stay mapped until
+	 * they are garbage collected, so use {@link #hashUnmapped(File)} for
+	 * files that are deleted or replaced afterwards.
+	 */
+	public static HashCode hash(File file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			Hasher hasher = Hashing.murmur3_128().newHasher();
+			for (long position = 0; position < size; position += REGION_SIZE)
+			{
+				hasher.putBytes(channel.map(MapMode.READ_ONLY, position,
+						Math.min(REGION_SIZE, size - position)));
+			}
+			return hasher.hash();
+		}
+	}
+
+	/**
+	 * Hash the content of a file by reading it. Equal to {@link #hash(File)}.
+	 */
+	public static HashCode hashUnmapped(File file) throws IOException
+	{
+		return Files.asByteSource(file).hash(Hashing.murmur3_128());
+	}
+}
@@ -0,0 +1,108 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of concurrent reads from the sources and of concurrent
+ * writes to each destination. A permit is only held for a single read or
+ * write call, so a copy that waits for a slow destination doesn't keep other
+ * copies from reading, and the two limits apply independently.
+ */
+public class IoLimits
+{
+	/**
+	 * A read or write call.
+	 */
+	public interface IoCall<T>
+	{
+		T call() throws IOException;
+	}
+
+	/**
+	 * Limits the concurrent calls on one device.
+	 */
+	public static class Limit
+	{
+		private final Semaphore permits;
+
+		private Limit(Semaphore permits)
+		{
+			this.permits = permits;
+		}
+
+		public <T> T run(IoCall<T> call) throws IOException
+		{
+			if (permits == null)
+			{
+				return call.call();
+			}
+
+			try
+			{
+				permits.acquire();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while copying");
+			}
+			try
+			{
+				return call.call();
+			}
+			finally
+			{
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Doesn't limit anything.
+	 */
+	public static final IoLimits NONE = new IoLimits(0, 0);
+
+	static final Limit UNLIMITED = new Limit(null);
+
+	private final Limit sourceReads;
+	private final int destinationWriteConcurrency;
+	private final Map<File, Limit> destinationWrites = new ConcurrentHashMap<>();
+
+	/**
+	 * @param sourceReadConcurrency
+	 *            concurrent reads from all sources, 0 for no limit
+	 * @param destinationWriteConcurrency
+	 *            concurrent writes to each destination, 0 for no limit
+	 */
+	public IoLimits(int sourceReadConcurrency, int destinationWriteConcurrency)
+	{
+		this.sourceReads = create(sourceReadConcurrency);
+		this.destinationWriteConcurrency = destinationWriteConcurrency;
+	}
+
+	private static Limit create(int concurrency)
+	{
+		return concurrency > 0 ? new Limit(new Semaphore(concurrency, true))
+				: UNLIMITED;
+	}
+
+	public Limit getSourceReads()
+	{
+		return sourceReads;
+	}
+
+	/**
+	 * @param destination
+	 *            the destination directory
+	 */
+	public Limit getDestinationWrites(File destination)
+	{
+		return destinationWrites.computeIfAbsent(destination,
+				key -> create(destinationWriteConcurrency));
+	}
+}
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 
@@ -18,6 +19,8 @@ import com.google.common.collect.Multiset;
 import com.google.common.collect.Multisets;
 
 import de.christianleberfinger.melodies2go.FileSync.SyncedTrack;
+import de.christianleberfinger.melodies2go.SyncOptions.SyncOptionsBuilder;
+import de.christianleberfinger.melodies2go.TrackCompilation.Profile;
 import de.christianleberfinger.melodies2go.parser.ITrack;
 import de.christianleberfinger.melodies2go.parser.ITunesXMLParser;
 import de.christianleberfinger.melodies2go.parser.Tracks;
@@ -33,41 +36,266 @@ import de.christianleberfinger.melodies2go.utils.TSVExport;
  */
 public class Melodies2Go
 {
+	public static final int MAX_TRACK_COUNT = 10_000;
+
+	private static final String USAGE = "Usage: Melodies2Go [options] <Size-in-GB> </path/to/destination> [<Size-in-GB> </path/to/destination> ...]\n"
+			+ "Options:\n"
+			+ "  --read-threads <n>    maximum number of source files read in parallel\n"
+			+ "  --write-threads <n>   maximum number of destination files written in parallel\n"
+			+ "  --copy-method <m>     'transfer' (kernel copy, default), 'buffered' or\n"
+			+ "                        'pipelined' (read ahead while writing, for slow SD cards)\n"
+			+ "  --buffer-size <KiB>   buffer size for buffered and pipelined copies\n"
+			+ "  --buffers <n>         number of read-ahead buffers for pipelined copies\n"
+			+ "  --compare <mode>      refresh existing files by 'size_and_mtime' (default),\n"
+			+ "                        'content' (hash) or never ('existence')\n"
+			+ "  --rescan              walk the destination even if it has a manifest\n"
+			+ "  --time-budget <min>   stop copying after the given number of minutes\n"
+			+ "  --byte-budget <MiB>   copy at most the given amount of data to each destination\n"
+			+ "  --fan-out             sync all destinations at once, reading each source file once\n"
+			+ "  --copy-order <o>      copy by 'priority' (default) or by 'source' location\n"
+			+ "                        (sequential reads from spinning disks and NAS shares)\n"
+			+ "  --batch-by-directory  copy the files of a source directory one after another\n"
+			+ "  --link <mode>         on the library's file system, create 'hard_link's or\n"
+			+ "                        copy-on-write 'clone's instead of copies (staging)\n"
+			+ "  --durability <p>      force copies to the card: 'none' (default), 'batched'\n"
+			+ "                        or 'every_file'\n"
+			+ "  --sync-batch <MiB>    amount of data per forced batch (default 64)\n"
+			+ "  --preallocate         extend new files to their final size before writing\n"
+			+ "  --layout <g>          group artist folders by 'initial' (default),\n"
+			+ "                        'two_letters', 'genre' or 'decade'\n"
+			+ "  --max-folder-entries <n>  split groups with more artists into ranges\n"
+			+ "  --dry-run             only print the changes to each destination\n"
+			+ "  --verify <v>          compare the 'copied' files or a 'sample' of all files\n"
+			+ "                        with their source and copy mismatches again\n"
+			+ "  --verify-sample <n>   number of files verified by 'sample' (default 100)\n"
+			+ "  --watch               keep running and sync whenever the library is exported\n"
+			+ "                        or a destination is mounted\n";
+
 	public static void main(String[] args)
 			throws SAXException, IOException
 	{
-		if (args.length < 2)
+		List<String> arguments = new ArrayList<>(Arrays.asList(args));
+		SyncOptionsBuilder optionsBuilder = new SyncOptionsBuilder();
+		parseOptions(arguments, optionsBuilder);
+		SyncOptions options = optionsBuilder.build();
+
+		if (arguments.size() < 2 || arguments.size() % 2 != 0)
 		{
-			throw new RuntimeException(
-					"Usage: Melodies2Go <Size-in-GB> </path/to/destination>");
+			throw new RuntimeException(USAGE);
 		}
 		
-		int gigabytes = Integer.parseInt(args[0]);
-		File destPath = new File(args[1]);
+		// every pair of arguments describes one destination, e.g. one SD card
+		List<Profile> profiles = new ArrayList<>();
+		List<File> destPaths = new ArrayList<>();
+		for (int i = 0; i < arguments.size(); i += 2)
+		{
+			int gigabytes = Integer.parseInt(arguments.get(i));
+			File destPath = new File(arguments.get(i + 1));
 
-		long availableCapacityBytes = gigabytes * FileUtils.ONE_GB;
+			// in watch mode, destinations are synced when they're mounted
+			if (!destPath.exists() && !options.isWatch())
+			{
+				throw new FileNotFoundException("Can't find " + destPath);
+			}
+
+			long availableCapacityBytes = gigabytes * FileUtils.ONE_GB;
+			profiles.add(new Profile(availableCapacityBytes, MAX_TRACK_COUNT));
+			destPaths.add(destPath);
+		}
 		
 		File itunesLibrary = findiTunesLibrary();
+		if (options.isWatch())
+		{
+			new WatchSync(itunesLibrary, profiles, destPaths, options).run();
+			return;
+		}
 		checkIfUpToDate(itunesLibrary);
 
 		Melodies2Go sync = new Melodies2Go();
-		List<ITrack> allTracks = sync.readiTunesLibrary(itunesLibrary);
-		
-		List<ITrack> selectedTracks = TrackCompilation.compileSelection(allTracks, availableCapacityBytes);
-		selectedTracks = limitTrackNumber(selectedTracks, 10_000);
 		
-		sync.printStatistics(selectedTracks);
-		TSVExport.export(selectedTracks, Paths.get("filtered_melodies.tsv"));
+		// parse, validate, compile and scan the destinations concurrently
+		SyncPipeline pipeline = new SyncPipeline(itunesLibrary, profiles, destPaths, options);
+		SyncPipeline.Result prepared = pipeline.run();
+		List<List<ITrack>> selections = prepared.getSelections();
 		
-		if (!destPath.exists())
+		if (options.isDryRun())
 		{
-			throw new FileNotFoundException("Can't find " + destPath);
+			for (int i = 0; i < selections.size(); i++)
+			{
+				List<ITrack> selectedTracks = selections.get(i);
+				System.out.println("Destination " + destPaths.get(i));
+				sync.printStatistics(selectedTracks);
+				FileSync fileSync = new FileSync(selectedTracks, destPaths.get(i), options);
+				System.out.println(fileSync.plan(prepared.getDestinationScans().get(i)));
+			}
+			return;
 		}
 
-		FileSync fileSync = new FileSync(selectedTracks, destPath);
-		List<SyncedTrack> syncedTracks = fileSync.sync();
-		
-		M3UWriter.writeRecentlyAdded(destPath, syncedTracks);
+		if (options.isFanOut())
+		{
+			List<FileSync> fileSyncs = new ArrayList<>();
+			for (int i = 0; i < selections.size(); i++)
+			{
+				List<ITrack> selectedTracks = selections.get(i);
+				System.out.println("Destination " + destPaths.get(i));
+				sync.printStatistics(selectedTracks);
+				TSVExport.export(selectedTracks, Paths.get(getExportFileName(i)));
+				fileSyncs.add(new FileSync(selectedTracks, destPaths.get(i), options));
+			}
+
+			List<List<SyncedTrack>> syncedTracks = new FanOutSync(fileSyncs,
+					options).sync(prepared.getDestinationScans());
+			for (int i = 0; i < syncedTracks.size(); i++)
+			{
+				M3UWriter.writeRecentlyAdded(destPaths.get(i), syncedTracks.get(i));
+			}
+			return;
+		}
+
+		for (int i = 0; i < selections.size(); i++)
+		{
+			List<ITrack> selectedTracks = selections.get(i);
+			File destPath = destPaths.get(i);
+			DestinationScan destinationScan = prepared.getDestinationScans().get(i);
+
+			System.out.println("Destination " + destPath);
+			sync.printStatistics(selectedTracks);
+			TSVExport.export(selectedTracks, Paths.get(getExportFileName(i)));
+
+			FileSync fileSync = new FileSync(selectedTracks, destPath, options);
+			List<SyncedTrack> syncedTracks = fileSync.sync(destinationScan);
+			
+			M3UWriter.writeRecentlyAdded(destPath, syncedTracks);
+		}
+	}
+
+	/**
+	 * Removes all options (and their values) from the given arguments and
+	 * applies them to the given builder.
+	 */
+	protected static void parseOptions(List<String> arguments,
+			SyncOptionsBuilder optionsBuilder)
+	{
+		Iterator<String> it = arguments.iterator();
+		while (it.hasNext())
+		{
+			String option = it.next();
+			if (!option.startsWith("--"))
+			{
+				continue;
+			}
+			it.remove();
+
+			switch (option)
+			{
+			case "--read-threads":
+				optionsBuilder.sourceReadConcurrency(
+						Integer.parseInt(optionValue(it, option)));
+				break;
+			case "--write-threads":
+				optionsBuilder.destinationWriteConcurrency(
+						Integer.parseInt(optionValue(it, option)));
+				break;
+			case "--copy-method":
+				optionsBuilder.copyMethod(FileCopier.Method
+						.valueOf(optionValue(it, option).toUpperCase()));
+				break;
+			case "--buffer-size":
+				optionsBuilder.copyBufferSize(
+						Integer.parseInt(optionValue(it, option)) * 1024);
+				break;
+			case "--buffers":
+				optionsBuilder.copyBufferCount(
+						Integer.parseInt(optionValue(it, option)));
+				break;
+			case "--dry-run":
+				optionsBuilder.dryRun(true);
+				break;
+			case "--verify":
+				optionsBuilder.verifyMode(FileVerifier.Mode
+						.valueOf(optionValue(it, option).toUpperCase()));
+				break;
+			case "--verify-sample":
+				optionsBuilder.verifySampleSize(
+						Integer.parseInt(optionValue(it, option)));
+				break;
+			case "--watch":
+				optionsBuilder.watch(true);
+				break;
+			case "--rescan":
+				optionsBuilder.useManifest(false);
+				break;
+			case "--fan-out":
+				optionsBuilder.fanOut(true);
+				break;
+			case "--copy-order":
+				optionsBuilder.copyOrder(CopyOrder
+						.valueOf(optionValue(it, option).toUpperCase()));
+				break;
+			case "--batch-by-directory":
+				optionsBuilder.batchBySourceDirectory(true);
+				break;
+			case "--durability":
+				optionsBuilder.durability(DurabilityBarrier.Policy
+						.valueOf(optionValue(it, option).toUpperCase()));
+				break;
+			case "--sync-batch":
+				optionsBuilder.syncBatchSize(
+						Long.parseLong(optionValue(it, option)) * FileUtils.ONE_MB);
+				break;
+			case "--preallocate":
+				optionsBuilder.preallocate(true);
+				break;
+			case "--layout":
+				optionsBuilder.layoutGrouping(DestinationLayout.Grouping
+						.valueOf(optionValue(it, option).toUpperCase()));
+				break;
+			case "--max-folder-entries":
+				optionsBuilder.maxFolderEntries(
+						Integer.parseInt(optionValue(it, option)));
+				break;
+			case "--link":
+				optionsBuilder.linkMode(FileLinker.Mode
+						.valueOf(optionValue(it, option).toUpperCase()));
+				break;
+			case "--compare":
+				optionsBuilder.compareMode(FileComparison.Mode
+						.valueOf(optionValue(it, option).toUpperCase()));
+				break;
+			case "--time-budget":
+				optionsBuilder.timeBudget(Duration.ofMinutes(
+						Long.parseLong(optionValue(it, option))));
+				break;
+			case "--byte-budget":
+				optionsBuilder.byteBudget(
+						Long.parseLong(optionValue(it, option)) * FileUtils.ONE_MB);
+				break;
+			default:
+				throw new IllegalArgumentException(
+						"Unknown option " + option + "\n" + USAGE);
+			}
+		}
+	}
+
+	private static String optionValue(Iterator<String> it, String option)
+	{
+		if (!it.hasNext())
+		{
+			throw new IllegalArgumentException(
+					"Missing value for option " + option);
+		}
+		String value = it.next();
+		it.remove();
+		return value;
+	}
+
+	private static String getExportFileName(int profileIndex)
+	{
+		if (profileIndex == 0)
+		{
+			return "filtered_melodies.tsv";
+		}
+		return "filtered_melodies_" + (profileIndex + 1) + ".tsv";
 	}
 
 	/**
@@ -105,30 +333,43 @@ public class Melodies2Go
 		List<ITrack> filteredTracks = new ArrayList<>(tracks.size());
 		for(ITrack ratedTrack : tracks)
 		{
-			// ignore tracks without valid file information
-			File trackFile = ratedTrack.getFile();
-			if (trackFile == null || !trackFile.exists()
-					|| trackFile.isDirectory())
+			if (isValidTrack(ratedTrack))
 			{
-				continue;
+				filteredTracks.add(ratedTrack);
 			}
+		}
 
-			// ignore movies
-			if (ratedTrack.hasVideo())
-			{
-				continue;
-			}
-			
-			// ignore disabled tracks
-			if (ratedTrack.isDisabled())
-			{
-				continue;
-			}
+		return filteredTracks;
+	}
+
+	/**
+	 * @return false for movies, disabled tracks and tracks whose file can't
+	 *         be found on disk
+	 */
+	public static boolean isValidTrack(ITrack ratedTrack)
+	{
+		// ignore movies
+		if (ratedTrack.hasVideo())
+		{
+			return false;
+		}
+		
+		// ignore disabled tracks
+		if (ratedTrack.isDisabled())
+		{
+			return false;
+		}
 
-			filteredTracks.add(ratedTrack);
+		// ignore tracks without valid file information. This is checked last,
+		// as it's the only check that needs to access the disk.
+		File trackFile = ratedTrack.getFile();
+		if (trackFile == null || !trackFile.exists()
+				|| trackFile.isDirectory())
+		{
+			return false;
 		}
 
-		return filteredTracks;
+		return true;
 	}
 
 	private void printStatistics(List<ITrack> filteredTracks)
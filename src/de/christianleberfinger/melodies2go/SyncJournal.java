@@ -0,0 +1,281 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Hidden write-ahead journal in the destination root. A sync records its
+ * planned operations before changing the destination and appends a record
+ * with the resulting file state whenever an operation has completed.
+ *
+ * The journal always continues the destination's {@link SyncManifest}. If a
+ * sync is interrupted (unplugging, Ctrl-C, ...), the next scan replays the
+ * completed operations on top of the manifest, so it knows the exact state of
+ * the destination without walking it, and the sync continues with the
+ * remaining work. The journal is removed whenever the manifest is rewritten,
+ * at the latest at the end of a sync.
+ *
+ * The planned operations are forced to the device before the destination is
+ * changed. Records of completed operations are forced once the operations
+ * themselves are durable, see {@link DurabilityBarrier}.
+ */
+public class SyncJournal implements Closeable
+{
+	public static final String FILE_NAME = ".melodies2go-journal";
+
+	private static final int MAGIC = 0x4D32474A; // "M2GJ"
+	private static final int VERSION = 1;
+
+	private static final byte PLANNED_COPY = 1;
+	private static final byte PLANNED_MOVE = 2;
+	private static final byte PLANNED_DELETE = 3;
+	private static final byte PARTIAL = 4;
+	private static final byte COPIED = 11;
+	private static final byte MOVED = 12;
+	private static final byte DELETED = 13;
+
+	private final Path root;
+	private final FileOutputStream file;
+	private final DataOutputStream out;
+
+	private SyncJournal(File destDir) throws IOException
+	{
+		this.root = destDir.toPath();
+		this.file = new FileOutputStream(new File(destDir, FILE_NAME));
+		this.out = new DataOutputStream(new BufferedOutputStream(file));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+	}
+
+	/**
+	 * Start a new journal that replaces any previous one.
+	 *
+	 * @param destDir
+	 * @param copies
+	 *            destination files that will be copied
+	 * @param moves
+	 *            destination files that will be moved, mapped to their
+	 *            current location
+	 * @param deletes
+	 *            destination files that will be deleted
+	 * @return the journal
+	 * @throws IOException
+	 */
+	public static SyncJournal start(File destDir, Collection<File> copies,
+			Map<File, File> moves, Collection<File> deletes) throws IOException
+	{
+		SyncJournal journal = new SyncJournal(destDir);
+		try
+		{
+			for (Entry<File, File> move : moves.entrySet())
+			{
+				journal.write(PLANNED_MOVE, move.getValue(), move.getKey());
+			}
+			for (File file : deletes)
+			{
+				journal.write(PLANNED_DELETE, file);
+			}
+			for (File file : copies)
+			{
+				journal.write(PLANNED_COPY, file);
+			}
+			journal.force();
+			return journal;
+		}
+		catch (IOException e)
+		{
+			journal.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Record a partial copy that is kept if the copy fails, so that the next
+	 * sync can resume or delete it.
+	 */
+	public synchronized void partial(File file) throws IOException
+	{
+		write(PARTIAL, file);
+		out.flush();
+	}
+
+	public synchronized void copied(File file, FileState state)
+			throws IOException
+	{
+		write(COPIED, file);
+		writeState(state);
+		out.flush();
+	}
+
+	public synchronized void moved(File from, File to, FileState state)
+			throws IOException
+	{
+		write(MOVED, from, to);
+		writeState(state);
+		out.flush();
+	}
+
+	public synchronized void deleted(File file) throws IOException
+	{
+		write(DELETED, file);
+		out.flush();
+	}
+
+	/**
+	 * Force all records to the device.
+	 */
+	public synchronized void force() throws IOException
+	{
+		out.flush();
+		file.getFD().sync();
+	}
+
+	private void write(byte type, File... files) throws IOException
+	{
+		out.writeByte(type);
+		for (File file : files)
+		{
+			out.writeUTF(root.relativize(file.toPath()).toString()
+					.replace(File.separatorChar, '/'));
+		}
+	}
+
+	private void writeState(FileState state) throws IOException
+	{
+		String sourcePath = state.getSourcePath();
+		out.writeLong(state.getSize());
+		out.writeLong(state.getLastModified());
+		out.writeUTF(sourcePath == null ? "" : sourcePath);
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		out.close();
+	}
+
+	/**
+	 * Apply the completed operations of an interrupted sync.
+	 *
+	 * @param destDir
+	 * @param files
+	 *            file states read from the manifest, will be updated
+	 * @return true, if there was a journal
+	 * @throws IOException
+	 *             if the journal can't be read. The state of the destination
+	 *             is unknown then.
+	 */
+	public static boolean replay(File destDir, Map<File, FileState> files)
+			throws IOException
+	{
+		File journalFile = new File(destDir, FILE_NAME);
+		if (!journalFile.isFile())
+		{
+			return false;
+		}
+
+		int planned = 0;
+		int done = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(journalFile))))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			{
+				throw new IOException("Unknown journal format " + journalFile);
+			}
+
+			while (true)
+			{
+				byte type = in.readByte();
+				switch (type)
+				{
+				case PLANNED_COPY:
+				case PLANNED_DELETE:
+					in.readUTF();
+					planned++;
+					break;
+				case PLANNED_MOVE:
+					in.readUTF();
+					in.readUTF();
+					planned++;
+					break;
+				case PARTIAL:
+				{
+					// unless it was completed in the meantime
+					File file = readFile(destDir, in);
+					if (file.isFile())
+					{
+						files.put(file, FileState.read(file));
+					}
+					break;
+				}
+				case COPIED:
+				{
+					File file = readFile(destDir, in);
+					FileState state = readState(in);
+					files.put(file, state);
+					done++;
+					break;
+				}
+				case MOVED:
+				{
+					File from = readFile(destDir, in);
+					File to = readFile(destDir, in);
+					FileState state = readState(in);
+					files.remove(from);
+					files.put(to, state);
+					done++;
+					break;
+				}
+				case DELETED:
+					files.remove(readFile(destDir, in));
+					done++;
+					break;
+				default:
+					throw new IOException("Unknown record " + type);
+				}
+			}
+		}
+		catch (EOFException e)
+		{
+			// end of journal, the last record may be incomplete
+		}
+
+		System.out.println("Resuming interrupted sync of " + destDir + ": "
+				+ done + " of " + planned + " operations were completed");
+		return true;
+	}
+
+	private static File readFile(File destDir, DataInputStream in)
+			throws IOException
+	{
+		return new File(destDir, in.readUTF());
+	}
+
+	private static FileState readState(DataInputStream in) throws IOException
+	{
+		long size = in.readLong();
+		long lastModified = in.readLong();
+		String sourcePath = in.readUTF();
+		return new FileState(size, lastModified,
+				sourcePath.isEmpty() ? null : sourcePath);
+	}
+
+	public static void delete(File destDir) throws IOException
+	{
+		Files.deleteIfExists(new File(destDir, FILE_NAME).toPath());
+	}
+}
@@ -0,0 +1,192 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Hidden file in the destination root that lists every track file written by
+ * the last sync with its size, last modified time and source file, as well as
+ * the partial copies that are kept for resuming. Reading it is much cheaper
+ * than walking the whole destination tree, especially on FAT formatted
+ * cards.
+ *
+ * Changes made by a sync are recorded in a {@link SyncJournal} that continues
+ * the manifest, and the manifest is written again when the sync has finished.
+ * A missing manifest means that the destination has to be walked.
+ *
+ * The manifest also records whether the destination was taken for case
+ * sensitive, so that later syncs plan the same names, even if the first
+ * sync couldn't tell for sure.
+ *
+ * Only the top level of the destination and the folders of the selected
+ * tracks are compared with the manifest. Other changes made by other tools
+ * further down, e.g. deleted files, aren't noticed; use the
+ * <code>--rescan</code> option in that case.
+ */
+public class SyncManifest
+{
+	public static final String FILE_NAME = ".melodies2go-manifest";
+
+	private static final int MAGIC = 0x4D32474D; // "M2GM"
+	private static final int VERSION = 2;
+
+	/**
+	 * Manifests of this version don't record the case sensitivity.
+	 */
+	private static final int VERSION_WITHOUT_CASE = 1;
+
+	/**
+	 * Read the manifest of the given destination.
+	 *
+	 * @param destDir
+	 * @return the states of all files listed in the manifest, or null if there
+	 *         is no readable manifest
+	 */
+	public static Map<File, FileState> read(File destDir)
+	{
+		File manifestFile = new File(destDir, FILE_NAME);
+		if (!manifestFile.isFile())
+		{
+			return null;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(manifestFile))))
+		{
+			if (in.readInt() != MAGIC)
+			{
+				return null;
+			}
+			int version = in.readInt();
+			if (version == VERSION)
+			{
+				in.readBoolean();
+			}
+			else if (version != VERSION_WITHOUT_CASE)
+			{
+				return null;
+			}
+
+			int count = in.readInt();
+			Map<File, FileState> files = new TreeMap<>();
+			for (int i = 0; i < count; i++)
+			{
+				String relativePath = in.readUTF();
+				long size = in.readLong();
+				long lastModified = in.readLong();
+				String sourcePath = in.readUTF();
+
+				File file = new File(destDir, relativePath);
+				files.put(file, new FileState(size, lastModified,
+						sourcePath.isEmpty() ? null : sourcePath));
+			}
+
+			// guards against truncated files
+			if (in.readInt() != count)
+			{
+				return null;
+			}
+			return files;
+		}
+		catch (IOException e)
+		{
+			System.err.println("Ignoring unreadable manifest " + manifestFile);
+			return null;
+		}
+	}
+
+	/**
+	 * @param destDir
+	 * @return true, if the sync that wrote the manifest took the destination
+	 *         for case sensitive, or null if the manifest doesn't tell
+	 */
+	public static Boolean readCaseSensitive(File destDir)
+	{
+		File manifestFile = new File(destDir, FILE_NAME);
+		if (!manifestFile.isFile())
+		{
+			return null;
+		}
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(manifestFile))))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+			{
+				return null;
+			}
+			return in.readBoolean();
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Atomically and durably replace the manifest of the given destination.
+	 * Any journal is deleted, as it continued the previous manifest.
+	 *
+	 * @param destDir
+	 * @param files
+	 * @param caseSensitive
+	 *            see {@link DestinationScan#isCaseSensitive()}
+	 * @throws IOException
+	 */
+	public static void write(File destDir, Map<File, FileState> files,
+			boolean caseSensitive) throws IOException
+	{
+		Path root = destDir.toPath();
+		File manifestFile = new File(destDir, FILE_NAME);
+
+		try (TempFile tempFile = new TempFile(manifestFile))
+		{
+			try (FileOutputStream file = new FileOutputStream(tempFile);
+					DataOutputStream out = new DataOutputStream(
+							new BufferedOutputStream(file)))
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeBoolean(caseSensitive);
+				out.writeInt(files.size());
+				for (Entry<File, FileState> entry : files.entrySet())
+				{
+					FileState state = entry.getValue();
+					String relativePath = root.relativize(entry.getKey().toPath())
+							.toString().replace(File.separatorChar, '/');
+					String sourcePath = state.getSourcePath();
+
+					out.writeUTF(relativePath);
+					out.writeLong(state.getSize());
+					out.writeLong(state.getLastModified());
+					out.writeUTF(sourcePath == null ? "" : sourcePath);
+				}
+				out.writeInt(files.size());
+				out.flush();
+				file.getFD().sync();
+			}
+			tempFile.renameToOriginal();
+			DurabilityBarrier.forceDirectory(destDir);
+		}
+		SyncJournal.delete(destDir);
+	}
+
+	/**
+	 * Remove the manifest, e.g. before the destination is changed.
+	 */
+	public static void delete(File destDir) throws IOException
+	{
+		Files.deleteIfExists(new File(destDir, FILE_NAME).toPath());
+	}
+}
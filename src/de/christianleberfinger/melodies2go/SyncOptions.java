@@ -0,0 +1,428 @@
+package de.christianleberfinger.melodies2go;
+
+import java.time.Duration;
+
+/**
+ * Settings of a {@link FileSync}. Use {@link SyncOptionsBuilder} to create
+ * instances; {@link #defaults()} returns the settings used when nothing else
+ * is configured.
+ */
+public class SyncOptions
+{
+	private final int sourceReadConcurrency;
+	private final int destinationWriteConcurrency;
+	private final FileCopier.Method copyMethod;
+	private final int copyBufferSize;
+	private final int copyBufferCount;
+	private final FileComparison.Mode compareMode;
+	private final boolean useManifest;
+	private final long timeBudgetMillis;
+	private final long byteBudget;
+	private final boolean fanOut;
+	private final CopyOrder copyOrder;
+	private final boolean batchBySourceDirectory;
+	private final FileLinker.Mode linkMode;
+	private final DurabilityBarrier.Policy durability;
+	private final long syncBatchSize;
+	private final boolean preallocate;
+	private final DestinationLayout.Grouping layoutGrouping;
+	private final int maxFolderEntries;
+	private final boolean dryRun;
+	private final FileVerifier.Mode verifyMode;
+	private final int verifySampleSize;
+	private final boolean watch;
+
+	private SyncOptions(SyncOptionsBuilder builder)
+	{
+		sourceReadConcurrency = builder.sourceReadConcurrency;
+		destinationWriteConcurrency = builder.destinationWriteConcurrency;
+		copyMethod = builder.copyMethod;
+		copyBufferSize = builder.copyBufferSize;
+		copyBufferCount = builder.copyBufferCount;
+		compareMode = builder.compareMode;
+		useManifest = builder.useManifest;
+		timeBudgetMillis = builder.timeBudgetMillis;
+		byteBudget = builder.byteBudget;
+		fanOut = builder.fanOut;
+		copyOrder = builder.copyOrder;
+		batchBySourceDirectory = builder.batchBySourceDirectory;
+		linkMode = builder.linkMode;
+		durability = builder.durability;
+		syncBatchSize = builder.syncBatchSize;
+		preallocate = builder.preallocate;
+		layoutGrouping = builder.layoutGrouping;
+		maxFolderEntries = builder.maxFolderEntries;
+		dryRun = builder.dryRun;
+		verifyMode = builder.verifyMode;
+		verifySampleSize = builder.verifySampleSize;
+		watch = builder.watch;
+	}
+
+	public static SyncOptions defaults()
+	{
+		return new SyncOptionsBuilder().build();
+	}
+
+	/**
+	 * @return maximum number of reads from the sources at the same time
+	 */
+	public int getSourceReadConcurrency()
+	{
+		return sourceReadConcurrency;
+	}
+
+	/**
+	 * @return maximum number of writes to each destination at the same time
+	 */
+	public int getDestinationWriteConcurrency()
+	{
+		return destinationWriteConcurrency;
+	}
+
+	public FileCopier.Method getCopyMethod()
+	{
+		return copyMethod;
+	}
+
+	/**
+	 * @return size of the direct buffers used if data can't be transferred
+	 *         by the kernel
+	 */
+	public int getCopyBufferSize()
+	{
+		return copyBufferSize;
+	}
+
+	/**
+	 * @return number of buffers in the read-ahead ring of a pipelined copy
+	 */
+	public int getCopyBufferCount()
+	{
+		return copyBufferCount;
+	}
+
+	/**
+	 * @return how existing destination files are checked for changes
+	 */
+	public FileComparison.Mode getCompareMode()
+	{
+		return compareMode;
+	}
+
+	/**
+	 * @return false, if the destination must be walked even if it has a
+	 *         manifest, e.g. because files were changed by other tools
+	 */
+	public boolean isUseManifest()
+	{
+		return useManifest;
+	}
+
+	/**
+	 * @return milliseconds after the start of copying after which no more
+	 *         files are copied, counted for each sync
+	 */
+	public long getTimeBudgetMillis()
+	{
+		return timeBudgetMillis;
+	}
+
+	/**
+	 * @return maximum number of bytes copied to each destination
+	 */
+	public long getByteBudget()
+	{
+		return byteBudget;
+	}
+
+	/**
+	 * @return true, if all destinations are synced at once, reading each
+	 *         source file only once
+	 */
+	public boolean isFanOut()
+	{
+		return fanOut;
+	}
+
+	public CopyOrder getCopyOrder()
+	{
+		return copyOrder;
+	}
+
+	/**
+	 * @return true, if files of the same source directory are copied one
+	 *         after another
+	 */
+	public boolean isBatchBySourceDirectory()
+	{
+		return batchBySourceDirectory;
+	}
+
+	/**
+	 * @return how track files are created without copying if the destination
+	 *         shares the file system of the source
+	 */
+	public FileLinker.Mode getLinkMode()
+	{
+		return linkMode;
+	}
+
+	public DurabilityBarrier.Policy getDurability()
+	{
+		return durability;
+	}
+
+	/**
+	 * @return number of bytes copied before they are forced to the device by
+	 *         {@link DurabilityBarrier.Policy#BATCHED}
+	 */
+	public long getSyncBatchSize()
+	{
+		return syncBatchSize;
+	}
+
+	/**
+	 * @return true, if new files are extended to their final size before
+	 *         their data is written
+	 */
+	public boolean isPreallocate()
+	{
+		return preallocate;
+	}
+
+	/**
+	 * @return how artist folders are grouped on the destination
+	 */
+	public DestinationLayout.Grouping getLayoutGrouping()
+	{
+		return layoutGrouping;
+	}
+
+	/**
+	 * @return maximum number of artist folders in a group folder, 0 if there's
+	 *         no limit
+	 */
+	public int getMaxFolderEntries()
+	{
+		return maxFolderEntries;
+	}
+
+	/**
+	 * @return true, if the changes are only printed, see {@link SyncPlan}
+	 */
+	public boolean isDryRun()
+	{
+		return dryRun;
+	}
+
+	/**
+	 * @return which files are compared with their source after copying
+	 */
+	public FileVerifier.Mode getVerifyMode()
+	{
+		return verifyMode;
+	}
+
+	/**
+	 * @return number of files verified by {@link FileVerifier.Mode#SAMPLE}
+	 */
+	public int getVerifySampleSize()
+	{
+		return verifySampleSize;
+	}
+
+	/**
+	 * @return true, if the destinations are synced again whenever the
+	 *         library changes, see {@link WatchSync}
+	 */
+	public boolean isWatch()
+	{
+		return watch;
+	}
+
+	public static class SyncOptionsBuilder
+	{
+		private int sourceReadConcurrency = 4;
+		private int destinationWriteConcurrency = 2;
+		private FileCopier.Method copyMethod = FileCopier.Method.TRANSFER;
+		private int copyBufferSize = FileCopier.DEFAULT_BUFFER_SIZE;
+		private int copyBufferCount = FileCopier.DEFAULT_BUFFER_COUNT;
+		private FileComparison.Mode compareMode = FileComparison.Mode.SIZE_AND_MTIME;
+		private boolean useManifest = true;
+		private long timeBudgetMillis = Long.MAX_VALUE;
+		private long byteBudget = Long.MAX_VALUE;
+		private boolean fanOut = false;
+		private CopyOrder copyOrder = CopyOrder.PRIORITY;
+		private boolean batchBySourceDirectory = false;
+		private FileLinker.Mode linkMode = FileLinker.Mode.NONE;
+		private DurabilityBarrier.Policy durability = DurabilityBarrier.Policy.NONE;
+		private long syncBatchSize = 64 * 1024 * 1024;
+		private boolean preallocate = false;
+		private DestinationLayout.Grouping layoutGrouping = DestinationLayout.Grouping.INITIAL;
+		private int maxFolderEntries = 0;
+		private boolean dryRun = false;
+		private FileVerifier.Mode verifyMode = FileVerifier.Mode.NONE;
+		private int verifySampleSize = 100;
+		private boolean watch = false;
+
+		public SyncOptionsBuilder sourceReadConcurrency(int sourceReadConcurrency)
+		{
+			this.sourceReadConcurrency = requirePositive(sourceReadConcurrency);
+			return this;
+		}
+
+		public SyncOptionsBuilder destinationWriteConcurrency(
+				int destinationWriteConcurrency)
+		{
+			this.destinationWriteConcurrency = requirePositive(
+					destinationWriteConcurrency);
+			return this;
+		}
+
+		public SyncOptionsBuilder copyMethod(FileCopier.Method copyMethod)
+		{
+			this.copyMethod = copyMethod;
+			return this;
+		}
+
+		public SyncOptionsBuilder copyBufferSize(int copyBufferSize)
+		{
+			this.copyBufferSize = requirePositive(copyBufferSize);
+			return this;
+		}
+
+		public SyncOptionsBuilder copyBufferCount(int copyBufferCount)
+		{
+			this.copyBufferCount = requirePositive(copyBufferCount);
+			return this;
+		}
+
+		public SyncOptionsBuilder compareMode(FileComparison.Mode compareMode)
+		{
+			this.compareMode = compareMode;
+			return this;
+		}
+
+		public SyncOptionsBuilder useManifest(boolean useManifest)
+		{
+			this.useManifest = useManifest;
+			return this;
+		}
+
+		/**
+		 * Stop copying after the given time, counted from the start of each
+		 * sync. Files that are being copied at the deadline are completed.
+		 */
+		public SyncOptionsBuilder timeBudget(Duration timeBudget)
+		{
+			this.timeBudgetMillis = requirePositive(timeBudget.toMillis());
+			return this;
+		}
+
+		public SyncOptionsBuilder byteBudget(long byteBudget)
+		{
+			this.byteBudget = requirePositive(byteBudget);
+			return this;
+		}
+
+		public SyncOptionsBuilder fanOut(boolean fanOut)
+		{
+			this.fanOut = fanOut;
+			return this;
+		}
+
+		public SyncOptionsBuilder copyOrder(CopyOrder copyOrder)
+		{
+			this.copyOrder = copyOrder;
+			return this;
+		}
+
+		public SyncOptionsBuilder batchBySourceDirectory(
+				boolean batchBySourceDirectory)
+		{
+			this.batchBySourceDirectory = batchBySourceDirectory;
+			return this;
+		}
+
+		public SyncOptionsBuilder linkMode(FileLinker.Mode linkMode)
+		{
+			this.linkMode = linkMode;
+			return this;
+		}
+
+		public SyncOptionsBuilder durability(DurabilityBarrier.Policy durability)
+		{
+			this.durability = durability;
+			return this;
+		}
+
+		public SyncOptionsBuilder syncBatchSize(long syncBatchSize)
+		{
+			this.syncBatchSize = requirePositive(syncBatchSize);
+			return this;
+		}
+
+		public SyncOptionsBuilder preallocate(boolean preallocate)
+		{
+			this.preallocate = preallocate;
+			return this;
+		}
+
+		public SyncOptionsBuilder layoutGrouping(
+				DestinationLayout.Grouping layoutGrouping)
+		{
+			this.layoutGrouping = layoutGrouping;
+			return this;
+		}
+
+		public SyncOptionsBuilder maxFolderEntries(int maxFolderEntries)
+		{
+			this.maxFolderEntries = requirePositive(maxFolderEntries);
+			return this;
+		}
+
+		public SyncOptionsBuilder dryRun(boolean dryRun)
+		{
+			this.dryRun = dryRun;
+			return this;
+		}
+
+		public SyncOptionsBuilder verifyMode(FileVerifier.Mode verifyMode)
+		{
+			this.verifyMode = verifyMode;
+			return this;
+		}
+
+		public SyncOptionsBuilder verifySampleSize(int verifySampleSize)
+		{
+			this.verifySampleSize = requirePositive(verifySampleSize);
+			return this;
+		}
+
+		public SyncOptionsBuilder watch(boolean watch)
+		{
+			this.watch = watch;
+			return this;
+		}
+
+		public SyncOptions build()
+		{
+			return new SyncOptions(this);
+		}
+
+		private static int requirePositive(int value)
+		{
+			return (int) requirePositive((long) value);
+		}
+
+		private static long requirePositive(long value)
+		{
+			if (value < 1)
+			{
+				throw new IllegalArgumentException(
+						"value must be positive: " + value);
+			}
+			return value;
+		}
+	}
+}
@@ -0,0 +1,415 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.xml.sax.SAXException;
+
+import de.christianleberfinger.melodies2go.TrackCompilation.Profile;
+import de.christianleberfinger.melodies2go.parser.ITrack;
+import de.christianleberfinger.melodies2go.parser.ITrackListener;
+import de.christianleberfinger.melodies2go.parser.ITunesXMLParser;
+
+/**
+ * Prepares a sync in concurrent stages instead of one phase after another:
+ *
+ * <pre>
+ * parse --(bounded queue)--&gt; validate (n threads) --&gt; compile
+ * scan destination (one thread per destination) ----&gt;
+ * </pre>
+ *
+ * The CPU bound parser hands over tracks in batches. If the I/O bound
+ * validation can't keep up, the queue fills up and the parser is blocked
+ * (backpressure). The destination trees are scanned at the same time, as they
+ * don't depend on the library at all.
+ */
+public class SyncPipeline
+{
+	private static final int BATCH_SIZE = 256;
+	private static final int QUEUE_CAPACITY = 16;
+	private static final int DEFAULT_VALIDATION_THREADS = 4;
+
+	private final File itunesLibrary;
+	private final List<Profile> profiles;
+	private final List<File> destinations;
+	private final int validationThreads;
+	private final SyncOptions options;
+
+	private final List<Stage> stages = new ArrayList<>();
+
+	public SyncPipeline(File itunesLibrary, List<Profile> profiles,
+			List<File> destinations, SyncOptions options)
+	{
+		this(itunesLibrary, profiles, destinations, options,
+				DEFAULT_VALIDATION_THREADS);
+	}
+
+	public SyncPipeline(File itunesLibrary, List<Profile> profiles,
+			List<File> destinations, SyncOptions options,
+			int validationThreads)
+	{
+		this.itunesLibrary = itunesLibrary;
+		this.profiles = profiles;
+		this.destinations = destinations;
+		this.options = options;
+		this.validationThreads = validationThreads;
+	}
+
+	public static class Result
+	{
+		private final List<List<ITrack>> selections;
+		private final List<DestinationScan> destinationScans;
+
+		private Result(List<List<ITrack>> selections,
+				List<DestinationScan> destinationScans)
+		{
+			this.selections = selections;
+			this.destinationScans = destinationScans;
+		}
+
+		/**
+		 * @return one selection per profile
+		 */
+		public List<List<ITrack>> getSelections()
+		{
+			return selections;
+		}
+
+		/**
+		 * @return one scan per destination
+		 */
+		public List<DestinationScan> getDestinationScans()
+		{
+			return destinationScans;
+		}
+	}
+
+	/**
+	 * Wall time and busy time of a stage. Busy time excludes the time a stage
+	 * spends waiting on its hand-off queue.
+	 */
+	private static class Stage
+	{
+		private final String name;
+		private final int threads;
+		private final AtomicLong busyNanos = new AtomicLong();
+		private volatile long startNanos;
+		private volatile long endNanos;
+
+		Stage(String name, int threads)
+		{
+			this.name = name;
+			this.threads = threads;
+		}
+
+		void start()
+		{
+			startNanos = System.nanoTime();
+		}
+
+		synchronized void end()
+		{
+			// multi-threaded stages end with their last thread
+			endNanos = Math.max(endNanos, System.nanoTime());
+		}
+
+		void addBusyNanos(long nanos)
+		{
+			busyNanos.addAndGet(nanos);
+		}
+
+		@Override
+		public String toString()
+		{
+			long wallNanos = Math.max(endNanos - startNanos, 1);
+			long utilization = 100 * busyNanos.get() / (wallNanos * threads);
+			return String.format("%-9s %2d thread(s) %6d ms wall, %3d%% busy",
+					name, threads, TimeUnit.NANOSECONDS.toMillis(wallNanos),
+					utilization);
+		}
+	}
+
+	private static class Batch
+	{
+		private final int sequence;
+		private final List<ITrack> tracks;
+
+		Batch(int sequence, List<ITrack> tracks)
+		{
+			this.sequence = sequence;
+			this.tracks = tracks;
+		}
+	}
+
+	private static final Batch END_OF_STREAM = new Batch(-1, null);
+
+	public Result run() throws IOException, SAXException
+	{
+		long start = System.nanoTime();
+
+		Stage parseStage = addStage("parse", 1);
+		Stage validateStage = addStage("validate", validationThreads);
+		Stage scanStage = addStage("scan", destinations.size());
+
+		BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+		Map<Integer, List<ITrack>> validatedBatches = new ConcurrentHashMap<>();
+		List<Future<Object>> scanFutures = new ArrayList<>();
+		List<DestinationScan> scans = new ArrayList<>();
+
+		int threadCount = 1 + validationThreads + destinations.size();
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount,
+				namedThreads("melodies2go-pipeline"));
+		CompletionService<Object> completion = new ExecutorCompletionService<>(
+				executor);
+		try
+		{
+			completion.submit(() -> parse(queue, parseStage));
+
+			validateStage.start();
+			for (int i = 0; i < validationThreads; i++)
+			{
+				completion.submit(() -> validate(queue, validatedBatches,
+						validateStage));
+			}
+
+			scanStage.start();
+			for (File destination : destinations)
+			{
+				scanFutures.add(
+						completion.submit(() -> scan(destination, scanStage)));
+			}
+
+			// wait for all stages; fail fast if any of them fails
+			for (int i = 0; i < threadCount; i++)
+			{
+				getResult(completion.take());
+			}
+
+			for (Future<Object> future : scanFutures)
+			{
+				scans.add((DestinationScan) getResult(future));
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while preparing sync", e);
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+
+		List<ITrack> allTracks = new ArrayList<>();
+		for (int sequence = 0; validatedBatches
+				.containsKey(sequence); sequence++)
+		{
+			allTracks.addAll(validatedBatches.get(sequence));
+		}
+
+		Stage compileStage = addStage("compile", 1);
+		compileStage.start();
+		List<List<ITrack>> selections = TrackCompilation
+				.compileSelections(allTracks, profiles);
+		compileStage.end();
+		compileStage.addBusyNanos(compileStage.endNanos - compileStage.startNanos);
+
+		printStatistics(System.nanoTime() - start);
+
+		return new Result(selections, scans);
+	}
+
+	private Stage addStage(String name, int threads)
+	{
+		Stage stage = new Stage(name, Math.max(threads, 1));
+		stages.add(stage);
+		return stage;
+	}
+
+	private void printStatistics(long totalNanos)
+	{
+		for (Stage stage : stages)
+		{
+			System.out.println("Stage " + stage);
+		}
+		System.out.println("Preparation took "
+				+ TimeUnit.NANOSECONDS.toMillis(totalNanos) + " ms");
+	}
+
+	private Void parse(BlockingQueue<Batch> queue, Stage stage)
+			throws IOException, SAXException, InterruptedException
+	{
+		stage.start();
+		AtomicLong blockedNanos = new AtomicLong();
+		try
+		{
+			BatchingListener listener = new BatchingListener(queue,
+					blockedNanos);
+			ITunesXMLParser.parseLibrary(itunesLibrary, listener);
+			listener.flush();
+		}
+		finally
+		{
+			stage.end();
+			stage.addBusyNanos(
+					stage.endNanos - stage.startNanos - blockedNanos.get());
+
+			// one end marker per validation thread
+			for (int i = 0; i < validationThreads; i++)
+			{
+				queue.put(END_OF_STREAM);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Collects parsed tracks into batches and hands them over to the
+	 * validation stage. Blocks the parser if the queue is full.
+	 */
+	private static class BatchingListener implements ITrackListener
+	{
+		private final BlockingQueue<Batch> queue;
+		private final AtomicLong blockedNanos;
+		private List<ITrack> batch = new ArrayList<>(BATCH_SIZE);
+		private int sequence = 0;
+
+		BatchingListener(BlockingQueue<Batch> queue, AtomicLong blockedNanos)
+		{
+			this.queue = queue;
+			this.blockedNanos = blockedNanos;
+		}
+
+		@Override
+		public void nextTrack(ITrack track)
+		{
+			batch.add(track);
+			if (batch.size() >= BATCH_SIZE)
+			{
+				flush();
+			}
+		}
+
+		void flush()
+		{
+			if (batch.isEmpty())
+			{
+				return;
+			}
+
+			long start = System.nanoTime();
+			try
+			{
+				queue.put(new Batch(sequence++, batch));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while parsing", e);
+			}
+			blockedNanos.addAndGet(System.nanoTime() - start);
+
+			batch = new ArrayList<>(BATCH_SIZE);
+		}
+	}
+
+	private Void validate(BlockingQueue<Batch> queue,
+			Map<Integer, List<ITrack>> validatedBatches, Stage stage)
+			throws InterruptedException
+	{
+		try
+		{
+			while (true)
+			{
+				Batch batch = queue.take();
+				if (batch == END_OF_STREAM)
+				{
+					return null;
+				}
+
+				long start = System.nanoTime();
+				List<ITrack> validTracks = new ArrayList<>(batch.tracks.size());
+				for (ITrack track : batch.tracks)
+				{
+					if (Melodies2Go.isValidTrack(track))
+					{
+						validTracks.add(track);
+					}
+				}
+				validatedBatches.put(batch.sequence, validTracks);
+				stage.addBusyNanos(System.nanoTime() - start);
+			}
+		}
+		finally
+		{
+			stage.end();
+		}
+	}
+
+	private DestinationScan scan(File destination, Stage stage)
+	{
+		long start = System.nanoTime();
+		try
+		{
+			return DestinationScan.scan(destination, options);
+		}
+		finally
+		{
+			stage.addBusyNanos(System.nanoTime() - start);
+			stage.end();
+		}
+	}
+
+	private static <T> T getResult(Future<T> future)
+			throws IOException, SAXException, InterruptedException
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+			{
+				throw (IOException) cause;
+			}
+			if (cause instanceof SAXException)
+			{
+				throw (SAXException) cause;
+			}
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private static ThreadFactory namedThreads(String prefix)
+	{
+		AtomicInteger counter = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable,
+					prefix + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+}
@@ -0,0 +1,167 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The changes that a sync will make to a destination, computed by
+ * {@link FileSync#plan(DestinationScan)} without writing anything. Byte totals
+ * and the estimated duration assume that every copy succeeds and that no
+ * budget stops the sync early.
+ */
+public class SyncPlan
+{
+	/**
+	 * Sequential write speed of a typical class 10 SD card.
+	 */
+	public static final long DEFAULT_WRITE_RATE = 10 * FileUtils.ONE_MB;
+
+	/**
+	 * Time to create a file and update the directory on a FAT card.
+	 */
+	private static final long MILLIS_PER_FILE = 20;
+
+	private final File destDir;
+	private final Map<File, File> copies;
+	private final Map<File, File> moves;
+	private final List<File> deletes;
+	private final List<File> folderRemovals;
+	private final long copyBytes;
+	private final long deleteBytes;
+	private final int upToDateCount;
+
+	SyncPlan(File destDir, Map<File, File> copies, Map<File, File> moves,
+			List<File> deletes, List<File> folderRemovals, long copyBytes,
+			long deleteBytes, int upToDateCount)
+	{
+		this.destDir = destDir;
+		this.copies = Collections.unmodifiableMap(copies);
+		this.moves = Collections.unmodifiableMap(moves);
+		this.deletes = Collections.unmodifiableList(deletes);
+		this.folderRemovals = Collections.unmodifiableList(folderRemovals);
+		this.copyBytes = copyBytes;
+		this.deleteBytes = deleteBytes;
+		this.upToDateCount = upToDateCount;
+	}
+
+	public File getDestDir()
+	{
+		return destDir;
+	}
+
+	/**
+	 * @return destination files that will be copied, mapped to their source,
+	 *         in the order of the selection
+	 */
+	public Map<File, File> getCopies()
+	{
+		return copies;
+	}
+
+	/**
+	 * @return destination files that will be moved, mapped to their current
+	 *         location
+	 */
+	public Map<File, File> getMoves()
+	{
+		return moves;
+	}
+
+	/**
+	 * @return destination files that will be deleted
+	 */
+	public List<File> getDeletes()
+	{
+		return deletes;
+	}
+
+	/**
+	 * @return folders that will be empty and removed, deepest first
+	 */
+	public List<File> getFolderRemovals()
+	{
+		return folderRemovals;
+	}
+
+	/**
+	 * @return number of bytes that will be copied
+	 */
+	public long getCopyBytes()
+	{
+		return copyBytes;
+	}
+
+	/**
+	 * @return number of bytes that will be freed by deleting files
+	 */
+	public long getDeleteBytes()
+	{
+		return deleteBytes;
+	}
+
+	/**
+	 * @return number of track files that are already up to date
+	 */
+	public int getUpToDateCount()
+	{
+		return upToDateCount;
+	}
+
+	/**
+	 * @return true, if the sync won't change the destination
+	 */
+	public boolean isEmpty()
+	{
+		return copies.isEmpty() && moves.isEmpty() && deletes.isEmpty()
+				&& folderRemovals.isEmpty();
+	}
+
+	/**
+	 * @return estimated duration at {@link #DEFAULT_WRITE_RATE}
+	 */
+	public Duration getEstimatedDuration()
+	{
+		return estimateDuration(DEFAULT_WRITE_RATE);
+	}
+
+	/**
+	 * @param bytesPerSecond
+	 *            sequential write speed of the destination
+	 * @return estimated duration of the sync
+	 */
+	public Duration estimateDuration(long bytesPerSecond)
+	{
+		long fileCount = copies.size() + moves.size() + deletes.size();
+		return Duration.ofMillis(copyBytes * 1000 / bytesPerSecond
+				+ fileCount * MILLIS_PER_FILE);
+	}
+
+	static String formatSize(long bytes)
+	{
+		if (bytes >= FileUtils.ONE_GB)
+		{
+			return String.format(Locale.ROOT, "%.1f GB",
+					bytes / (double) FileUtils.ONE_GB);
+		}
+		return String.format(Locale.ROOT, "%.1f MB",
+				bytes / (double) FileUtils.ONE_MB);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Would copy " + copies.size() + " files ("
+				+ formatSize(copyBytes) + "), move " + moves.size()
+				+ ", delete " + deletes.size() + " files ("
+				+ formatSize(deleteBytes) + ") and remove "
+				+ folderRemovals.size() + " folders on " + destDir + "; "
+				+ upToDateCount + " files are up to date. Estimated duration: "
+				+ getEstimatedDuration().toMinutes() + " min";
+	}
+}
@@ -5,24 +5,34 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.Objects;
 
 import org.apache.commons.io.FileUtils;
 
 public class TempFile extends File implements AutoCloseable
 {
 	private static final long serialVersionUID = -1829816855361332838L;
+	private static final String SUFFIX = ".tmp";
+
+	/**
+	 * Maximum number of characters that a temporary file adds to the name of
+	 * the original file.
+	 */
+	public static final int MAX_SUFFIX_LENGTH = 1 + 8 + SUFFIX.length();
+
 	private final File originalFile;
+	private final boolean resumable;
 
 	public TempFile(File originalFile)
 	{
-		super(originalFile.getParentFile(),
-				appendSuffix(originalFile.getName()));
-		this.originalFile = originalFile;
+		this(originalFile, originalFile.getName() + SUFFIX, false);
 	}
 
-	private static String appendSuffix(String originalName)
+	private TempFile(File originalFile, String name, boolean resumable)
 	{
-		return originalName + ".tmp";
+		super(originalFile.getParentFile(), name);
+		this.originalFile = originalFile;
+		this.resumable = resumable;
 	}
 
 	public TempFile(Path path)
@@ -30,6 +40,47 @@ public class TempFile extends File implements AutoCloseable
 		this(path.toFile());
 	}
 
+	/**
+	 * Temporary file for a copy of the given version of a source file. Its
+	 * name contains a tag of the source's size and last modified time, so a
+	 * later attempt to copy the same version finds it again. It isn't deleted
+	 * if the copy fails, so that the copy can be resumed.
+	 * 
+	 * @param originalFile
+	 * @param sourceState
+	 * @return the temporary file
+	 */
+	public static TempFile forSource(File originalFile, FileState sourceState)
+	{
+		String tag = Integer.toHexString(Objects.hash(sourceState.getSize(),
+				sourceState.getLastModified()));
+		return new TempFile(originalFile,
+				originalFile.getName() + "." + tag + SUFFIX, true);
+	}
+
+	/**
+	 * @param file
+	 * @return the file that the given temporary file of
+	 *         {@link #forSource(File, FileState)} would replace, or null if
+	 *         the name doesn't look like such a temporary file
+	 */
+	public static File getOriginalFile(File file)
+	{
+		String name = file.getName();
+		if (!name.endsWith(SUFFIX))
+		{
+			return null;
+		}
+
+		String taggedName = name.substring(0, name.length() - SUFFIX.length());
+		int tagStart = taggedName.lastIndexOf('.');
+		if (tagStart <= 0)
+		{
+			return null;
+		}
+		return new File(file.getParentFile(), taggedName.substring(0, tagStart));
+	}
+
 	public void renameToOriginal() throws IOException
 	{
 		StandardCopyOption replaceExisting = StandardCopyOption.REPLACE_EXISTING;
@@ -38,6 +89,9 @@ public class TempFile extends File implements AutoCloseable
 
 	@Override
 	public void close() throws IOException {
-		FileUtils.deleteQuietly(this);
+		if (!resumable)
+		{
+			FileUtils.deleteQuietly(this);
+		}
 	}
 }
@@ -3,12 +3,14 @@ package de.christianleberfinger.melodies2go;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedHashSet;
+import java.util.Iterator;
 import java.util.List;
 
 import de.christianleberfinger.melodies2go.parser.ITrack;
 import de.christianleberfinger.melodies2go.utils.CombinedIterator;
+import de.christianleberfinger.melodies2go.utils.LazySortedIterator;
 
 public class TrackCompilation {
 
@@ -20,57 +22,215 @@ public class TrackCompilation {
 
 	public static Comparator<ITrack> orderByDateAdded = (t1, t2) -> t1
 			.getDateAdded().compareTo(t2.getDateAdded());
-	
+
+	/**
+	 * Limits of a single compilation, e.g. the capacity of one SD card.
+	 */
+	public static class Profile
+	{
+		private final long availableCapacityBytes;
+		private final int maxTrackCount;
+
+		public Profile(long availableCapacityBytes)
+		{
+			this(availableCapacityBytes, Integer.MAX_VALUE);
+		}
+
+		public Profile(long availableCapacityBytes, int maxTrackCount)
+		{
+			this.availableCapacityBytes = availableCapacityBytes;
+			this.maxTrackCount = maxTrackCount;
+		}
+
+		public long getAvailableCapacityBytes()
+		{
+			return availableCapacityBytes;
+		}
+
+		public int getMaxTrackCount()
+		{
+			return maxTrackCount;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Profile [availableCapacityBytes=" + availableCapacityBytes
+					+ ", maxTrackCount=" + maxTrackCount + "]";
+		}
+	}
+
+	/**
+	 * Selection state of one profile while walking the combined ranking.
+	 */
+	private static class Selection
+	{
+		private final Profile profile;
+		private final List<ITrack> tracks = new ArrayList<>();
+		private long fileSizeSum = 0;
+
+		Selection(Profile profile)
+		{
+			this.profile = profile;
+		}
+
+		boolean isFull()
+		{
+			return tracks.size() >= profile.getMaxTrackCount();
+		}
+
+		void offer(ITrack track, long fileSize)
+		{
+			// skip files that would exceed quota
+			if (isFull()
+					|| fileSize + fileSizeSum > profile.getAvailableCapacityBytes())
+			{
+				return;
+			}
+
+			tracks.add(track);
+			fileSizeSum += fileSize;
+		}
+	}
+
 	/**
 	 * Compile a list of the best and most recent songs.
-	 * 
+	 *
 	 * Uses three intermediate sorted lists (sorted by date, by rating, by play
 	 * count) and combine them to get a relevant subset of the full library.
-	 * 
+	 *
 	 * @param availableCapacityBytes
 	 * @return
 	 * @throws IOException
 	 */
 	public static List<ITrack> compileSelection(List<ITrack> allTracks, long availableCapacityBytes) throws IOException
 	{
-		List<ITrack> bestRated = sortList(allTracks, orderByRating.reversed());
-		List<ITrack> mostPlayed = sortList(allTracks, orderByPlayCount.reversed());
-		List<ITrack> recentlyAdded = sortList(allTracks, orderByDateAdded.reversed());
+		List<Profile> profiles = Collections
+				.singletonList(new Profile(availableCapacityBytes));
+		return compileSelections(allTracks, profiles).get(0);
+	}
+
+	/**
+	 * Compile one selection per given profile in a single pass. The rankings
+	 * are shared by all profiles and every file size is read only once, no
+	 * matter how many profiles are requested.
+	 *
+	 * @param allTracks
+	 * @param profiles
+	 * @return the selections in the same order as the given profiles
+	 * @throws IOException
+	 */
+	public static List<List<ITrack>> compileSelections(List<ITrack> allTracks,
+			List<Profile> profiles) throws IOException
+	{
+		return compileSelections(allTracks, profiles, 1, 1, 1);
+	}
 
-		long fileSizeSum = 0;
+	/**
+	 * Compile one selection per given profile in a single pass. The weights
+	 * define how many tracks of each ranking are taken in a row, e.g. 2:1:1
+	 * prefers best rated tracks over recently added and most played ones.
+	 *
+	 * The rankings are sorted lazily, so only as much of each ranking is
+	 * sorted as is needed to fill the profiles.
+	 *
+	 * @param allTracks
+	 * @param profiles
+	 * @param bestRatedWeight
+	 * @param recentlyAddedWeight
+	 * @param mostPlayedWeight
+	 * @return the selections in the same order as the given profiles
+	 * @throws IOException
+	 */
+	public static List<List<ITrack>> compileSelections(List<ITrack> allTracks,
+			List<Profile> profiles, int bestRatedWeight,
+			int recentlyAddedWeight, int mostPlayedWeight) throws IOException
+	{
+		List<Candidate> candidates = new ArrayList<>(allTracks.size());
+		for (ITrack track : allTracks)
+		{
+			candidates.add(new Candidate(candidates.size(), track));
+		}
 
-		CombinedIterator<ITrack> combinedIterator = new CombinedIterator<>(bestRated, recentlyAdded, mostPlayed);
-		LinkedHashSet<ITrack> combinedList = new LinkedHashSet<>();
-		while(combinedIterator.hasNext())
+		Iterator<Candidate> bestRated = rank(candidates, orderByRating.reversed());
+		Iterator<Candidate> mostPlayed = rank(candidates, orderByPlayCount.reversed());
+		Iterator<Candidate> recentlyAdded = rank(candidates, orderByDateAdded.reversed());
+
+		List<Selection> selections = new ArrayList<>(profiles.size());
+		for (Profile profile : profiles)
 		{
-			ITrack track = combinedIterator.next();
-			File trackFile = track.getFile();
-			final long fileSize = trackFile.length();
+			selections.add(new Selection(profile));
+		}
 
-			// skip files that would exceed quota
-			if (fileSize + fileSizeSum > availableCapacityBytes)
-			{
-				continue;
-			}
-			
-			boolean wasAdded = combinedList.add(track);
-			if (wasAdded)
+		CombinedIterator<Candidate> combinedIterator = CombinedIterator
+				.<Candidate> builder() //
+				.add(bestRated, bestRatedWeight) //
+				.add(recentlyAdded, recentlyAddedWeight) //
+				.add(mostPlayed, mostPlayedWeight) //
+				.distinct(Candidate::getIndex, candidates.size()) //
+				.build();
+		while(combinedIterator.hasNext() && !allFull(selections))
+		{
+			Candidate candidate = combinedIterator.next();
+			final long fileSize = candidate.getFileSize();
+
+			for (Selection selection : selections)
 			{
-				fileSizeSum += fileSize;
+				selection.offer(candidate.track, fileSize);
 			}
 		}
-		
-		return new ArrayList<ITrack>(combinedList);
+
+		List<List<ITrack>> result = new ArrayList<>(selections.size());
+		for (Selection selection : selections)
+		{
+			result.add(selection.tracks);
+		}
+		return result;
 	}
-	
-	private static List<ITrack> sortList(
-			List<ITrack> trackList,
+
+	/**
+	 * A track together with its dense index in the library.
+	 */
+	private static class Candidate
+	{
+		private final int index;
+		private final ITrack track;
+
+		Candidate(int index, ITrack track)
+		{
+			this.index = index;
+			this.track = track;
+		}
+
+		int getIndex()
+		{
+			return index;
+		}
+
+		long getFileSize()
+		{
+			File trackFile = track.getFile();
+			return trackFile.length();
+		}
+	}
+
+	private static Iterator<Candidate> rank(List<Candidate> candidates,
 			Comparator<ITrack> comparator)
 	{
-		List<ITrack> sorted = new ArrayList<>(trackList);
-		sorted.sort(comparator);
+		return new LazySortedIterator<>(candidates,
+				(c1, c2) -> comparator.compare(c1.track, c2.track));
+	}
 
-		return sorted;
+	private static boolean allFull(List<Selection> selections)
+	{
+		for (Selection selection : selections)
+		{
+			if (!selection.isFull())
+			{
+				return false;
+			}
+		}
+		return true;
 	}
-	
+
 }
@@ -0,0 +1,312 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.xml.sax.SAXException;
+
+import de.christianleberfinger.melodies2go.FileSync.SyncedTrack;
+import de.christianleberfinger.melodies2go.TrackCompilation.Profile;
+import de.christianleberfinger.melodies2go.parser.ITrack;
+
+/**
+ * Keeps running and syncs the destinations whenever the library is exported
+ * again or a destination is mounted.
+ *
+ * The state of each destination is kept in memory between syncs (see
+ * {@link FileSync#getDestinationState()}), so a sync only reads the library
+ * and the sources, plans the changes and applies them. A destination is
+ * scanned again when it's mounted, as it may have been changed elsewhere.
+ *
+ * The nearest existing folder above the library and each destination is
+ * watched, so destinations below a mount point that doesn't exist yet are
+ * found, too. Mounts that aren't reported as events are found by checking
+ * the destinations every {@link #POLL_INTERVAL_MILLIS}.
+ */
+public class WatchSync
+{
+	/**
+	 * An export writes the library in several bursts; wait until it's quiet.
+	 */
+	private static final long DEBOUNCE_MILLIS = 2000;
+
+	private static final long POLL_INTERVAL_MILLIS = 10_000;
+
+	private final File itunesLibrary;
+	private final List<Profile> profiles;
+	private final List<File> destinations;
+	private final SyncOptions options;
+
+	/**
+	 * States of the destinations after their last sync.
+	 */
+	private final Map<File, DestinationScan> destinationStates = new HashMap<>();
+
+	/**
+	 * Last modified times of the destinations after their last sync, to tell
+	 * the changes of a sync from changes made elsewhere.
+	 */
+	private final Map<File, Long> syncedModified = new HashMap<>();
+
+	private final Set<File> mountedDestinations = new HashSet<>();
+	private final Map<Path, WatchKey> watchKeys = new HashMap<>();
+
+	public WatchSync(File itunesLibrary, List<Profile> profiles,
+			List<File> destinations, SyncOptions options)
+	{
+		this.itunesLibrary = itunesLibrary.getAbsoluteFile();
+		this.profiles = profiles;
+		this.destinations = destinations;
+		this.options = options;
+	}
+
+	/**
+	 * Sync all destinations, then sync again after every change, until the
+	 * thread is interrupted.
+	 */
+	public void run() throws IOException
+	{
+		try (WatchService watchService = FileSystems.getDefault()
+				.newWatchService())
+		{
+			registerAll(watchService);
+			syncAll();
+			while (!Thread.currentThread().isInterrupted())
+			{
+				Set<File> changes = awaitChanges(watchService);
+				registerAll(watchService);
+
+				boolean changed = isAffected(itunesLibrary, changes);
+				for (File destination : destinations)
+				{
+					if (isMounted(destination)
+							|| isChangedElsewhere(destination, changes))
+					{
+						// may have been changed elsewhere
+						destinationStates.remove(destination);
+						changed = true;
+					}
+				}
+
+				if (changed)
+				{
+					syncAll();
+				}
+			}
+		}
+		catch (InterruptedException | ClosedWatchServiceException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Watch the nearest existing folder above the library and each
+	 * destination. Keys of folders that were removed, e.g. unmounted, are
+	 * replaced.
+	 */
+	private void registerAll(WatchService watchService)
+	{
+		register(watchService, itunesLibrary.getParentFile());
+		for (File destination : destinations)
+		{
+			register(watchService, destination.getAbsoluteFile().getParentFile());
+		}
+	}
+
+	private void register(WatchService watchService, File folder)
+	{
+		File existing = folder;
+		while (existing != null && !existing.isDirectory())
+		{
+			existing = existing.getParentFile();
+		}
+		if (existing == null)
+		{
+			return;
+		}
+
+		Path path = existing.toPath();
+		WatchKey key = watchKeys.get(path);
+		if (key != null && key.isValid())
+		{
+			return;
+		}
+		try
+		{
+			watchKeys.put(path, path.register(watchService,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY));
+		}
+		catch (IOException e)
+		{
+			// e.g. just unmounted; the destinations are polled anyway
+			System.err.println("Can't watch " + path + ": " + e);
+		}
+	}
+
+	/**
+	 * @return true, if the given file or one of its folders changed
+	 */
+	private static boolean isAffected(File file, Set<File> changes)
+	{
+		for (File changed = file; changed != null; changed = changed
+				.getParentFile())
+		{
+			if (changes.contains(changed))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true, if the destination or one of its folders changed, except
+	 *         for the last modified time that its last sync left. Polling
+	 *         watch services (macOS) report that change after every sync.
+	 */
+	boolean isChangedElsewhere(File destination, Set<File> changes)
+	{
+		return isAffected(destination.getAbsoluteFile(), changes)
+				&& !Long.valueOf(destination.lastModified())
+						.equals(syncedModified.get(destination));
+	}
+
+	/**
+	 * @return true, if the destination appeared since the last check
+	 */
+	private boolean isMounted(File destination)
+	{
+		if (!destination.isDirectory())
+		{
+			mountedDestinations.remove(destination);
+			return false;
+		}
+		return mountedDestinations.add(destination);
+	}
+
+	/**
+	 * Wait for changes and collect further changes until none occurred for
+	 * {@link #DEBOUNCE_MILLIS}.
+	 *
+	 * @return the changed files, including the library if events were lost;
+	 *         empty after {@link #POLL_INTERVAL_MILLIS} without changes
+	 */
+	private Set<File> awaitChanges(WatchService watchService)
+			throws InterruptedException
+	{
+		Set<File> changes = new HashSet<>();
+		WatchKey key = watchService.poll(POLL_INTERVAL_MILLIS,
+				TimeUnit.MILLISECONDS);
+		while (key != null)
+		{
+			Path folder = (Path) key.watchable();
+			for (WatchEvent<?> event : key.pollEvents())
+			{
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+				{
+					changes.add(itunesLibrary);
+				}
+				else
+				{
+					changes.add(folder.resolve((Path) event.context()).toFile());
+				}
+			}
+			key.reset();
+			key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+		}
+		return changes;
+	}
+
+	/**
+	 * Sync all mounted destinations. Errors are printed; the next change
+	 * retries, e.g. after an incomplete export.
+	 */
+	void syncAll()
+	{
+		long start = System.nanoTime();
+		List<List<ITrack>> selections;
+		try
+		{
+			selections = new SyncPipeline(itunesLibrary, profiles,
+					Collections.emptyList(), options).run().getSelections();
+		}
+		catch (IOException | SAXException | RuntimeException e)
+		{
+			System.err.println("Can't read " + itunesLibrary + ": " + e);
+			return;
+		}
+
+		for (int i = 0; i < selections.size(); i++)
+		{
+			File destination = destinations.get(i);
+			isMounted(destination);
+			if (!destination.isDirectory())
+			{
+				System.out.println(destination + " isn't mounted");
+				destinationStates.remove(destination);
+				continue;
+			}
+
+			try
+			{
+				sync(selections.get(i), destination);
+			}
+			catch (IOException | RuntimeException e)
+			{
+				System.err.println("Can't sync " + destination + ": " + e);
+				destinationStates.remove(destination);
+			}
+			syncedModified.put(destination, destination.lastModified());
+		}
+		System.out.println("Synced in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+				+ " ms, waiting for changes of " + itunesLibrary);
+	}
+
+	private void sync(List<ITrack> selectedTracks, File destination)
+			throws IOException
+	{
+		DestinationScan destinationScan = destinationStates.get(destination);
+		if (destinationScan == null)
+		{
+			destinationScan = DestinationScan.scan(destination, options);
+		}
+
+		FileSync fileSync = new FileSync(selectedTracks, destination, options);
+		SyncPlan plan = fileSync.plan(destinationScan);
+		if (plan.isEmpty())
+		{
+			System.out.println(destination + " is up to date");
+			if (fileSync.hasCurrentManifest())
+			{
+				destinationStates.put(destination, destinationScan);
+				return;
+			}
+			// e.g. walked, so that the next start reads the manifest
+			fileSync.sync(plan);
+			destinationStates.put(destination, fileSync.getDestinationState());
+			return;
+		}
+
+		System.out.println(plan);
+		List<SyncedTrack> syncedTracks = fileSync.sync(plan);
+		M3UWriter.writeRecentlyAdded(destination, syncedTracks);
+		destinationStates.put(destination, fileSync.getDestinationState());
+	}
+}
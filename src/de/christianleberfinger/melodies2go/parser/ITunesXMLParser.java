@@ -238,13 +238,23 @@ public class ITunesXMLParser extends DefaultHandler
 			throws SAXException, IOException
 	{
 		Tracks tracks = new Tracks();
-		DefaultHandler handler = new ITunesXMLParser(tracks);
+		parseLibrary(f, tracks);
+
+		return tracks;
+	}
+
+	/**
+	 * Parse the given library and pass every track to the given listener as
+	 * soon as it has been read.
+	 */
+	public static void parseLibrary(File f, ITrackListener trackListener)
+			throws SAXException, IOException
+	{
+		DefaultHandler handler = new ITunesXMLParser(trackListener);
 		
 		SAXParser saxParser = getSaxParser();
 		
 		saxParser.parse(f, handler);
-
-		return tracks;
 	}
 
 	private static SAXParser getSaxParser() throws SAXException {
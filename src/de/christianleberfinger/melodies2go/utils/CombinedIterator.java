@@ -1,45 +1,144 @@
 package de.christianleberfinger.melodies2go.utils;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.ToIntFunction;
 
 /**
  * An iterator for iterating/combining elements of several given collections.
  * The combined iterator will take one item of the first collection and then
  * traverse to the next collection. The iterator will iterate each and every
  * element of all the given collections.
- * 
+ *
+ * Use {@link #builder()} to combine lazy {@link Iterator} or
+ * {@link Spliterator} sources, to take several items of a source in a row
+ * (weights) or to skip elements that were already returned. Duplicates are
+ * detected via a {@link BitSet} over dense element indexes, so iterating
+ * doesn't allocate per element.
+ *
  * @author krizleebear
  *
  * @param <E>
  */
 public class CombinedIterator<E> implements Iterator<E>
 {
-	private final Iterator<E>[] iterators;
+	private final Iterator<? extends E>[] iterators;
+	private final int[] weights;
+	private final ToIntFunction<? super E> indexer;
+	private final BitSet emitted;
+
 	private int currentIteratorIndex = 0;
+	private int takenFromCurrent = 0;
+
+	private E nextElement;
+	private boolean hasNextElement;
+	private boolean isAdvanced;
 
-	@SuppressWarnings("unchecked")
+	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@SafeVarargs
 	public CombinedIterator(final Collection<E>... collections)
 	{
 		iterators = new Iterator[collections.length];
+		weights = new int[collections.length];
 
 		int i = 0;
 		for (Collection<E> c : collections)
 		{
+			weights[i] = 1;
 			iterators[i++] = c.iterator();
 		}
+
+		indexer = null;
+		emitted = null;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private CombinedIterator(Builder<E> builder)
+	{
+		iterators = builder.iterators.toArray(new Iterator[0]);
+		weights = new int[builder.weights.size()];
+		for (int i = 0; i < weights.length; i++)
+		{
+			weights[i] = builder.weights.get(i);
+		}
+
+		indexer = builder.indexer;
+		emitted = indexer == null ? null : new BitSet(builder.expectedSize);
+	}
+
+	public static <E> Builder<E> builder()
+	{
+		return new Builder<>();
 	}
 
-	private Iterator<E> currentIterator()
+	public static class Builder<E>
 	{
-		return iterators[currentIteratorIndex];
+		private final List<Iterator<? extends E>> iterators = new ArrayList<>();
+		private final List<Integer> weights = new ArrayList<>();
+		private ToIntFunction<? super E> indexer;
+		private int expectedSize = 64;
+
+		/**
+		 * Add a source that contributes up to <code>weight</code> elements
+		 * before the next source is asked.
+		 */
+		public Builder<E> add(Iterator<? extends E> source, int weight)
+		{
+			if (weight < 1)
+			{
+				throw new IllegalArgumentException("weight must be positive: " + weight);
+			}
+
+			iterators.add(source);
+			weights.add(weight);
+			return this;
+		}
+
+		public Builder<E> add(Spliterator<? extends E> source, int weight)
+		{
+			return add(Spliterators.iterator(source), weight);
+		}
+
+		public Builder<E> add(Iterable<? extends E> source, int weight)
+		{
+			return add(source.iterator(), weight);
+		}
+
+		/**
+		 * Skip elements that were already returned. Elements are identified
+		 * by the given dense, non-negative index (e.g. the position in the
+		 * original list).
+		 *
+		 * @param indexer
+		 * @param expectedSize
+		 *            the expected number of distinct indexes
+		 */
+		public Builder<E> distinct(ToIntFunction<? super E> indexer,
+				int expectedSize)
+		{
+			this.indexer = indexer;
+			this.expectedSize = Math.max(expectedSize, 1);
+			return this;
+		}
+
+		public CombinedIterator<E> build()
+		{
+			return new CombinedIterator<>(this);
+		}
 	}
 
 	/**
 	 * move to the next iterator that still has elements
+	 *
+	 * @return false, if all iterators are exhausted
 	 */
-	private void nextIterator()
+	private boolean nextIterator()
 	{
 		for (int i = 1; i <= iterators.length; i++)
 		{
@@ -47,32 +146,81 @@ public class CombinedIterator<E> implements Iterator<E>
 			if (iterators[newIndex].hasNext())
 			{
 				currentIteratorIndex = newIndex;
-				break;
+				takenFromCurrent = 0;
+				return true;
 			}
 		}
+		return false;
 	}
 
-	@Override
-	public boolean hasNext()
+	/**
+	 * Look ahead to the next element that is to be returned.
+	 */
+	private void advance()
 	{
-		if (currentIterator().hasNext())
+		isAdvanced = true;
+		hasNextElement = false;
+		nextElement = null;
+
+		if (iterators.length == 0)
 		{
-			return true;
+			return;
 		}
-		else
+
+		while (true)
 		{
-			// if current iterator is at its end, try the next one
-			nextIterator();
+			Iterator<? extends E> current = iterators[currentIteratorIndex];
+			if (takenFromCurrent >= weights[currentIteratorIndex]
+					|| !current.hasNext())
+			{
+				if (!nextIterator())
+				{
+					return;
+				}
+				current = iterators[currentIteratorIndex];
+			}
+
+			E candidate = current.next();
+			if (emitted != null)
+			{
+				int index = indexer.applyAsInt(candidate);
+				if (emitted.get(index))
+				{
+					// duplicates don't count against the source's weight
+					continue;
+				}
+				emitted.set(index);
+			}
+
+			takenFromCurrent++;
+			nextElement = candidate;
+			hasNextElement = true;
+			return;
 		}
+	}
 
-		return currentIterator().hasNext();
+	@Override
+	public boolean hasNext()
+	{
+		if (!isAdvanced)
+		{
+			advance();
+		}
+
+		return hasNextElement;
 	}
 
 	@Override
 	public E next()
 	{
-		E next = currentIterator().next();
-		nextIterator();
+		if (!hasNext())
+		{
+			throw new NoSuchElementException();
+		}
+
+		E next = nextElement;
+		isAdvanced = false;
+		nextElement = null;
 		return next;
 	}
 }
@@ -0,0 +1,103 @@
+package de.christianleberfinger.melodies2go.utils;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates the elements of a list in sorted order without sorting the whole
+ * list up front. The list positions are kept in a binary heap that is built in
+ * linear time; every call to {@link #next()} costs O(log n). Consumers that
+ * only need the first few elements of a ranking don't pay for a full sort.
+ *
+ * The order is stable: equal elements are returned in the order of the given
+ * list, just like {@link List#sort(Comparator)} would do.
+ *
+ * @param <E>
+ */
+public class LazySortedIterator<E> implements Iterator<E>
+{
+	private final List<? extends E> elements;
+	private final Comparator<? super E> comparator;
+	private final int[] heap;
+	private int size;
+
+	public LazySortedIterator(List<? extends E> elements,
+			Comparator<? super E> comparator)
+	{
+		this.elements = elements;
+		this.comparator = comparator;
+
+		size = elements.size();
+		heap = new int[size];
+		for (int i = 0; i < size; i++)
+		{
+			heap[i] = i;
+		}
+
+		for (int i = size / 2 - 1; i >= 0; i--)
+		{
+			siftDown(i);
+		}
+	}
+
+	private int compare(int position1, int position2)
+	{
+		int result = comparator.compare(elements.get(position1),
+				elements.get(position2));
+		if (result != 0)
+		{
+			return result;
+		}
+		return Integer.compare(position1, position2);
+	}
+
+	private void siftDown(int i)
+	{
+		int position = heap[i];
+		while (true)
+		{
+			int child = 2 * i + 1;
+			if (child >= size)
+			{
+				break;
+			}
+
+			if (child + 1 < size && compare(heap[child + 1], heap[child]) < 0)
+			{
+				child++;
+			}
+
+			if (compare(position, heap[child]) <= 0)
+			{
+				break;
+			}
+
+			heap[i] = heap[child];
+			i = child;
+		}
+		heap[i] = position;
+	}
+
+	@Override
+	public boolean hasNext()
+	{
+		return size > 0;
+	}
+
+	@Override
+	public E next()
+	{
+		if (size == 0)
+		{
+			throw new NoSuchElementException();
+		}
+
+		int first = heap[0];
+		heap[0] = heap[--size];
+		siftDown(0);
+
+		return elements.get(first);
+	}
+}
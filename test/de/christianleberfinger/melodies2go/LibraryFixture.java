@@ -0,0 +1,62 @@
+package de.christianleberfinger.melodies2go;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes an iTunes library export with generated tracks, and the track files
+ * it refers to.
+ */
+class LibraryFixture
+{
+	private LibraryFixture()
+	{
+	}
+
+	/**
+	 * @param dir
+	 *            folder of the library; the track files are written to its
+	 *            'music' subfolder
+	 * @param trackCount
+	 * @param missingEvery
+	 *            every n-th track has no file on disk, 0 for none
+	 * @param disabledEvery
+	 *            every n-th track is disabled, 0 for none
+	 * @return the library file; writing it again replaces it
+	 */
+	static File writeLibrary(Path dir, int trackCount, int missingEvery,
+			int disabledEvery) throws IOException
+	{
+		Path music = Files.createDirectories(dir.resolve("music"));
+		StringBuilder xml = new StringBuilder("<plist><dict><key>Tracks</key><dict>\n");
+		for (int i = 0; i < trackCount; i++)
+		{
+			Path file = music.resolve("track" + i + ".mp3");
+			if (missingEvery == 0 || i % missingEvery != 0)
+			{
+				Files.write(file, new byte[10 + i]);
+			}
+
+			xml.append("<key>").append(i).append("</key><dict>");
+			xml.append("<key>Name</key><string>track").append(i).append("</string>");
+			xml.append("<key>Artist</key><string>Artist</string>");
+			xml.append("<key>Rating</key><integer>").append(i % 100).append("</integer>");
+			xml.append("<key>Play Count</key><integer>").append(i % 13).append("</integer>");
+			xml.append("<key>Date Added</key><date>2010-04-15T21:22:32Z</date>");
+			if (disabledEvery != 0 && i % disabledEvery == 0)
+			{
+				xml.append("<key>Disabled</key><true/>");
+			}
+			xml.append("<key>Location</key><string>").append(file.toUri()).append("</string>");
+			xml.append("</dict>\n");
+		}
+		xml.append("</dict></dict></plist>");
+
+		Path library = dir.resolve("Library.xml");
+		Files.write(library, xml.toString().getBytes(StandardCharsets.UTF_8));
+		return library.toFile();
+	}
+}
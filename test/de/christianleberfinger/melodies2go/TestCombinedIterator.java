@@ -1,10 +1,13 @@
 package de.christianleberfinger.melodies2go;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 
 import com.google.common.collect.Lists;
 
 import de.christianleberfinger.melodies2go.utils.CombinedIterator;
+import de.christianleberfinger.melodies2go.utils.LazySortedIterator;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -73,4 +76,43 @@ public class TestCombinedIterator
 		String elements = collectElements(ci);
 		assertEquals("ABCD", elements);
 	}
+
+	@Test
+	public void testWeightedSources()
+	{
+		CombinedIterator<String> ci = CombinedIterator.<String> builder()
+				.add(Lists.newArrayList("A", "B", "E", "F"), 2)
+				.add(Lists.newArrayList("C", "G").iterator(), 1)
+				.add(Lists.newArrayList("D").spliterator(), 1).build();
+
+		String elements = collectElements(ci);
+		assertEquals("ABCDEFG", elements);
+	}
+
+	@Test
+	public void testDistinctElements()
+	{
+		List<String> all = Lists.newArrayList("A", "B", "C", "D");
+		CombinedIterator<String> ci = CombinedIterator.<String> builder()
+				.add(Lists.newArrayList("A", "B", "C"), 1)
+				.add(Lists.newArrayList("A", "D", "B"), 1)
+				.distinct(all::indexOf, all.size()).build();
+
+		String elements = collectElements(ci);
+		assertEquals("ADBC", elements);
+	}
+
+	@Test
+	public void testLazySortedIteratorIsStable()
+	{
+		List<String> list = Lists.newArrayList("bb", "a", "cc", "d", "ee", "f");
+		Comparator<String> byLength = Comparator.comparingInt(String::length);
+
+		List<String> expected = new ArrayList<>(list);
+		expected.sort(byLength);
+
+		List<String> sorted = Lists.newArrayList(
+				new LazySortedIterator<>(list, byLength));
+		assertEquals(expected, sorted);
+	}
 }
@@ -0,0 +1,95 @@
+package de.christianleberfinger.melodies2go;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import de.christianleberfinger.melodies2go.CopyEngine.CopyJob;
+
+public class TestCopyEngine
+{
+	/**
+	 * Counts the calls that run at the same time.
+	 */
+	private static class Concurrency
+	{
+		final AtomicInteger current = new AtomicInteger();
+		final AtomicInteger max = new AtomicInteger();
+	}
+
+	private static Void measure(Concurrency... concurrencies)
+			throws IOException
+	{
+		for (Concurrency concurrency : concurrencies)
+		{
+			concurrency.max.accumulateAndGet(
+					concurrency.current.incrementAndGet(), Math::max);
+		}
+		try
+		{
+			Thread.sleep(50);
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException();
+		}
+		finally
+		{
+			for (Concurrency concurrency : concurrencies)
+			{
+				concurrency.current.decrementAndGet();
+			}
+		}
+		return null;
+	}
+
+	@Test
+	public void testReadsAndWritesAreLimitedSeparately() throws IOException
+	{
+		Concurrency reads = new Concurrency();
+		Concurrency writes = new Concurrency();
+		Concurrency[] writesPerDestination = { new Concurrency(),
+				new Concurrency() };
+		File[] destinations = { new File("a"), new File("b") };
+
+		List<CopyJob> jobs = new ArrayList<>();
+		for (int i = 0; i < 20; i++)
+		{
+			int destination = i % 2;
+			jobs.add(new CopyJob() {
+				@Override
+				public void copy(IoLimits limits) throws IOException
+				{
+					limits.getSourceReads().run(() -> measure(reads));
+					limits.getDestinationWrites(destinations[destination])
+							.run(() -> measure(writes,
+									writesPerDestination[destination]));
+				}
+
+				@Override
+				public File getSource()
+				{
+					return new File("source" + destination);
+				}
+			});
+		}
+
+		new CopyEngine(3, 1).execute(jobs);
+
+		// a job waiting for a write doesn't keep the others from reading
+		assertEquals(3, reads.max.get());
+		for (Concurrency concurrency : writesPerDestination)
+		{
+			assertEquals(1, concurrency.max.get());
+		}
+		// each destination has its own limit
+		assertEquals(2, writes.max.get());
+	}
+}
@@ -0,0 +1,93 @@
+package de.christianleberfinger.melodies2go;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import de.christianleberfinger.melodies2go.CopyEngine.CopyJob;
+
+public class TestCopyOrder
+{
+	@TempDir
+	Path tempDir;
+
+	private final List<File> copied = new ArrayList<>();
+
+	private CopyJob createJob(String path) throws IOException
+	{
+		Path source = tempDir.resolve(path);
+		Files.createDirectories(source.getParent());
+		Files.write(source, new byte[1]);
+
+		return new CopyJob() {
+			@Override
+			public void copy(IoLimits limits)
+			{
+				copied.add(source.toFile());
+			}
+
+			@Override
+			public File getSource()
+			{
+				return source.toFile();
+			}
+		};
+	}
+
+	private List<CopyJob> createJobs() throws IOException
+	{
+		List<CopyJob> jobs = new ArrayList<>();
+		jobs.add(createJob("b/1.mp3"));
+		jobs.add(createJob("a/1.mp3"));
+		jobs.add(createJob("b/2.mp3"));
+		jobs.add(createJob("a/2.mp3"));
+		return jobs;
+	}
+
+	@Test
+	public void testPriorityKeepsOrder() throws IOException
+	{
+		List<CopyJob> jobs = createJobs();
+		assertEquals(jobs, CopyOrder.PRIORITY.arrange(jobs, false));
+	}
+
+	@Test
+	public void testSourceGroupsDirectories() throws IOException
+	{
+		List<CopyJob> jobs = createJobs();
+		List<CopyJob> arranged = CopyOrder.SOURCE.arrange(jobs, false);
+
+		List<File> sources = new ArrayList<>();
+		for (CopyJob job : arranged)
+		{
+			sources.add(job.getSource());
+		}
+		assertEquals(sources.get(0).getParentFile(), sources.get(1).getParentFile());
+		assertEquals(sources.get(2).getParentFile(), sources.get(3).getParentFile());
+		assertEquals(tempDir.resolve("a").toFile(), sources.get(0).getParentFile());
+	}
+
+	@Test
+	public void testBatchBySourceDirectory() throws IOException
+	{
+		List<CopyJob> arranged = CopyOrder.SOURCE.arrange(createJobs(), true);
+		assertEquals(2, arranged.size());
+
+		for (CopyJob batch : arranged)
+		{
+			assertTrue(batch.begin());
+			batch.copy(IoLimits.NONE);
+		}
+		assertEquals(4, copied.size());
+		assertEquals(copied.get(0).getParentFile(), copied.get(1).getParentFile());
+	}
+}
@@ -0,0 +1,206 @@
+package de.christianleberfinger.melodies2go;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import de.christianleberfinger.melodies2go.DestinationLayout.Grouping;
+import de.christianleberfinger.melodies2go.parser.ITrack;
+import de.christianleberfinger.melodies2go.parser.Track;
+
+public class TestDestinationLayout
+{
+	private static ITrack createTrack(String artist, String genre, String year)
+	{
+		return new Track.TrackBuilder().artist(artist).album("Album")
+				.genre(genre).year(year).title("Song").dateAdded(new Date(0))
+				.fileLocation(new File("/music/Song.mp3").toURI().toString())
+				.build();
+	}
+
+	private static List<ITrack> createArtists(String... artists)
+	{
+		List<ITrack> tracks = new ArrayList<>();
+		for (String artist : artists)
+		{
+			tracks.add(createTrack(artist, null, null));
+		}
+		return tracks;
+	}
+
+	@Test
+	public void testDefaultLayout()
+	{
+		File destDir = new File("/dest");
+		ITrack track = createTrack("madness", null, null);
+		File destFile = new FileSync(Arrays.asList(track), destDir)
+				.getDestFile(track);
+
+		assertEquals(new File(destDir, "M/madness/Album/Song.mp3"), destFile);
+	}
+
+	@Test
+	public void testGroupings()
+	{
+		ITrack track = createTrack("Sade", "Soul", "1984-02-16");
+
+		assertEquals(Arrays.asList("S", "Sa", "Sade", "Album"),
+				new DestinationLayout(Grouping.TWO_LETTERS, 0).getFolders(track));
+		assertEquals(Arrays.asList("Soul", "Sade", "Album"),
+				new DestinationLayout(Grouping.GENRE, 0).getFolders(track));
+		assertEquals(Arrays.asList("1980s", "Sade", "Album"),
+				new DestinationLayout(Grouping.DECADE, 0).getFolders(track));
+		assertEquals(Arrays.asList("Unknown", "Nobody", "Album"),
+				new DestinationLayout(Grouping.DECADE, 0)
+						.getFolders(createTrack("Nobody", null, null)));
+	}
+
+	/**
+	 * @return the folders below each group folder with their entries, in
+	 *         lower case as on a FAT card
+	 */
+	private static Map<String, Set<String>> listEntries(
+			DestinationLayout layout, List<ITrack> tracks)
+	{
+		Map<String, Set<String>> entries = new HashMap<>();
+		for (ITrack track : tracks)
+		{
+			List<String> folders = layout.getFolders(track);
+			// up to the artist folder, the last one is the album
+			for (int i = 1; i < folders.size() - 1; i++)
+			{
+				entries.computeIfAbsent(
+						String.join("/", folders.subList(0, i)),
+						folder -> new HashSet<>())
+						.add(folders.get(i).toLowerCase(Locale.ROOT));
+			}
+		}
+		return entries;
+	}
+
+	private static void assertEntriesAtMost(int maxEntries,
+			Map<String, Set<String>> entries)
+	{
+		for (Map.Entry<String, Set<String>> folder : entries.entrySet())
+		{
+			assertTrue(folder.getValue().size() <= maxEntries,
+					folder.toString());
+		}
+	}
+
+	@Test
+	public void testSplitsLargeGroups()
+	{
+		List<ITrack> tracks = createArtists("Sade", "Santana", "Saxon", "Scorpions",
+				"Seal", "Shakira", "Sting", "Air");
+		DestinationLayout layout = new DestinationLayout(Grouping.INITIAL, 3);
+		layout.prepare(tracks);
+
+		assertEquals(Arrays.asList("S", "Sa-Sc", "Sa", "Sade", "Album"),
+				layout.getFolders(tracks.get(0)));
+		assertEquals(Arrays.asList("S", "Sa-Sc", "Scorpions", "Album"),
+				layout.getFolders(tracks.get(3)));
+		assertEquals(Arrays.asList("S", "Se-Sh", "Seal", "Album"),
+				layout.getFolders(tracks.get(4)));
+		assertEquals(Arrays.asList("S", "Sting", "Album"),
+				layout.getFolders(tracks.get(6)));
+		assertEquals(Arrays.asList("A", "Air", "Album"),
+				layout.getFolders(tracks.get(7)));
+		assertEntriesAtMost(3, listEntries(layout, tracks));
+	}
+
+	@Test
+	public void testSplitsEveryLevel()
+	{
+		List<ITrack> tracks = new ArrayList<>();
+		for (char second = 'a'; second <= 'z'; second++)
+		{
+			for (char third = 'a'; third <= 'z'; third++)
+			{
+				tracks.add(createTrack("S" + second + third + " Band", null, null));
+			}
+		}
+		DestinationLayout layout = new DestinationLayout(Grouping.INITIAL, 5);
+		layout.prepare(tracks);
+
+		Map<String, Set<String>> entries = listEntries(layout, tracks);
+		assertEntriesAtMost(5, entries);
+		// every artist has its own folder
+		Set<List<String>> paths = new HashSet<>();
+		for (ITrack track : tracks)
+		{
+			assertTrue(paths.add(layout.getFolders(track)));
+		}
+	}
+
+	@Test
+	public void testSpellingsShareTheirRange()
+	{
+		List<ITrack> tracks = createArtists("AC/DC", "Ac/Dc", "Abba", "Adele",
+				"Aerosmith");
+		DestinationLayout layout = new DestinationLayout(Grouping.INITIAL, 2);
+		layout.prepare(tracks);
+
+		List<String> folders = layout.getFolders(tracks.get(0));
+		assertEquals(Arrays.asList("A", "Ab-Ac", "AC/DC", "Album"), folders);
+		folders.set(2, "Ac/Dc");
+		assertEquals(folders, layout.getFolders(tracks.get(1)));
+	}
+
+	@Test
+	public void testNewArtistMovesFewOthers()
+	{
+		List<ITrack> tracks = new ArrayList<>();
+		for (String artist : new String[] { "Sade", "Santana", "Saxon",
+				"Scorpions", "Seal", "Shakira", "Simply Red", "Slayer",
+				"Sting", "Supertramp" })
+		{
+			tracks.add(createTrack(artist, null, null));
+		}
+		DestinationLayout layout = new DestinationLayout(Grouping.INITIAL, 3);
+		layout.prepare(tracks);
+		Map<ITrack, List<String>> before = new HashMap<>();
+		for (ITrack track : tracks)
+		{
+			before.put(track, layout.getFolders(track));
+		}
+
+		List<ITrack> more = new ArrayList<>(tracks);
+		more.add(createTrack("Sabaton", null, null));
+		layout.prepare(more);
+
+		int moved = 0;
+		for (ITrack track : tracks)
+		{
+			if (!before.get(track).equals(layout.getFolders(track)))
+			{
+				moved++;
+			}
+		}
+		// only the artists starting with 'Sa'
+		assertEquals(3, moved);
+	}
+
+	@Test
+	public void testRangesHaveUniqueNames()
+	{
+		List<ITrack> tracks = createArtists("Saa", "Sab", "Sac", "Sad");
+		DestinationLayout layout = new DestinationLayout(Grouping.INITIAL, 2);
+		layout.prepare(tracks);
+
+		assertEquals("Saa-Sab", layout.getFolders(tracks.get(0)).get(1));
+		assertEquals("Sac-Sad", layout.getFolders(tracks.get(3)).get(1));
+	}
+}
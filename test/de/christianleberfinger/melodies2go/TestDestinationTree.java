@@ -0,0 +1,76 @@
+package de.christianleberfinger.melodies2go;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TestDestinationTree
+{
+	@TempDir
+	Path tempDir;
+
+	@Test
+	public void testResolveSharesFolders()
+	{
+		File destDir = tempDir.toFile();
+		DestinationTree tree = new DestinationTree(destDir);
+
+		File first = tree.resolve(Arrays.asList("A", "AC/DC", "Back"), "1.mp3");
+		File second = tree.resolve(Arrays.asList("A", "AC/DC", "Back"), "2.mp3");
+
+		assertEquals(new File(destDir, "A/AC_DC/Back/1.mp3"), first);
+		assertEquals(first.getParentFile(), second.getParentFile());
+	}
+
+	@Test
+	public void testCreateFolderOnce() throws IOException
+	{
+		DestinationTree tree = new DestinationTree(tempDir.toFile());
+		File folder = tempDir.resolve("A/Artist").toFile();
+
+		tree.createFolder(folder);
+		assertTrue(folder.isDirectory());
+
+		// a known folder isn't created again
+		Files.delete(folder.toPath());
+		tree.createFolder(folder);
+		assertFalse(folder.exists());
+	}
+
+	@Test
+	public void testCaseInsensitiveFolders() throws IOException
+	{
+		File destDir = tempDir.toFile();
+		DestinationTree tree = new DestinationTree(destDir);
+		assertNotEquals(tree.resolve(Arrays.asList("A", "AC/DC"), "1.mp3"),
+				tree.resolve(Arrays.asList("A", "Ac/Dc"), "1.mp3"));
+
+		tree.setCaseSensitive(false);
+		tree.addExistingFolders(Arrays.asList(new File(destDir, "A/Ac_dc")),
+				false);
+
+		// the existing spelling wins
+		assertEquals(new File(destDir, "A/Ac_dc/1.mp3"),
+				tree.resolve(Arrays.asList("A", "AC/DC"), "1.mp3"));
+		assertEquals(new File(destDir, "A/Ac_dc/2.mp3"),
+				tree.resolve(Arrays.asList("a", "Ac/Dc"), "2.mp3"));
+		assertEquals(new File(destDir, "B/Back/3.mp3"),
+				tree.resolve(Arrays.asList("B", "Back"), "3.mp3"));
+		assertEquals(new File(destDir, "B/Back/4.mp3"),
+				tree.resolve(Arrays.asList("b", "BACK"), "4.mp3"));
+
+		// unverified folders are still created
+		tree.createFolder(new File(destDir, "A/Ac_dc"));
+		assertTrue(new File(destDir, "A/Ac_dc").isDirectory());
+	}
+}
@@ -0,0 +1,147 @@
+package de.christianleberfinger.melodies2go;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+public class TestFileCopier
+{
+	@TempDir
+	Path tempDir;
+
+	@ParameterizedTest
+	@EnumSource(FileCopier.Method.class)
+	public void testCopyPreservesContentAndTimestamp(FileCopier.Method method)
+			throws IOException
+	{
+		byte[] content = new byte[100_000];
+		new Random(42).nextBytes(content);
+
+		Path source = tempDir.resolve("source.mp3");
+		Files.write(source, content);
+		FileTime lastModified = FileTime.fromMillis(1_500_000_000_000L);
+		Files.setLastModifiedTime(source, lastModified);
+
+		File target = tempDir.resolve("target.mp3").toFile();
+		Files.write(target.toPath(), new byte[200_000]);
+
+		// a small buffer makes sure that several chunks are copied
+		new FileCopier(method, 4096).copy(source.toFile(), target);
+
+		assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+		assertEquals(lastModified, Files.getLastModifiedTime(target.toPath()));
+	}
+
+	@ParameterizedTest
+	@EnumSource(FileCopier.Method.class)
+	public void testCopyResumesPartialCopy(FileCopier.Method method)
+			throws IOException
+	{
+		byte[] content = new byte[300_000];
+		new Random(42).nextBytes(content);
+		File source = tempDir.resolve("source.mp3").toFile();
+		Files.write(source.toPath(), content);
+
+		File partial = tempDir.resolve("partial.mp3.tmp").toFile();
+		Files.write(partial.toPath(), Arrays.copyOf(content, 123_456));
+		long offset = FileCopier.getResumableLength(source, partial);
+		assertEquals(123_456, offset);
+
+		new FileCopier(method, 4096).copy(source, partial, offset);
+		assertArrayEquals(content, Files.readAllBytes(partial.toPath()));
+
+		// a partial copy with a damaged tail has to start from scratch
+		byte[] damaged = Arrays.copyOf(content, 123_456);
+		damaged[damaged.length - 1]++;
+		Files.write(partial.toPath(), damaged);
+		assertEquals(0, FileCopier.getResumableLength(source, partial));
+
+		// a preallocated partial copy of a source that ends in silence
+		Arrays.fill(content, 200_000, content.length, (byte) 0);
+		Files.write(source.toPath(), content);
+		byte[] preallocated = Arrays.copyOf(content, content.length);
+		Arrays.fill(preallocated, 100_000, preallocated.length, (byte) 0);
+		Files.write(partial.toPath(), preallocated);
+		assertEquals(0, FileCopier.getResumableLength(source, partial));
+	}
+
+	@Test
+	public void testCopyToSeveralTargets() throws IOException
+	{
+		byte[] content = new byte[100_000];
+		new Random(42).nextBytes(content);
+		File source = tempDir.resolve("source.mp3").toFile();
+		Files.write(source.toPath(), content);
+		FileTime lastModified = FileTime.fromMillis(1_500_000_000_000L);
+		Files.setLastModifiedTime(source.toPath(), lastModified);
+
+		List<File> targets = Arrays.asList(tempDir.resolve("a.mp3").toFile(),
+				tempDir.resolve("b.mp3").toFile(),
+				tempDir.resolve("missing/c.mp3").toFile());
+		Map<File, IOException> failures = new FileCopier(
+				FileCopier.Method.PIPELINED, 4096, 2).copy(source, targets);
+
+		// a target that can't be written doesn't affect the others
+		assertEquals(1, failures.size());
+		assertTrue(failures.containsKey(targets.get(2)));
+		for (File target : targets.subList(0, 2))
+		{
+			assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+			assertEquals(lastModified, Files.getLastModifiedTime(target.toPath()));
+		}
+	}
+
+	@Test
+	public void testCopyToSeveralTargetsResumesEachTarget() throws IOException
+	{
+		byte[] content = new byte[100_000];
+		new Random(42).nextBytes(content);
+		File source = tempDir.resolve("source.mp3").toFile();
+		Files.write(source.toPath(), content);
+
+		// the first byte of a kept partial copy is never written again
+		List<File> targets = new ArrayList<>();
+		for (int length : new int[] { 90_001, 66_000, 0 })
+		{
+			byte[] partial = Arrays.copyOf(content, length);
+			if (length > 0)
+			{
+				partial[0]++;
+			}
+			File target = tempDir.resolve(length + ".mp3.tmp").toFile();
+			Files.write(target.toPath(), partial);
+			targets.add(target);
+		}
+
+		Map<File, IOException> failures = new FileCopier(
+				FileCopier.Method.PIPELINED, 4096, 2).copy(source, targets);
+		assertTrue(failures.isEmpty());
+
+		for (int i = 0; i < targets.size(); i++)
+		{
+			byte[] expected = content.clone();
+			if (i < 2)
+			{
+				expected[0]++;
+			}
+			assertArrayEquals(expected,
+					Files.readAllBytes(targets.get(i).toPath()));
+		}
+	}
+}
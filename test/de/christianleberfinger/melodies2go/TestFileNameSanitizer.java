@@ -0,0 +1,62 @@
+package de.christianleberfinger.melodies2go;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.common.base.Strings;
+
+public class TestFileNameSanitizer
+{
+	@Test
+	public void testCleanNameIsKept()
+	{
+		String name = "01 Song (Live) [Remastered].mp3";
+		assertSame(name, FileNameSanitizer.sanitize(name));
+	}
+
+	@Test
+	public void testInvalidCharacters()
+	{
+		assertEquals("AC_DC", FileNameSanitizer.sanitize("AC/DC"));
+		assertEquals("What_ _Why_ __a_b_",
+				FileNameSanitizer.sanitize("What? *Why* <\"a|b\\"));
+		assertEquals("Tab_Song_.mp3", FileNameSanitizer.sanitize("Tab\tSong:.mp3"));
+	}
+
+	@Test
+	public void testTrailingDotsAndSpaces()
+	{
+		assertEquals("Vol. 2", FileNameSanitizer.sanitize("Vol. 2. . "));
+		assertEquals("Greatest Hits", FileNameSanitizer.sanitize("Greatest Hits..."));
+		assertEquals("_", FileNameSanitizer.sanitize(".."));
+		assertEquals("_", FileNameSanitizer.sanitize(""));
+	}
+
+	@Test
+	public void testLongNamesKeepExtension()
+	{
+		String name = Strings.repeat("a", 300) + ".mp3";
+		String sanitized = FileNameSanitizer.sanitize(name);
+
+		assertEquals(FileNameSanitizer.MAX_NAME_LENGTH, sanitized.length());
+		assertTrue(sanitized.endsWith("a.mp3"));
+
+		String shorter = FileNameSanitizer.sanitize(name, 200);
+		assertEquals(200, shorter.length());
+	}
+
+	@Test
+	public void testLongNamesKeepSurrogatePairs()
+	{
+		// U+1D11E (musical symbol G clef) takes two UTF-16 units
+		String clef = new String(Character.toChars(0x1D11E));
+		String name = Strings.repeat(clef, 200);
+		String sanitized = FileNameSanitizer.sanitize(name);
+
+		assertEquals(254, sanitized.length());
+		assertTrue(Character.isLowSurrogate(sanitized.charAt(253)));
+	}
+}
@@ -1,19 +1,53 @@
 package de.christianleberfinger.melodies2go;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.text.Normalizer;
+import java.text.Normalizer.Form;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 
 import com.google.common.collect.Lists;
 
+import de.christianleberfinger.melodies2go.FileSync.SyncedTrack;
+import de.christianleberfinger.melodies2go.SyncOptions.SyncOptionsBuilder;
+import de.christianleberfinger.melodies2go.parser.ITrack;
+import de.christianleberfinger.melodies2go.parser.Track;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class TestFileSync {
 
+	@TempDir
+	Path tempDir;
+
 	@Test
 	public void test() {
 		
@@ -38,4 +72,904 @@ public class TestFileSync {
 		assertEquals(1, pathElements.size());
 		assertEquals("1_2_3 4.mp3", pathElements.get(0));
 	}
+
+	private ITrack createTrack(String artist, String album, String fileName,
+			int size) throws IOException
+	{
+		Path sourceDir = Files.createDirectories(tempDir.resolve("source"));
+		Path file = sourceDir.resolve(fileName);
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++)
+		{
+			content[i] = (byte) (fileName.hashCode() + i);
+		}
+		Files.write(file, content);
+
+		return new Track.TrackBuilder().artist(artist).album(album)
+				.title(fileName).dateAdded(new Date(0))
+				.fileLocation(file.toUri().toString()).build();
+	}
+
+	private List<ITrack> createTracks(int count) throws IOException
+	{
+		List<ITrack> tracks = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+		{
+			tracks.add(createTrack("Artist " + (i % 5), "Album " + (i % 3),
+					"track" + i + ".mp3", 1000 + i));
+		}
+		return tracks;
+	}
+
+	@Test
+	public void testSyncCopiesInParallel() throws IOException
+	{
+		List<ITrack> tracks = createTracks(30);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		File dispensable = new File(dest, "X/Unknown/Album/old.mp3");
+		dispensable.getParentFile().mkdirs();
+		Files.write(dispensable.toPath(), new byte[10]);
+
+		SyncOptions options = new SyncOptionsBuilder().sourceReadConcurrency(4)
+				.destinationWriteConcurrency(3).build();
+		List<SyncedTrack> synced = new FileSync(tracks, dest, options).sync();
+
+		assertEquals(tracks.size(), synced.size());
+		for (SyncedTrack syncedTrack : synced)
+		{
+			File destFile = syncedTrack.getDestFile();
+			assertTrue(destFile.isFile());
+			assertArrayEquals(Files.readAllBytes(syncedTrack.track.getFile().toPath()),
+					Files.readAllBytes(destFile.toPath()));
+		}
+		assertFalse(dispensable.exists());
+		assertFalse(new File(dest, "X").exists());
+	}
+
+	@Test
+	public void testSyncRefreshesStaleFiles() throws IOException
+	{
+		List<ITrack> tracks = createTracks(3);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		List<SyncedTrack> synced = new FileSync(tracks, dest).sync();
+
+		// a crashed run doesn't leave a manifest behind
+		Path truncated = synced.get(0).getDestFile().toPath();
+		Files.write(truncated, new byte[10]);
+		Files.setLastModifiedTime(truncated,
+				Files.getLastModifiedTime(synced.get(0).track.getFile().toPath()));
+		SyncManifest.delete(dest);
+
+		Path retagged = synced.get(1).track.getFile().toPath();
+		Files.write(retagged, new byte[] { 1, 2, 3 });
+
+		Path unchanged = synced.get(2).getDestFile().toPath();
+		Object unchangedKey = Files.getAttribute(unchanged, "basic:fileKey");
+
+		new FileSync(tracks, dest).sync();
+
+		for (SyncedTrack syncedTrack : synced)
+		{
+			assertArrayEquals(Files.readAllBytes(syncedTrack.track.getFile().toPath()),
+					Files.readAllBytes(syncedTrack.getDestFile().toPath()));
+		}
+		assertEquals(unchangedKey, Files.getAttribute(unchanged, "basic:fileKey"));
+	}
+
+	@Test
+	public void testSyncRefreshesRetagOneHourLater() throws IOException
+	{
+		List<ITrack> tracks = createTracks(1);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		assumeFalse(FileComparison.isLocalTime(dest));
+		SyncedTrack synced = new FileSync(tracks, dest).sync().get(0);
+
+		// same size, but tagged an hour after the copy
+		Path source = synced.track.getFile().toPath();
+		long lastModified = Files.getLastModifiedTime(source).toMillis();
+		byte[] retagged = Files.readAllBytes(source);
+		retagged[0]++;
+		Files.write(source, retagged);
+		Files.setLastModifiedTime(source, FileTime.fromMillis(
+				lastModified + Duration.ofHours(1).toMillis()));
+
+		new FileSync(tracks, dest).sync();
+
+		assertArrayEquals(retagged,
+				Files.readAllBytes(synced.getDestFile().toPath()));
+	}
+
+	@Test
+	public void testDaylightSavingToleranceOnlyForLocalTime()
+	{
+		long hour = Duration.ofHours(1).toMillis();
+		assertTrue(FileComparison.isSameTime(0, 1000, false));
+		assertFalse(FileComparison.isSameTime(0, hour, false));
+		assertTrue(FileComparison.isSameTime(0, hour + 1000, true));
+		assertFalse(FileComparison.isSameTime(0, hour / 2, true));
+	}
+
+	@Test
+	public void testSecondSyncUsesManifest() throws IOException
+	{
+		List<ITrack> tracks = createTracks(10);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		new FileSync(tracks, dest).sync();
+
+		File manifest = new File(dest, SyncManifest.FILE_NAME);
+		assertTrue(manifest.isFile());
+		long manifestModified = manifest.lastModified();
+
+		DestinationScan scan = DestinationScan.scan(dest);
+		assertTrue(scan.isFromManifest());
+		assertEquals(DestinationScan.walk(dest).getFiles(), scan.getFiles());
+		assertEquals(new TreeSet<>(DestinationScan.walk(dest).getFolders()),
+				new TreeSet<>(scan.getFolders()));
+
+		// a sync without changes doesn't touch the manifest
+		new FileSync(tracks, dest).sync(scan);
+		assertEquals(manifestModified, manifest.lastModified());
+
+		// a new top level folder makes the manifest inconsistent
+		assertTrue(new File(dest, "Z").mkdir());
+		assertFalse(DestinationScan.scan(dest).isFromManifest());
+
+		List<ITrack> fewerTracks = tracks.subList(0, 5);
+		List<SyncedTrack> synced = new FileSync(fewerTracks, dest).sync();
+		assertEquals(DestinationScan.walk(dest).getFiles(),
+				DestinationScan.scan(dest).getFiles());
+		assertEquals(5, DestinationScan.scan(dest).getFiles().size());
+		assertEquals(5, synced.size());
+	}
+
+	@Test
+	public void testSyncFindsFoldersDeletedBelowTopLevel() throws IOException
+	{
+		List<ITrack> tracks = createTracks(4);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		FileSync fileSync = new FileSync(tracks, dest);
+		fileSync.sync();
+
+		// deleted by another tool, the top level still matches the manifest
+		File album = fileSync.getDestFile(tracks.get(0)).getParentFile();
+		FileUtils.deleteDirectory(album);
+		assertTrue(DestinationScan.scan(dest).isFromManifest());
+
+		new FileSync(tracks, dest).sync();
+		assertEquals(4, DestinationScan.walk(dest).getFiles().size());
+		assertEquals(DestinationScan.walk(dest).getFiles(),
+				DestinationScan.scan(dest).getFiles());
+	}
+
+	@Test
+	public void testWalkCountsFolderEntries() throws IOException
+	{
+		List<ITrack> tracks = createTracks(2);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		File empty = new File(dest, "E/Empty/Nested");
+		assertTrue(empty.mkdirs());
+		File keep = new File(dest, "K/Keep");
+		assertTrue(keep.mkdirs());
+		Files.write(new File(keep, ".DS_Store").toPath(), new byte[4]);
+
+		DestinationScan scan = DestinationScan.walk(dest);
+		assertEquals(0, scan.getFiles().size());
+		assertEquals(1, scan.getEntryCount(keep));
+		assertEquals(1, scan.getEntryCount(new File(dest, "E/Empty")));
+
+		new FileSync(tracks, dest).sync(scan);
+
+		// nested empty folders are removed, folders with hidden files are kept
+		assertFalse(new File(dest, "E").exists());
+		assertTrue(keep.isDirectory());
+
+		scan = DestinationScan.walk(dest);
+		for (ITrack track : tracks)
+		{
+			File destFile = new FileSync(tracks, dest).getDestFile(track);
+			assertEquals(track.getFile().length(),
+					scan.getFileState(destFile).getSize());
+		}
+	}
+
+	private static List<ITrack> renameAlbums(List<ITrack> tracks)
+	{
+		List<ITrack> renamed = new ArrayList<>();
+		for (ITrack track : tracks)
+		{
+			renamed.add(new Track.TrackBuilder().artist(track.getArtist())
+					.album(track.getAlbum() + " (Remastered)")
+					.title(track.getTitle()).dateAdded(track.getDateAdded())
+					.fileLocation(track.getFile().toURI().toString()).build());
+		}
+		return renamed;
+	}
+
+	@Test
+	public void testSyncMovesRenamedFiles() throws IOException
+	{
+		for (boolean withManifest : new boolean[] { true, false })
+		{
+			List<ITrack> tracks = createTracks(6);
+			File dest = Files.createDirectories(
+					tempDir.resolve("dest-" + withManifest)).toFile();
+			List<SyncedTrack> synced = new FileSync(tracks, dest).sync();
+			List<Object> fileKeys = new ArrayList<>();
+			for (SyncedTrack syncedTrack : synced)
+			{
+				fileKeys.add(Files.getAttribute(syncedTrack.getDestFile().toPath(),
+						"basic:fileKey"));
+			}
+			if (!withManifest)
+			{
+				// moves are detected by content fingerprint
+				SyncManifest.delete(dest);
+			}
+
+			List<SyncedTrack> moved = new FileSync(renameAlbums(tracks), dest)
+					.sync();
+
+			for (int i = 0; i < moved.size(); i++)
+			{
+				Path destFile = moved.get(i).getDestFile().toPath();
+				assertTrue(destFile.toString().contains("(Remastered)"));
+				assertEquals(fileKeys.get(i),
+						Files.getAttribute(destFile, "basic:fileKey"));
+				assertFalse(synced.get(i).getDestFile().getParentFile().exists());
+			}
+			assertEquals(moved.size(), DestinationScan.walk(dest).getFiles().size());
+		}
+	}
+
+	@Test
+	public void testSyncResumesFromJournal() throws IOException
+	{
+		List<ITrack> tracks = createTracks(8);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		FileSync fileSync = new FileSync(tracks, dest);
+		new FileSync(tracks.subList(0, 5), dest).sync();
+
+		// an interrupted sync that copied two of three files
+		List<File> planned = new ArrayList<>();
+		for (ITrack track : tracks.subList(5, 8))
+		{
+			planned.add(fileSync.getDestFile(track));
+		}
+		try (SyncJournal journal = SyncJournal.start(dest, planned,
+				new TreeMap<>(), new ArrayList<>()))
+		{
+			for (int i = 0; i < 2; i++)
+			{
+				File source = tracks.get(5 + i).getFile();
+				File destFile = planned.get(i);
+				destFile.getParentFile().mkdirs();
+				new FileCopier(FileCopier.Method.TRANSFER, 4096).copy(source,
+						destFile);
+				journal.copied(destFile, FileState.read(source)
+						.withSourcePath(source.getAbsolutePath()));
+			}
+		}
+
+		DestinationScan scan = DestinationScan.scan(dest);
+		assertTrue(scan.isFromManifest());
+		assertTrue(scan.isResumed());
+		assertTrue(scan.contains(planned.get(1)));
+		assertFalse(scan.contains(planned.get(2)));
+
+		fileSync.sync(scan);
+
+		assertFalse(new File(dest, SyncJournal.FILE_NAME).exists());
+		scan = DestinationScan.scan(dest);
+		assertFalse(scan.isResumed());
+		assertEquals(DestinationScan.walk(dest).getFiles(), scan.getFiles());
+		assertEquals(8, scan.getFiles().size());
+	}
+
+	@Test
+	public void testNewManifestReplacesJournal() throws IOException
+	{
+		List<ITrack> tracks = createTracks(3);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		FileSync fileSync = new FileSync(tracks, dest);
+		fileSync.sync();
+
+		// a journal that doesn't continue the current manifest
+		File destFile = fileSync.getDestFile(tracks.get(0));
+		try (SyncJournal journal = SyncJournal.start(dest,
+				new ArrayList<>(), new TreeMap<>(), Arrays.asList(destFile)))
+		{
+			journal.deleted(destFile);
+		}
+
+		// a rescan that changes nothing
+		new FileSync(tracks, dest).sync(DestinationScan.walk(dest));
+
+		assertFalse(new File(dest, SyncJournal.FILE_NAME).exists());
+		DestinationScan scan = DestinationScan.scan(dest);
+		assertFalse(scan.isResumed());
+		assertTrue(scan.contains(destFile));
+	}
+
+	@Test
+	public void testManifestKeepsPartialCopies() throws IOException
+	{
+		List<ITrack> tracks = createTracks(2);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		FileSync fileSync = new FileSync(tracks.subList(0, 1), dest);
+		fileSync.sync();
+
+		// an interrupted sync that left a partial copy
+		ITrack track = tracks.get(1);
+		File destFile = fileSync.getDestFile(track);
+		TempFile partial = TempFile.forSource(destFile,
+				FileState.read(track.getFile()));
+		try (SyncJournal journal = SyncJournal.start(dest,
+				Arrays.asList(destFile), new TreeMap<>(), new ArrayList<>()))
+		{
+			journal.partial(partial);
+			destFile.getParentFile().mkdirs();
+			Files.write(partial.toPath(), new byte[500]);
+		}
+
+		// the budget is too small to resume, the partial copy is kept
+		new FileSync(tracks, dest,
+				new SyncOptionsBuilder().byteBudget(1).build()).sync();
+		assertTrue(partial.exists());
+		DestinationScan scan = DestinationScan.scan(dest);
+		assertTrue(scan.isFromManifest());
+		assertTrue(scan.contains(partial));
+
+		// the track is deselected
+		new FileSync(tracks.subList(0, 1), dest).sync();
+		assertFalse(partial.exists());
+		assertEquals(DestinationScan.walk(dest).getFiles(),
+				DestinationScan.scan(dest).getFiles());
+	}
+
+	@Test
+	public void testSyncResumesPartialCopies() throws IOException
+	{
+		List<ITrack> tracks = createTracks(2);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		FileSync fileSync = new FileSync(tracks, dest);
+
+		// partial copy of the current source and one of an older version
+		ITrack track = tracks.get(0);
+		File destFile = fileSync.getDestFile(track);
+		byte[] content = Files.readAllBytes(track.getFile().toPath());
+		TempFile partial = TempFile.forSource(destFile,
+				FileState.read(track.getFile()));
+		TempFile outdated = TempFile.forSource(destFile, new FileState(1, 2));
+		destFile.getParentFile().mkdirs();
+		Files.write(partial.toPath(), Arrays.copyOf(content, 500));
+		Files.write(outdated.toPath(), new byte[10]);
+		Object partialKey = Files.getAttribute(partial.toPath(), "basic:fileKey");
+
+		fileSync.sync();
+
+		assertArrayEquals(content, Files.readAllBytes(destFile.toPath()));
+		assertEquals(partialKey, Files.getAttribute(destFile.toPath(),
+				"basic:fileKey"));
+		assertFalse(partial.exists());
+		assertFalse(outdated.exists());
+	}
+
+	@Test
+	public void testSyncStopsAtByteBudget() throws IOException
+	{
+		// sizes 1000..1009 bytes, the list is ordered by priority
+		List<ITrack> tracks = createTracks(10);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		SyncOptions options = new SyncOptionsBuilder().byteBudget(3500)
+				.destinationWriteConcurrency(1).sourceReadConcurrency(1).build();
+
+		List<SyncedTrack> synced = new FileSync(tracks, dest, options).sync();
+
+		assertEquals(3, synced.size());
+		for (int i = 0; i < synced.size(); i++)
+		{
+			assertEquals(tracks.get(i), synced.get(i).track);
+			assertTrue(synced.get(i).getDestFile().isFile());
+		}
+		assertEquals(3, DestinationScan.walk(dest).getFiles().size());
+
+		// without a budget, the remaining files follow
+		assertEquals(10, new FileSync(tracks, dest).sync().size());
+	}
+
+	@Test
+	public void testBatchesStopAtByteBudgetInOrder() throws IOException
+	{
+		// two tracks per source directory, ordered by priority
+		List<ITrack> tracks = new ArrayList<>();
+		for (int i = 0; i < 10; i++)
+		{
+			Path source = Files.createDirectories(tempDir.resolve("batch" + i / 2))
+					.resolve("track" + i + ".mp3");
+			Files.write(source, new byte[1000 + i]);
+			tracks.add(new Track.TrackBuilder().artist("Artist").album("Album")
+					.title("track" + i).dateAdded(new Date(0))
+					.fileLocation(source.toUri().toString()).build());
+		}
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		SyncOptions options = new SyncOptionsBuilder().byteBudget(3500)
+				.batchBySourceDirectory(true).destinationWriteConcurrency(1)
+				.sourceReadConcurrency(1).build();
+
+		List<SyncedTrack> synced = new FileSync(tracks, dest, options).sync();
+
+		assertEquals(3, synced.size());
+		for (int i = 0; i < synced.size(); i++)
+		{
+			assertEquals(tracks.get(i), synced.get(i).track);
+		}
+	}
+
+	@Test
+	public void testFanOutSyncsAllDestinations() throws IOException
+	{
+		List<ITrack> tracks = createTracks(12);
+		File dest1 = Files.createDirectories(tempDir.resolve("dest1")).toFile();
+		File dest2 = Files.createDirectories(tempDir.resolve("dest2")).toFile();
+		new FileSync(tracks.subList(0, 6), dest2).sync();
+
+		List<FileSync> fileSyncs = Arrays.asList(new FileSync(tracks, dest1),
+				new FileSync(tracks, dest2));
+		List<List<SyncedTrack>> synced = new FanOutSync(fileSyncs,
+				SyncOptions.defaults()).sync(Arrays.asList(
+						DestinationScan.scan(dest1), DestinationScan.scan(dest2)));
+
+		for (List<SyncedTrack> syncedTracks : synced)
+		{
+			assertEquals(tracks.size(), syncedTracks.size());
+			for (SyncedTrack syncedTrack : syncedTracks)
+			{
+				assertArrayEquals(
+						Files.readAllBytes(syncedTrack.track.getFile().toPath()),
+						Files.readAllBytes(syncedTrack.getDestFile().toPath()));
+			}
+		}
+		assertEquals(DestinationScan.walk(dest1).getFiles().size(),
+				DestinationScan.walk(dest2).getFiles().size());
+		assertTrue(DestinationScan.scan(dest1).isFromManifest());
+	}
+
+	@Test
+	public void testFanOutHonorsLinkModeAndPreallocation() throws IOException
+	{
+		List<ITrack> tracks = createTracks(4);
+		for (SyncOptions options : new SyncOptions[] {
+				new SyncOptionsBuilder().linkMode(FileLinker.Mode.HARD_LINK).build(),
+				new SyncOptionsBuilder().preallocate(true).build() })
+		{
+			List<File> dests = new ArrayList<>();
+			List<FileSync> fileSyncs = new ArrayList<>();
+			List<DestinationScan> scans = new ArrayList<>();
+			for (int i = 0; i < 2; i++)
+			{
+				File dest = Files.createTempDirectory(tempDir, "dest").toFile();
+				dests.add(dest);
+				fileSyncs.add(new FileSync(tracks, dest, options));
+				scans.add(DestinationScan.scan(dest));
+			}
+
+			List<List<SyncedTrack>> synced = new FanOutSync(fileSyncs, options)
+					.sync(scans);
+
+			for (List<SyncedTrack> syncedTracks : synced)
+			{
+				assertEquals(tracks.size(), syncedTracks.size());
+				for (SyncedTrack syncedTrack : syncedTracks)
+				{
+					Path source = syncedTrack.track.getFile().toPath();
+					Path destFile = syncedTrack.getDestFile().toPath();
+					assertArrayEquals(Files.readAllBytes(source),
+							Files.readAllBytes(destFile));
+					assertEquals(options.getLinkMode() == FileLinker.Mode.HARD_LINK,
+							Files.isSameFile(source, destFile));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testStagingWithHardLinks() throws IOException
+	{
+		List<ITrack> tracks = createTracks(4);
+		File staging = Files.createDirectories(tempDir.resolve("staging"))
+				.toFile();
+		SyncOptions options = new SyncOptionsBuilder()
+				.linkMode(FileLinker.Mode.HARD_LINK).build();
+
+		List<SyncedTrack> synced = new FileSync(tracks, staging, options).sync();
+
+		assertEquals(tracks.size(), synced.size());
+		for (SyncedTrack syncedTrack : synced)
+		{
+			assertTrue(Files.isSameFile(syncedTrack.track.getFile().toPath(),
+					syncedTrack.getDestFile().toPath()));
+		}
+
+		// the links are up to date, so the next sync doesn't change anything
+		File manifest = new File(staging, SyncManifest.FILE_NAME);
+		long manifestModified = manifest.lastModified();
+		new FileSync(tracks, staging, options).sync();
+		assertEquals(manifestModified, manifest.lastModified());
+	}
+
+	@ParameterizedTest
+	@EnumSource(DurabilityBarrier.Policy.class)
+	public void testSyncWithDurabilityPolicy(DurabilityBarrier.Policy policy)
+			throws IOException
+	{
+		List<ITrack> tracks = createTracks(10);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		SyncOptions options = new SyncOptionsBuilder().durability(policy)
+				.syncBatchSize(3000).preallocate(true).build();
+
+		List<SyncedTrack> synced = new FileSync(tracks, dest, options).sync();
+
+		assertEquals(tracks.size(), synced.size());
+		for (SyncedTrack syncedTrack : synced)
+		{
+			assertArrayEquals(Files.readAllBytes(syncedTrack.track.getFile().toPath()),
+					Files.readAllBytes(syncedTrack.getDestFile().toPath()));
+		}
+		assertEquals(DestinationScan.walk(dest).getFiles(),
+				DestinationScan.scan(dest).getFiles());
+	}
+
+	@Test
+	public void testCloneFallsBackToCopying() throws IOException
+	{
+		List<ITrack> tracks = createTracks(3);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		SyncOptions options = new SyncOptionsBuilder()
+				.linkMode(FileLinker.Mode.CLONE).build();
+
+		// cloned where the file system supports it, copied otherwise
+		List<SyncedTrack> synced = new FileSync(tracks, dest, options).sync();
+
+		assertEquals(tracks.size(), synced.size());
+		for (SyncedTrack syncedTrack : synced)
+		{
+			File destFile = syncedTrack.getDestFile();
+			assertArrayEquals(Files.readAllBytes(syncedTrack.track.getFile().toPath()),
+					Files.readAllBytes(destFile.toPath()));
+			assertEquals(syncedTrack.track.getFile().lastModified(),
+					destFile.lastModified());
+		}
+	}
+
+	private static Map<Path, Object> listFileKeys(Path dir) throws IOException
+	{
+		Map<Path, Object> fileKeys = new TreeMap<>();
+		try (Stream<Path> paths = Files.walk(dir))
+		{
+			for (Path path : (Iterable<Path>) paths::iterator)
+			{
+				if (!path.getFileName().toString().startsWith("."))
+				{
+					fileKeys.put(path, Files.getAttribute(path, "basic:fileKey"));
+				}
+			}
+		}
+		return fileKeys;
+	}
+
+	@Test
+	public void testSyncIgnoresUnicodeNormalization() throws IOException
+	{
+		try
+		{
+			tempDir.resolve("\u00FC");
+		}
+		catch (InvalidPathException e)
+		{
+			assumeTrue(false, "file system encoding can't represent umlauts");
+		}
+
+		// composed and decomposed metadata
+		List<ITrack> tracks = Arrays.asList(
+				createTrack("Mot\u00F6rhead", "Ace of Sp\u00E4des",
+						"M\u00FCde.mp3", 1000),
+				createTrack("Bjo\u0308rk", "De\u0301but",
+						"Human Behavio\u0308ur.mp3", 1001));
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		new FileSync(tracks, dest).sync();
+
+		// the device reports decomposed names, like macOS
+		try (Stream<Path> paths = Files.walk(dest.toPath()))
+		{
+			List<Path> all = paths.collect(Collectors.toList());
+			Collections.reverse(all);
+			for (Path path : all)
+			{
+				String name = path.getFileName().toString();
+				String decomposed = Normalizer.normalize(name, Form.NFD);
+				if (!decomposed.equals(name))
+				{
+					Files.move(path, path.resolveSibling(decomposed));
+				}
+			}
+		}
+		Map<Path, Object> fileKeys = listFileKeys(dest.toPath());
+
+		// neither deleted nor copied again
+		assertEquals(tracks.size(),
+				new FileSync(tracks, dest).sync(DestinationScan.walk(dest)).size());
+		assertEquals(fileKeys, listFileKeys(dest.toPath()));
+
+		File manifest = new File(dest, SyncManifest.FILE_NAME);
+		long manifestModified = manifest.lastModified();
+		assertEquals(tracks.size(), new FileSync(tracks, dest).sync().size());
+		assertEquals(fileKeys, listFileKeys(dest.toPath()));
+		assertEquals(manifestModified, manifest.lastModified());
+
+		// a deselected track is deleted under its actual name
+		assertEquals(1, new FileSync(tracks.subList(1, 2), dest).sync().size());
+		assertEquals(1, DestinationScan.walk(dest).getFiles().size());
+		assertEquals(DestinationScan.walk(dest).getFiles(),
+				DestinationScan.scan(dest).getFiles());
+	}
+
+	@Test
+	public void testSyncRenamesCollidingTracks() throws IOException
+	{
+		List<ITrack> tracks = new ArrayList<>();
+		for (String folder : new String[] { "b", "a" })
+		{
+			Path source = Files.createDirectories(tempDir.resolve(folder))
+					.resolve("Intro.mp3");
+			Files.write(source, folder.getBytes());
+			tracks.add(new Track.TrackBuilder().artist("Artist").album("Album")
+					.title("Intro").dateAdded(new Date(0))
+					.fileLocation(source.toUri().toString()).build());
+		}
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+
+		List<SyncedTrack> synced = new FileSync(tracks, dest).sync();
+		assertEquals(2, synced.size());
+		assertEquals("Intro (2).mp3", synced.get(0).getDestFile().getName());
+		assertEquals("Intro.mp3", synced.get(1).getDestFile().getName());
+		for (SyncedTrack syncedTrack : synced)
+		{
+			assertArrayEquals(Files.readAllBytes(syncedTrack.track.getFile().toPath()),
+					Files.readAllBytes(syncedTrack.getDestFile().toPath()));
+		}
+
+		// the names don't depend on the order of the selection
+		Map<Path, Object> fileKeys = listFileKeys(dest.toPath());
+		File manifest = new File(dest, SyncManifest.FILE_NAME);
+		long manifestModified = manifest.lastModified();
+		Collections.reverse(tracks);
+		new FileSync(tracks, dest).sync();
+		assertEquals(fileKeys, listFileKeys(dest.toPath()));
+		assertEquals(manifestModified, manifest.lastModified());
+	}
+
+	@Test
+	public void testSyncKeepsCaseSensitivityOfFirstSync() throws IOException
+	{
+		List<ITrack> tracks = new ArrayList<>();
+		for (String artist : new String[] { "AC/DC", "Ac/Dc" })
+		{
+			Path source = Files.createDirectories(tempDir.resolve(artist.substring(1, 2)))
+					.resolve(artist.charAt(1) == 'C' ? "Intro.mp3" : "intro.mp3");
+			Files.write(source, artist.getBytes());
+			tracks.add(new Track.TrackBuilder().artist(artist).album("Album")
+					.title("Intro").dateAdded(new Date(0))
+					.fileLocation(source.toUri().toString()).build());
+		}
+		// neither the empty destination nor its name tell the case sensitivity
+		File dest = Files.createDirectories(tempDir.resolve("0")).toFile();
+
+		assertEquals(2, new FileSync(tracks, dest).sync().size());
+		Map<Path, Object> fileKeys = listFileKeys(dest.toPath());
+		File manifest = new File(dest, SyncManifest.FILE_NAME);
+		long manifestModified = manifest.lastModified();
+
+		// now there are entries to probe, but the names stay the same
+		assertTrue(new FileSync(tracks, dest).plan().isEmpty());
+		assertEquals(2, new FileSync(tracks, dest).sync().size());
+		assertEquals(fileKeys, listFileKeys(dest.toPath()));
+		assertEquals(manifestModified, manifest.lastModified());
+
+		// also when the destination is walked
+		assertTrue(new FileSync(tracks, dest)
+				.plan(DestinationScan.walk(dest)).isEmpty());
+	}
+
+	@Test
+	public void testPlanDoesNotTouchDestination() throws IOException
+	{
+		List<ITrack> tracks = createTracks(6);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		new FileSync(tracks.subList(0, 4), dest).sync();
+		File dispensable = new File(dest, "X/Unknown/Album/old.mp3");
+		dispensable.getParentFile().mkdirs();
+		Files.write(dispensable.toPath(), new byte[10]);
+
+		Map<Path, Object> fileKeys = listFileKeys(dest.toPath());
+		File manifest = new File(dest, SyncManifest.FILE_NAME);
+		long manifestModified = manifest.lastModified();
+
+		FileSync fileSync = new FileSync(tracks, dest);
+		SyncPlan plan = fileSync.plan(DestinationScan.walk(dest));
+
+		assertEquals(2, plan.getCopies().size());
+		assertEquals(tracks.get(4).getFile(), plan.getCopies().values().iterator().next());
+		assertEquals(1004 + 1005, plan.getCopyBytes());
+		assertEquals(0, plan.getMoves().size());
+		assertEquals(Arrays.asList(dispensable), plan.getDeletes());
+		assertEquals(10, plan.getDeleteBytes());
+		assertEquals(Arrays.asList(dispensable.getParentFile(),
+				new File(dest, "X/Unknown"), new File(dest, "X")),
+				plan.getFolderRemovals());
+		assertEquals(4, plan.getUpToDateCount());
+		assertTrue(plan.toString().startsWith("Would copy 2 files"));
+
+		assertEquals(fileKeys, listFileKeys(dest.toPath()));
+		assertEquals(manifestModified, manifest.lastModified());
+		assertFalse(new File(dest, SyncJournal.FILE_NAME).exists());
+
+		// the plan is executed as it is
+		assertEquals(tracks.size(), fileSync.sync(plan).size());
+		assertFalse(new File(dest, "X").exists());
+		assertEquals(tracks.size(), DestinationScan.walk(dest).getFiles().size());
+	}
+
+	@Test
+	public void testPlanDoesNotProbeEmptyDestination() throws IOException
+	{
+		List<ITrack> tracks = createTracks(2);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		// any file created and deleted again changes the folder
+		assertTrue(dest.setLastModified(0));
+
+		SyncPlan plan = new FileSync(tracks, dest).plan();
+
+		assertEquals(2, plan.getCopies().size());
+		assertEquals(0, dest.list().length);
+		assertEquals(0, dest.lastModified());
+	}
+
+	@Test
+	public void testSyncRepairsCorruptedFiles() throws IOException
+	{
+		List<ITrack> tracks = createTracks(6);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		List<SyncedTrack> synced = new FileSync(tracks, dest,
+				new SyncOptionsBuilder().verifyMode(FileVerifier.Mode.COPIED)
+						.build()).sync();
+		assertEquals(tracks.size(), synced.size());
+
+		// the card returns other data, but size and time are unchanged
+		Path corrupted = synced.get(2).getDestFile().toPath();
+		FileTime lastModified = Files.getLastModifiedTime(corrupted);
+		byte[] content = Files.readAllBytes(corrupted);
+		content[100] ^= 1;
+		Files.write(corrupted, content);
+		Files.setLastModifiedTime(corrupted, lastModified);
+
+		assertEquals(tracks.size(), new FileSync(tracks, dest).sync().size());
+		assertEquals(1, DestinationScan.walk(dest).getFiles().stream()
+				.filter(file -> !isCopyOfSource(file, tracks)).count());
+
+		synced = new FileSync(tracks, dest,
+				new SyncOptionsBuilder().verifyMode(FileVerifier.Mode.SAMPLE)
+						.verifySampleSize(100).build()).sync();
+		assertEquals(tracks.size(), synced.size());
+		for (SyncedTrack syncedTrack : synced)
+		{
+			assertArrayEquals(Files.readAllBytes(syncedTrack.track.getFile().toPath()),
+					Files.readAllBytes(syncedTrack.getDestFile().toPath()));
+			// sources are mapped, destination files are read
+			assertEquals(FileVerifier.hash(syncedTrack.track.getFile()),
+					FileVerifier.hashUnmapped(syncedTrack.getDestFile()));
+		}
+		assertEquals(DestinationScan.walk(dest).getFiles(),
+				DestinationScan.scan(dest).getFiles());
+	}
+
+	private static boolean isCopyOfSource(File destFile, List<ITrack> tracks)
+	{
+		try
+		{
+			for (ITrack track : tracks)
+			{
+				if (track.getFile().getName().equals(destFile.getName()))
+				{
+					return Arrays.equals(Files.readAllBytes(track.getFile().toPath()),
+							Files.readAllBytes(destFile.toPath()));
+				}
+			}
+			return false;
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Test
+	public void testDestinationStateAfterSync() throws IOException
+	{
+		List<ITrack> tracks = createTracks(6);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		FileSync fileSync = new FileSync(tracks, dest);
+		fileSync.sync(DestinationScan.walk(dest));
+		DestinationScan state = fileSync.getDestinationState();
+		assertEquals(DestinationScan.walk(dest).getFiles(), state.getFiles());
+		assertTrue(new FileSync(tracks, dest).plan(state).isEmpty());
+
+		// the state of the last sync is enough to plan the next one
+		List<ITrack> renamed = renameAlbums(tracks);
+		fileSync = new FileSync(renamed, dest);
+		fileSync.sync(state);
+		state = fileSync.getDestinationState();
+		assertEquals(DestinationScan.walk(dest).getFiles(), state.getFiles());
+		assertEquals(DestinationScan.walk(dest).getFolders().size(),
+				state.getFolders().size());
+		assertTrue(new FileSync(renamed, dest).plan(state).isEmpty());
+	}
+
+	@Test
+	public void testFailedCompletionOnlyLosesItsFile() throws IOException
+	{
+		List<ITrack> tracks = createTracks(4);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		SyncOptions options = new SyncOptionsBuilder()
+				.durability(DurabilityBarrier.Policy.BATCHED).syncBatchSize(1)
+				.destinationWriteConcurrency(1).build();
+		FileSync fileSync = new FileSync(tracks, dest, options);
+		SyncPlan plan = fileSync.plan();
+
+		// a non-empty folder blocks the rename of one copy
+		File blocked = plan.getCopies().keySet().iterator().next();
+		Files.createDirectories(blocked.toPath()).resolve("x").toFile()
+				.createNewFile();
+
+		List<SyncedTrack> synced = fileSync.sync(plan);
+		assertEquals(tracks.size() - 1, synced.size());
+		for (SyncedTrack syncedTrack : synced)
+		{
+			assertTrue(syncedTrack.getDestFile().isFile());
+		}
+	}
+
+	@Test
+	public void testSyncKeepsCopiesOfMissingSources() throws IOException
+	{
+		List<ITrack> tracks = createTracks(3);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		List<SyncedTrack> synced = new FileSync(tracks.subList(0, 2), dest)
+				.sync();
+		File kept = synced.get(1).getDestFile();
+
+		// missing files are common in libraries
+		Files.delete(tracks.get(1).getFile().toPath());
+		Files.delete(tracks.get(2).getFile().toPath());
+
+		synced = new FileSync(tracks, dest).sync();
+		assertEquals(2, synced.size());
+		assertTrue(kept.isFile());
+		assertEquals(2, DestinationScan.walk(dest).getFiles().size());
+		assertEquals(2, new FileSync(tracks, dest).sync().size());
+	}
+
+	@Test
+	public void testTimeBudgetCountsFromEachSync()
+			throws IOException, InterruptedException
+	{
+		List<ITrack> tracks = createTracks(3);
+		File dest = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		SyncOptions options = new SyncOptionsBuilder()
+				.timeBudget(Duration.ofSeconds(1)).build();
+
+		// e.g. options that are reused in watch mode
+		Thread.sleep(1500);
+		assertEquals(tracks.size(),
+				new FileSync(tracks, dest, options).sync().size());
+	}
 }
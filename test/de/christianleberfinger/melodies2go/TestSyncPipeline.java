@@ -0,0 +1,61 @@
+package de.christianleberfinger.melodies2go;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xml.sax.SAXException;
+
+import com.google.common.collect.Lists;
+
+import de.christianleberfinger.melodies2go.TrackCompilation.Profile;
+import de.christianleberfinger.melodies2go.parser.ITrack;
+
+public class TestSyncPipeline
+{
+	@TempDir
+	Path tempDir;
+
+	private static List<List<String>> titles(List<List<ITrack>> selections)
+	{
+		List<List<String>> titles = new ArrayList<>();
+		for (List<ITrack> selection : selections)
+		{
+			titles.add(Lists.transform(selection, ITrack::getTitle));
+		}
+		return titles;
+	}
+
+	@Test
+	public void testPipelineMatchesSequentialPreparation()
+			throws IOException, SAXException
+	{
+		// every 7th track is missing on disk, every 11th is disabled
+		File library = LibraryFixture.writeLibrary(tempDir, 1000, 7, 11);
+		File destination = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		Files.write(destination.toPath().resolve("old.mp3"), new byte[1]);
+
+		List<Profile> profiles = Lists.newArrayList(new Profile(5_000),
+				new Profile(100_000, 300));
+
+		List<ITrack> allTracks = new Melodies2Go().readiTunesLibrary(library);
+		List<List<ITrack>> expected = TrackCompilation
+				.compileSelections(allTracks, profiles);
+
+		SyncPipeline pipeline = new SyncPipeline(library, profiles,
+				Lists.newArrayList(destination), SyncOptions.defaults(), 3);
+		SyncPipeline.Result result = pipeline.run();
+
+		// tracks don't implement equals(), so compare their titles
+		assertEquals(titles(expected), titles(result.getSelections()));
+		assertEquals(1, result.getDestinationScans().size());
+		assertEquals(1, result.getDestinationScans().get(0).getFiles().size());
+	}
+}
@@ -2,14 +2,28 @@ package de.christianleberfinger.melodies2go;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import com.google.common.collect.Lists;
 
+import de.christianleberfinger.melodies2go.TrackCompilation.Profile;
+import de.christianleberfinger.melodies2go.parser.ITrack;
+import de.christianleberfinger.melodies2go.parser.Track;
+
 class TestTrackCompilation {
 
+	@TempDir
+	Path tempDir;
+
 	@Test
 	void testLimitTrackNumber() {
 		List<?> unfiltered = Lists.newArrayList(1, 2, 3);
@@ -19,4 +33,55 @@ class TestTrackCompilation {
 		assertEquals(3, Melodies2Go.limitTrackNumber(unfiltered, 10).size());
 	}
 
+	private List<ITrack> createTracks(int count, int fileSize) throws IOException
+	{
+		List<ITrack> tracks = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+		{
+			Path file = tempDir.resolve("track" + i + ".mp3");
+			Files.write(file, new byte[fileSize]);
+
+			tracks.add(new Track.TrackBuilder().title("track" + i)
+					.trackRating(i).playCount(count - i).dateAdded(new Date(i))
+					.fileLocation(file.toUri().toString()).build());
+		}
+		return tracks;
+	}
+
+	@Test
+	void testCompileSelectionsMatchesSingleProfile() throws IOException {
+		List<ITrack> tracks = createTracks(20, 100);
+
+		List<Profile> profiles = Lists.newArrayList(new Profile(500),
+				new Profile(1000, 7), new Profile(10_000));
+		List<List<ITrack>> selections = TrackCompilation
+				.compileSelections(tracks, profiles);
+
+		assertEquals(3, selections.size());
+		assertEquals(TrackCompilation.compileSelection(tracks, 500),
+				selections.get(0));
+		assertEquals(Melodies2Go.limitTrackNumber(
+				TrackCompilation.compileSelection(tracks, 1000), 7),
+				selections.get(1));
+		assertEquals(TrackCompilation.compileSelection(tracks, 10_000),
+				selections.get(2));
+
+		assertEquals(5, selections.get(0).size());
+		assertEquals(7, selections.get(1).size());
+		assertEquals(20, selections.get(2).size());
+	}
+
+	@Test
+	void testCompileSelectionsSkipsTracksExceedingQuota() throws IOException {
+		List<ITrack> tracks = createTracks(3, 100);
+		File bigFile = tempDir.resolve("big.mp3").toFile();
+		Files.write(bigFile.toPath(), new byte[1000]);
+		tracks.add(new Track.TrackBuilder().trackRating(100)
+				.dateAdded(new Date(0)).fileLocation(bigFile.toURI().toString())
+				.build());
+
+		List<ITrack> selection = TrackCompilation.compileSelection(tracks, 300);
+		assertEquals(3, selection.size());
+		assertFalse(selection.contains(tracks.get(3)));
+	}
 }
@@ -0,0 +1,150 @@
+package de.christianleberfinger.melodies2go;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import de.christianleberfinger.melodies2go.TrackCompilation.Profile;
+
+public class TestWatchSync
+{
+	@TempDir
+	Path tempDir;
+
+	private File writeLibrary(int trackCount) throws IOException
+	{
+		return LibraryFixture.writeLibrary(tempDir, trackCount, 0, 0);
+	}
+
+	private static long countTracks(File destination)
+	{
+		return DestinationScan.walk(destination).getFiles().stream()
+				.filter(file -> file.getName().endsWith(".mp3")).count();
+	}
+
+	private static void awaitTracks(File destination, long count)
+			throws InterruptedException
+	{
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (countTracks(destination) != count && System.nanoTime() < deadline)
+		{
+			Thread.sleep(100);
+		}
+		assertEquals(count, countTracks(destination));
+	}
+
+	private static Thread start(WatchSync watchSync)
+	{
+		Thread thread = new Thread(() -> {
+			try
+			{
+				watchSync.run();
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	private static void stop(Thread thread) throws InterruptedException
+	{
+		thread.interrupt();
+		thread.join(TimeUnit.SECONDS.toMillis(10));
+		assertFalse(thread.isAlive());
+	}
+
+	@Test
+	public void testSyncsAfterExport() throws Exception
+	{
+		File library = writeLibrary(2);
+		File destination = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		Thread thread = start(new WatchSync(library,
+				Arrays.asList(new Profile(100_000)), Arrays.asList(destination),
+				SyncOptions.defaults()));
+		try
+		{
+			awaitTracks(destination, 2);
+
+			// a new export with one more track
+			writeLibrary(3);
+			awaitTracks(destination, 3);
+		}
+		finally
+		{
+			stop(thread);
+		}
+	}
+
+	@Test
+	public void testSyncsWhenMounted() throws Exception
+	{
+		File library = writeLibrary(2);
+		// the mount point doesn't exist yet
+		File destination = tempDir.resolve("media/CARD/Music").toFile();
+		Thread thread = start(new WatchSync(library,
+				Arrays.asList(new Profile(100_000)), Arrays.asList(destination),
+				SyncOptions.defaults()));
+		try
+		{
+			Thread.sleep(500);
+			assertTrue(thread.isAlive());
+
+			Files.createDirectories(destination.toPath());
+			awaitTracks(destination, 2);
+		}
+		finally
+		{
+			stop(thread);
+		}
+	}
+
+	@Test
+	public void testUpToDateDestinationGetsManifest() throws Exception
+	{
+		File library = writeLibrary(2);
+		File destination = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		new WatchSync(library, Arrays.asList(new Profile(100_000)),
+				Arrays.asList(destination), SyncOptions.defaults()).syncAll();
+		File manifest = new File(destination, SyncManifest.FILE_NAME);
+		assertTrue(manifest.delete());
+
+		// the destination is walked and up to date
+		new WatchSync(library, Arrays.asList(new Profile(100_000)),
+				Arrays.asList(destination), SyncOptions.defaults()).syncAll();
+		assertTrue(manifest.isFile());
+		assertTrue(DestinationScan.scan(destination).isFromManifest());
+	}
+
+	@Test
+	public void testIgnoresChangesOfItsOwnSync() throws Exception
+	{
+		File library = writeLibrary(2);
+		File destination = Files.createDirectories(tempDir.resolve("dest")).toFile();
+		WatchSync watchSync = new WatchSync(library,
+				Arrays.asList(new Profile(100_000)), Arrays.asList(destination),
+				SyncOptions.defaults());
+		watchSync.syncAll();
+
+		Set<File> changes = Collections.singleton(destination.getAbsoluteFile());
+		assertFalse(watchSync.isChangedElsewhere(destination, changes));
+
+		// e.g. changed by another tool
+		assertTrue(destination.setLastModified(0));
+		assertTrue(watchSync.isChangedElsewhere(destination, changes));
+	}
+}
@@ -0,0 +1,107 @@
+package de.christianleberfinger.melodies2go.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import de.christianleberfinger.melodies2go.FileCopier;
+
+/**
+ * Compares the copy paths for track files. Not run as part of the tests.
+ *
+ * <pre>
+ * java ... CopyBenchmark /dev/shm/bench-source /tmp/bench-target [files] [MiB per file]
+ * </pre>
+ *
+ * Prints throughput in MB/s and CPU time of the copying thread per GB copied.
+ * The target files are written to the page cache; nothing is synced to disk.
+ */
+public class CopyBenchmark
+{
+	interface Copy
+	{
+		void copy(File source, File target) throws IOException;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		Path sourceDir = Paths.get(args[0]);
+		Path targetDir = Paths.get(args[1]);
+		int fileCount = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		int fileSizeMiB = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+		List<File> sources = createSources(sourceDir, fileCount, fileSizeMiB);
+		Files.createDirectories(targetDir);
+
+		for (int round = 0; round < 3; round++)
+		{
+			run("commons-io", sources, targetDir, FileUtils::copyFile);
+			run("transfer", sources, targetDir, new FileCopier(
+					FileCopier.Method.TRANSFER, FileCopier.DEFAULT_BUFFER_SIZE)::copy);
+			run("buffered 64K", sources, targetDir, new FileCopier(
+					FileCopier.Method.BUFFERED, 64 * 1024)::copy);
+			run("buffered 1M", sources, targetDir, new FileCopier(
+					FileCopier.Method.BUFFERED, 1024 * 1024)::copy);
+			run("buffered 4M", sources, targetDir, new FileCopier(
+					FileCopier.Method.BUFFERED, 4 * 1024 * 1024)::copy);
+			run("pipelined 4x1M", sources, targetDir, new FileCopier(
+					FileCopier.Method.PIPELINED, 1024 * 1024, 4)::copy);
+			System.out.println();
+		}
+
+		FileUtils.deleteDirectory(sourceDir.toFile());
+		FileUtils.deleteDirectory(targetDir.toFile());
+	}
+
+	static List<File> createSources(Path sourceDir, int fileCount,
+			int fileSizeMiB) throws IOException
+	{
+		Files.createDirectories(sourceDir);
+		byte[] content = new byte[fileSizeMiB * 1024 * 1024];
+		new Random(1).nextBytes(content);
+
+		List<File> sources = new ArrayList<>();
+		for (int i = 0; i < fileCount; i++)
+		{
+			Path source = sourceDir.resolve("track" + i + ".flac");
+			Files.write(source, content);
+			sources.add(source.toFile());
+		}
+		return sources;
+	}
+
+	private static void run(String name, List<File> sources, Path targetDir,
+			Copy copy) throws IOException
+	{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long bytes = 0;
+		long cpuStart = threads.getCurrentThreadCpuTime();
+		long start = System.nanoTime();
+
+		for (File source : sources)
+		{
+			File target = targetDir.resolve(source.getName()).toFile();
+			copy.copy(source, target);
+			bytes += source.length();
+		}
+
+		long wallNanos = System.nanoTime() - start;
+		long cpuNanos = threads.getCurrentThreadCpuTime() - cpuStart;
+
+		double megabytes = bytes / 1e6;
+		double gigabytes = bytes / 1e9;
+		System.out.printf("%-14s %8.1f MB/s %8.1f ms CPU/GB%n", name,
+				megabytes / (wallNanos / 1e9), cpuNanos / 1e6 / gigabytes);
+
+		FileUtils.cleanDirectory(targetDir.toFile());
+	}
+}
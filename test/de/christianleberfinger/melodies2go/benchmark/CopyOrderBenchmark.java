@@ -0,0 +1,151 @@
+package de.christianleberfinger.melodies2go.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import de.christianleberfinger.melodies2go.CopyEngine;
+import de.christianleberfinger.melodies2go.CopyEngine.CopyJob;
+import de.christianleberfinger.melodies2go.CopyOrder;
+import de.christianleberfinger.melodies2go.IoLimits;
+
+/**
+ * Compares copy orders against a simulated spinning disk. Not run as part of
+ * the tests.
+ *
+ * <pre>
+ * java ... CopyOrderBenchmark /dev/shm/bench-library [albums] [tracks per album]
+ * </pre>
+ *
+ * The simulated disk stores the library in path order. Reading a file that
+ * doesn't directly follow the previously read file costs a seek of
+ * {@value #SEEK_MILLIS} ms. The copy jobs only read their source, so the
+ * numbers show the effect of the order alone.
+ */
+public class CopyOrderBenchmark
+{
+	private static final long SEEK_MILLIS = 8;
+
+	/**
+	 * Disk with one head: reads are serialized, like on a real disk.
+	 */
+	static class SimulatedDisk
+	{
+		private final Map<File, Integer> positions = new HashMap<>();
+		private int headPosition = -1;
+		private int seeks;
+
+		SimulatedDisk(List<File> layout)
+		{
+			for (int i = 0; i < layout.size(); i++)
+			{
+				positions.put(layout.get(i), i);
+			}
+		}
+
+		synchronized void read(File file) throws IOException
+		{
+			int position = positions.get(file);
+			if (position != headPosition + 1)
+			{
+				seeks++;
+				try
+				{
+					Thread.sleep(SEEK_MILLIS);
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+			headPosition = position;
+			Files.readAllBytes(file.toPath());
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		Path libraryDir = Paths.get(args[0]);
+		int albums = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+		int tracksPerAlbum = args.length > 2 ? Integer.parseInt(args[2]) : 12;
+
+		List<File> layout = createLibrary(libraryDir, albums, tracksPerAlbum);
+
+		// the selection takes tracks across all albums, like the compilation
+		List<File> priorityOrder = new ArrayList<>(layout);
+		Collections.shuffle(priorityOrder, new Random(1));
+
+		for (int threads : new int[] { 1, 4 })
+		{
+			run("priority", threads, layout, priorityOrder, CopyOrder.PRIORITY, false);
+			run("source", threads, layout, priorityOrder, CopyOrder.SOURCE, false);
+			run("source+batch", threads, layout, priorityOrder, CopyOrder.SOURCE, true);
+			System.out.println();
+		}
+
+		FileUtils.deleteDirectory(libraryDir.toFile());
+	}
+
+	static List<File> createLibrary(Path libraryDir, int albums,
+			int tracksPerAlbum) throws IOException
+	{
+		List<File> layout = new ArrayList<>();
+		byte[] content = new byte[64 * 1024];
+		for (int album = 0; album < albums; album++)
+		{
+			Path albumDir = Files.createDirectories(
+					libraryDir.resolve(String.format("Album %03d", album)));
+			for (int track = 0; track < tracksPerAlbum; track++)
+			{
+				Path file = albumDir.resolve(String.format("%02d.mp3", track));
+				Files.write(file, content);
+				layout.add(file.toFile());
+			}
+		}
+		return layout;
+	}
+
+	private static void run(String name, int threads, List<File> layout,
+			List<File> sources, CopyOrder order, boolean batch)
+			throws IOException
+	{
+		SimulatedDisk disk = new SimulatedDisk(layout);
+		List<CopyJob> jobs = new ArrayList<>();
+		for (File source : sources)
+		{
+			jobs.add(new CopyJob() {
+				@Override
+				public void copy(IoLimits limits) throws IOException
+				{
+					limits.getSourceReads().run(() -> {
+						disk.read(source);
+						return null;
+					});
+				}
+
+				@Override
+				public File getSource()
+				{
+					return source;
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+		new CopyEngine(threads, threads).execute(order.arrange(jobs, batch));
+		long wallMillis = (System.nanoTime() - start) / 1_000_000;
+
+		System.out.printf("%-13s %d threads %6d seeks %7d ms%n", name, threads,
+				disk.seeks, wallMillis);
+	}
+}
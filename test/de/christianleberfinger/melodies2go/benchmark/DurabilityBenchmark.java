@@ -0,0 +1,82 @@
+package de.christianleberfinger.melodies2go.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import de.christianleberfinger.melodies2go.DurabilityBarrier;
+import de.christianleberfinger.melodies2go.FileSync;
+import de.christianleberfinger.melodies2go.SyncOptions.SyncOptionsBuilder;
+import de.christianleberfinger.melodies2go.parser.ITrack;
+import de.christianleberfinger.melodies2go.parser.Track;
+
+/**
+ * Measures the throughput of a sync for each durability policy. Not run as
+ * part of the tests. The target should be on the device of interest, e.g. a
+ * mounted SD card.
+ *
+ * <pre>
+ * java ... DurabilityBenchmark /dev/shm/bench-source /media/card/bench [files] [MiB per file]
+ * </pre>
+ */
+public class DurabilityBenchmark
+{
+	public static void main(String[] args) throws IOException
+	{
+		Path sourceDir = Paths.get(args[0]);
+		Path targetDir = Paths.get(args[1]);
+		int fileCount = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int fileSizeMiB = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+		List<ITrack> tracks = createTracks(sourceDir, fileCount, fileSizeMiB);
+		long bytes = (long) fileCount * fileSizeMiB * 1024 * 1024;
+
+		for (DurabilityBarrier.Policy policy : DurabilityBarrier.Policy.values())
+		{
+			for (boolean preallocate : new boolean[] { false, true })
+			{
+				Files.createDirectories(targetDir);
+				long start = System.nanoTime();
+				new FileSync(tracks, targetDir.toFile(),
+						new SyncOptionsBuilder().durability(policy)
+								.preallocate(preallocate).build()).sync();
+				long wallNanos = System.nanoTime() - start;
+
+				System.out.printf("%-10s %-13s %8.1f MB/s%n", policy,
+						preallocate ? "preallocated" : "",
+						bytes / 1e6 / (wallNanos / 1e9));
+				FileUtils.deleteDirectory(targetDir.toFile());
+			}
+		}
+
+		FileUtils.deleteDirectory(sourceDir.toFile());
+	}
+
+	private static List<ITrack> createTracks(Path sourceDir, int fileCount,
+			int fileSizeMiB) throws IOException
+	{
+		Files.createDirectories(sourceDir);
+		byte[] content = new byte[fileSizeMiB * 1024 * 1024];
+		new Random(1).nextBytes(content);
+
+		List<ITrack> tracks = new ArrayList<>();
+		for (int i = 0; i < fileCount; i++)
+		{
+			File file = sourceDir.resolve("track" + i + ".mp3").toFile();
+			Files.write(file.toPath(), content);
+			tracks.add(new Track.TrackBuilder().artist("Artist " + (i % 10))
+					.album("Album " + (i % 20)).title("Track " + i)
+					.dateAdded(new Date(0))
+					.fileLocation(file.toURI().toString()).build());
+		}
+		return tracks;
+	}
+}
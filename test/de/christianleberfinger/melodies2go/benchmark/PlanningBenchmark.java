@@ -0,0 +1,74 @@
+package de.christianleberfinger.melodies2go.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.christianleberfinger.melodies2go.FileSync;
+import de.christianleberfinger.melodies2go.parser.ITrack;
+import de.christianleberfinger.melodies2go.parser.Track;
+
+/**
+ * Measures the time and heap needed to plan the destination files of a large
+ * selection. Nothing is written. Not run as part of the tests.
+ *
+ * <pre>
+ * java ... PlanningBenchmark [tracks] [runs]
+ * </pre>
+ *
+ * The selection consists of albums with 10 tracks, and 10 albums per artist.
+ */
+public class PlanningBenchmark
+{
+	public static void main(String[] args)
+	{
+		int trackCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+		List<ITrack> tracks = new ArrayList<>(trackCount);
+		for (int i = 0; i < trackCount; i++)
+		{
+			int album = i / 10;
+			int artist = album / 10;
+			String artistName = (char) ('A' + artist % 26) + "rtist " + artist;
+			tracks.add(new Track.TrackBuilder().artist(artistName)
+					.album("Album " + album).title("Track " + i)
+					.dateAdded(new Date(0))
+					.fileLocation(new File("/music/" + artistName + "/Album "
+							+ album + "/Track " + i + ".mp3").toURI().toString())
+					.build());
+		}
+		File destDir = new File("/dest");
+
+		for (int run = 0; run < runs; run++)
+		{
+			long heapBefore = usedHeap();
+			long start = System.nanoTime();
+
+			FileSync fileSync = new FileSync(tracks, destDir);
+			Map<File, ITrack> plan = new LinkedHashMap<>();
+			for (ITrack track : tracks)
+			{
+				plan.put(fileSync.getDestFile(track), track);
+			}
+
+			long millis = (System.nanoTime() - start) / 1_000_000;
+			long heap = usedHeap() - heapBefore;
+			System.out.printf("%d tracks: %d ms, %d KiB retained%n",
+					plan.size(), millis, heap / 1024);
+		}
+	}
+
+	private static long usedHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
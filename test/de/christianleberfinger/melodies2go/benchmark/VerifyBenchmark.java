@@ -0,0 +1,123 @@
+package de.christianleberfinger.melodies2go.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import de.christianleberfinger.melodies2go.FileSync;
+import de.christianleberfinger.melodies2go.FileSync.SyncedTrack;
+import de.christianleberfinger.melodies2go.FileVerifier;
+import de.christianleberfinger.melodies2go.SyncOptions.SyncOptionsBuilder;
+import de.christianleberfinger.melodies2go.parser.ITrack;
+import de.christianleberfinger.melodies2go.parser.Track;
+
+/**
+ * Measures the throughput of verification and its overhead on a sync. Not
+ * run as part of the tests. The target should be on the device of interest,
+ * e.g. a mounted SD card; note that just written files are mostly read from
+ * the page cache.
+ *
+ * <pre>
+ * java ... VerifyBenchmark /dev/shm/bench-source /media/card/bench [files] [MiB per file]
+ * </pre>
+ */
+public class VerifyBenchmark
+{
+	public static void main(String[] args) throws IOException
+	{
+		Path sourceDir = Paths.get(args[0]);
+		Path targetDir = Paths.get(args[1]);
+		int fileCount = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int fileSizeMiB = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+		List<ITrack> tracks = createTracks(sourceDir, fileCount, fileSizeMiB);
+		long bytes = (long) fileCount * fileSizeMiB * 1024 * 1024;
+
+		for (FileVerifier.Mode mode : new FileVerifier.Mode[] {
+				FileVerifier.Mode.NONE, FileVerifier.Mode.COPIED })
+		{
+			Files.createDirectories(targetDir);
+			long start = System.nanoTime();
+			new FileSync(tracks, targetDir.toFile(),
+					new SyncOptionsBuilder().verifyMode(mode).build()).sync();
+			long wallNanos = System.nanoTime() - start;
+			System.out.printf("sync, verify %-8s %8.1f MB/s%n", mode,
+					bytes / 1e6 / (wallNanos / 1e9));
+			if (mode == FileVerifier.Mode.NONE)
+			{
+				FileUtils.deleteDirectory(targetDir.toFile());
+			}
+		}
+
+		List<SyncedTrack> synced = new FileSync(tracks, targetDir.toFile())
+				.sync();
+		Map<File, File> files = new LinkedHashMap<>();
+		for (SyncedTrack syncedTrack : synced)
+		{
+			files.put(syncedTrack.getDestFile(), syncedTrack.track.getFile());
+		}
+
+		long start = System.nanoTime();
+		for (File file : files.keySet())
+		{
+			FileVerifier.hashUnmapped(file);
+		}
+		print("streamed hash", bytes, System.nanoTime() - start);
+
+		start = System.nanoTime();
+		for (File file : files.keySet())
+		{
+			FileVerifier.hash(file);
+		}
+		print("mapped hash", bytes, System.nanoTime() - start);
+
+		for (int threads : new int[] { 1, 2, 4, 8 })
+		{
+			start = System.nanoTime();
+			new FileVerifier(threads, threads).verify(files);
+			// source and destination are read
+			print("verify, " + threads + " threads", 2 * bytes,
+					System.nanoTime() - start);
+		}
+
+		FileUtils.deleteDirectory(targetDir.toFile());
+		FileUtils.deleteDirectory(sourceDir.toFile());
+	}
+
+	private static void print(String name, long bytes, long wallNanos)
+	{
+		System.out.printf("%-20s %8.1f MB/s%n", name,
+				bytes / 1e6 / (wallNanos / 1e9));
+	}
+
+	private static List<ITrack> createTracks(Path sourceDir, int fileCount,
+			int fileSizeMiB) throws IOException
+	{
+		Files.createDirectories(sourceDir);
+		byte[] content = new byte[fileSizeMiB * 1024 * 1024];
+		Random random = new Random(1);
+
+		List<ITrack> tracks = new ArrayList<>();
+		for (int i = 0; i < fileCount; i++)
+		{
+			random.nextBytes(content);
+			File file = sourceDir.resolve("track" + i + ".mp3").toFile();
+			Files.write(file.toPath(), content);
+			tracks.add(new Track.TrackBuilder().artist("Artist " + (i % 10))
+					.album("Album " + (i % 20)).title("Track " + i)
+					.dateAdded(new Date(0))
+					.fileLocation(file.toURI().toString()).build());
+		}
+		return tracks;
+	}
+}